@@ -0,0 +1,266 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Content-addressed store of files: each file is stored under the SHA-256 hash of its content.
+ *
+ * This is used to avoid uploading again and again the same files to the server (the same atlas
+ * slice as the fixed image, the same registration parameter files...) : a client which knows that the server
+ * already has a file can just send its hash, see {@link ElastixServlet}
+ *
+ * The same mechanism is used to keep the registration results, keyed by a digest of the
+ * registration inputs (see {@link ElastixServlet#getResultKey})
+ *
+ * The total size of the files stored is bounded : the least recently used files are removed first.
+ * A time to live can also be set : files older than this are removed.
+ * Files are kept between server restarts.
+ */
+public class BlobStore {
+
+    public static Consumer<String> log = (str) -> {};//System.out.println(BlobStore.class+":"+str);
+
+    final File folder;
+
+    final long maxSizeInBytes;
+
+    final long timeToLiveInMs;
+
+    long totalSizeInBytes = 0;
+
+    /**
+     * Hash to file size, in access order
+     */
+    final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param folder where to store the files
+     * @param maxSizeInBytes maximal total size of the files stored, 0 or negative to disable the store
+     * @throws IOException if the folder cannot be created
+     */
+    public BlobStore(String folder, long maxSizeInBytes) throws IOException {
+        this(folder, maxSizeInBytes, 0);
+    }
+
+    /**
+     * @param folder where to store the files
+     * @param maxSizeInBytes maximal total size of the files stored, 0 or negative to disable the store
+     * @param timeToLiveInS time after which a file is removed from the store, 0 or negative for no limit
+     * @throws IOException if the folder cannot be created
+     */
+    public BlobStore(String folder, long maxSizeInBytes, long timeToLiveInS) throws IOException {
+        this.folder = new File(folder);
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.timeToLiveInMs = timeToLiveInS * 1000;
+        if (!isEnabled()) return;
+        if (!this.folder.exists()) {
+            Files.createDirectories(this.folder.toPath());
+        }
+        // Files from a previous run, oldest first
+        File[] files = this.folder.listFiles();
+        if (files!=null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File f : files) {
+                if (f.isFile() && isValidHash(f.getName())) {
+                    blobs.put(f.getName(), f.length());
+                    totalSizeInBytes += f.length();
+                } else {
+                    f.delete(); // Probably an incomplete copy
+                }
+            }
+        }
+        evict();
+    }
+
+    public boolean isEnabled() {
+        return maxSizeInBytes > 0;
+    }
+
+    /**
+     * @param hash SHA-256 hex string
+     * @return true if the store contains a file with this hash
+     */
+    public synchronized boolean contains(String hash) {
+        if (!blobs.containsKey(hash)) return false;
+        File f = getPath(hash).toFile();
+        if (!f.exists()) {
+            // Removed from outside
+            totalSizeInBytes -= blobs.remove(hash);
+            return false;
+        }
+        if ((timeToLiveInMs>0)&&(f.lastModified()+timeToLiveInMs<System.currentTimeMillis())) {
+            // Expired
+            f.delete();
+            totalSizeInBytes -= blobs.remove(hash);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stores a copy of a file, if it is not stored already
+     * @param source file to store
+     * @param hash SHA-256 hex string of the file content
+     */
+    public void put(Path source, String hash) {
+        if ((!isEnabled())||(!isValidHash(hash))) return;
+        synchronized (this) {
+            if (blobs.containsKey(hash)) {
+                blobs.get(hash); // Access : most recently used
+                return;
+            }
+        }
+        try {
+            long size = Files.size(source);
+            if (size > maxSizeInBytes) return;
+            Path tmp = Files.createTempFile(folder.toPath(), hash, ".tmp");
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                Files.move(tmp, getPath(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (blobs.put(hash, size)==null) {
+                    totalSizeInBytes += size;
+                }
+                evict();
+            }
+        } catch (IOException e) {
+            log.accept("Could not store "+hash+" : "+e.getMessage());
+        }
+    }
+
+    /**
+     * Makes a file with the content identified by a hash (hard link if possible, copy otherwise)
+     * @param hash SHA-256 hex string
+     * @param target path of the file to create
+     * @return false if the hash is unknown
+     * @throws IOException if the file cannot be created
+     */
+    public synchronized boolean copyTo(String hash, Path target) throws IOException {
+        if (!contains(hash)) return false;
+        blobs.get(hash); // Access : most recently used
+        Path source = getPath(hash);
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (IOException|UnsupportedOperationException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return true;
+    }
+
+    /**
+     * @param hash SHA-256 hex string
+     * @return the stored file with this hash, or null if the hash is unknown.
+     * Beware : the file may be removed from the store later on
+     */
+    public synchronized File get(String hash) {
+        if (!contains(hash)) return null;
+        blobs.get(hash); // Access : most recently used
+        return getPath(hash).toFile();
+    }
+
+    /**
+     * @param hash SHA-256 hex string
+     * @return the size of the stored file with this hash, or -1 if the hash is unknown
+     */
+    public synchronized long getSize(String hash) {
+        if (!contains(hash)) return -1;
+        return blobs.get(hash);
+    }
+
+    public synchronized long getTotalSizeInBytes() {
+        return totalSizeInBytes;
+    }
+
+    public synchronized int getNumberOfFiles() {
+        return blobs.size();
+    }
+
+    private Path getPath(String hash) {
+        return Paths.get(folder.getAbsolutePath(), hash);
+    }
+
+    /**
+     * Removes the least recently used files until the total size is below the limit
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = blobs.entrySet().iterator();
+        while ((totalSizeInBytes > maxSizeInBytes)&&(it.hasNext())) {
+            Map.Entry<String, Long> eldest = it.next();
+            try {
+                Files.deleteIfExists(getPath(eldest.getKey()));
+            } catch (IOException e) {
+                log.accept("Could not delete "+eldest.getKey()+" : "+e.getMessage());
+            }
+            totalSizeInBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * @param hash string to check
+     * @return true if the string is a SHA-256 hex string - avoids any path manipulation from a client
+     */
+    public static boolean isValidHash(String hash) {
+        if ((hash==null)||(hash.length()!=64)) return false;
+        for (char c : hash.toCharArray()) {
+            if (Character.digit(c, 16)<0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Thrown when a client references a file by a hash unknown to the server
+     */
+    public static class UnknownHashException extends IOException {
+
+        final public String hash;
+
+        public UnknownHashException(String hash) {
+            super("Unknown hash "+hash);
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static ch.epfl.biop.server.ElastixServlet.*;
+import static ch.epfl.biop.server.ServletUtils.copyInputToServer;
+
+/**
+ * Servlet which processes a batch of elastix registrations sent in a single request, typically
+ * the registrations of all the slices of a series, which share the same fixed image and the same
+ * parameter files:
+ *
+ * http://servername/elastix/batch
+ *
+ * The multipart request contains:
+ *  - the number of registration jobs N ({@link ElastixBatchServlet#NumberOfJobsTag})
+ *  - the parts of a registration request (see {@link ElastixServlet}) which are shared by all jobs, sent once
+ *  - the parts which are specific to the job k (typically its moving image), named {@link ElastixBatchServlet#JobTag(String, int)}.
+ *  A part specific to a job takes precedence over the shared part with the same name
+ *
+ * Files can be referenced by their hash, like with the {@link ElastixServlet}. If some hashes are unknown,
+ * nothing is enqueued and the server answers with {@link ElastixServlet#UnknownHashesStatus}.
+ *
+ * The N jobs enter the queue of the {@link ElastixJobQueueServlet} as a unit, and the server starts them
+ * as soon as slots are available : the client does not poll the queue. Shared files are copied only once
+ * for the whole batch (they are thus not archived with each job when the server stores the jobs data).
+ * Like the jobs of the clients, a batch is rejected with a 503 error code if its last job would wait longer
+ * than {@link RegistrationServerConfig#maxQueueEstimatedWaitingTimeInS} : the client can split it.
+ *
+ * The response is a zip stream, written while the jobs are processed. Each time a job is done, an entry
+ * {@link ElastixBatchServlet#ResultEntryName(int)} which contains the result of the job (the zip file returned
+ * by the {@link ElastixServlet}) is added, or an entry {@link ElastixBatchServlet#ErrorEntryName(int)} with
+ * the reason of the failure. Entries are written in the completion order, not in the job order.
+ *
+ * The jobs not done yet are cancelled if the client disconnects.
+ */
+public class ElastixBatchServlet extends HttpServlet {
+
+    public static Consumer<String> log = (str) -> System.out.println(ElastixBatchServlet.class+":"+str);
+
+    final public static String NumberOfJobsTag = "numberOfJobs";
+
+    final public static String JobTagSeparator = "_job";
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, requests with more jobs are rejected
+     */
+    public static int maxNumberOfJobsPerBatch = 1000;
+
+    /**
+     * Keeps track of the number of batches accepted
+     */
+    final public static AtomicLong numberOfBatches = new AtomicLong(0);
+
+    /**
+     * @param tag name of a part of a registration request
+     * @param jobIndex index of the job in the batch
+     * @return the name of the part when it is specific to this job
+     */
+    static public String JobTag(String tag, int jobIndex) {
+        return tag+JobTagSeparator+jobIndex;
+    }
+
+    static public String ResultEntryName(int jobIndex) {
+        return "job_"+jobIndex+".zip";
+    }
+
+    static public String ErrorEntryName(int jobIndex) {
+        return "job_"+jobIndex+".error";
+    }
+
+    // Get method not supported
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        // Parts are read by the jetty thread and detached from the request, see ElastixServlet
+        final Collection<Part> parts;
+        try {
+            parts = request.getParts();
+            request.removeAttribute(Request.MULTIPARTS);
+        } catch (IOException | ServletException | IllegalStateException e) {
+            log.accept("Could not read batch request : "+e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        Batch batch;
+        try {
+            Part numberOfJobsPart = request.getPart(NumberOfJobsTag);
+            if (numberOfJobsPart == null) {
+                throw new IllegalArgumentException("no number of jobs");
+            }
+            int numberOfJobs = Integer.parseInt(IOUtils.toString(numberOfJobsPart.getInputStream(), StandardCharsets.UTF_8).trim());
+            if ((numberOfJobs<=0)||(numberOfJobs>maxNumberOfJobsPerBatch)) {
+                throw new IllegalArgumentException(numberOfJobs+" jobs, the maximum is "+maxNumberOfJobsPerBatch);
+            }
+            batch = new Batch(request, response, parts, numberOfJobs);
+        } catch (IOException | ServletException | IllegalArgumentException e) {
+            log.accept("Invalid batch request : "+e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            deleteParts(parts);
+            return;
+        }
+
+        List<String> unknownHashes;
+        try {
+            unknownHashes = batch.getUnknownHashes();
+        } catch (ServletException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            deleteParts(parts);
+            return;
+        }
+        if (unknownHashes.size()>0) {
+            log.accept("Batch references "+unknownHashes.size()+" unknown file(s) - the client needs to send them");
+            response.setContentType("application/json");
+            response.setStatus(UnknownHashesStatus);
+            response.getWriter().println(new Gson().toJson(new UnknownHashes(unknownHashes)));
+            deleteParts(parts);
+            return;
+        }
+
+        // The parameter files of the jobs are only read when each job starts : global duration estimate
+        if (!ElastixJobQueueServlet.canEnqueueServerJobs(batch.numberOfJobs, null)) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            deleteParts(parts);
+            return;
+        }
+
+        numberOfBatches.incrementAndGet();
+        batch.start();
+    }
+
+    /**
+     * Jobs of a batch request, and the stream of their results
+     */
+    static class Batch {
+
+        final HttpServletRequest request;
+
+        final HttpServletResponse response;
+
+        final Collection<Part> parts;
+
+        final int numberOfJobs;
+
+        final long[] jobIds;
+
+        /**
+         * Number of transforms and size of the parts, per job
+         */
+        final int[] numberOfTransforms;
+
+        final long[] jobSizeInBytes;
+
+        long sharedSizeInBytes = 0;
+
+        String taskMetadata = null;
+
+        /**
+         * Shared inputs already copied on the server, by tag. Guarded by this batch
+         */
+        final Map<String, ServletUtils.InputFile> sharedInputs = new HashMap<>();
+
+        WorkspaceProvider.Workspace sharedWorkspace = null;
+
+        AsyncContext asyncContext;
+
+        /**
+         * Guarded by this batch
+         */
+        ZipOutputStream zipOut;
+
+        final AtomicBoolean isAlive = new AtomicBoolean(true);
+
+        final AtomicInteger numberOfJobsDone = new AtomicInteger(0);
+
+        final Map<Long, RegistrationJob> runningJobs = new ConcurrentHashMap<>();
+
+        ScheduledFuture<?> connectionCheck;
+
+        Batch(HttpServletRequest request, HttpServletResponse response, Collection<Part> parts, int numberOfJobs) throws IOException, ServletException {
+            this.request = request;
+            this.response = response;
+            this.parts = parts;
+            this.numberOfJobs = numberOfJobs;
+            this.jobIds = new long[numberOfJobs];
+            this.numberOfTransforms = new int[numberOfJobs];
+            this.jobSizeInBytes = new long[numberOfJobs];
+
+            // Files referenced by their hash count for their real size, -1 if unknown (the workspace is then on the disk)
+            for (Part part : parts) {
+                int jobIndex = getJobIndex(part.getName());
+                long partSizeInBytes = ServletUtils.getInputsSizeInBytes(Collections.singletonList(part), inputStore);
+                if (jobIndex>=0) {
+                    jobSizeInBytes[jobIndex] = addSizes(jobSizeInBytes[jobIndex], partSizeInBytes);
+                } else {
+                    sharedSizeInBytes = addSizes(sharedSizeInBytes, partSizeInBytes);
+                }
+            }
+
+            for (int jobIndex = 0; jobIndex<numberOfJobs; jobIndex++) {
+                Part numberOfTransformsPart = request.getPart(getTag(NumberOfTransformsTag, jobIndex));
+                if (numberOfTransformsPart == null) {
+                    throw new IllegalArgumentException("no number of transforms for job "+jobIndex);
+                }
+                numberOfTransforms[jobIndex] = Integer.parseInt(IOUtils.toString(numberOfTransformsPart.getInputStream(), StandardCharsets.UTF_8).trim());
+                for (String tag : getFileTags(jobIndex)) {
+                    if (!ServletUtils.hasFile(request, tag)) {
+                        throw new IllegalArgumentException("missing "+tag);
+                    }
+                }
+            }
+
+            if (request.getPart(TaskMetadata)!=null) {
+                taskMetadata = IOUtils.toString(request.getPart(TaskMetadata).getInputStream(), StandardCharsets.UTF_8);
+            }
+        }
+
+        static long addSizes(long sizeInBytes, long otherSizeInBytes) {
+            return ((sizeInBytes<0)||(otherSizeInBytes<0)) ? -1 : sizeInBytes+otherSizeInBytes;
+        }
+
+        /**
+         * @return the index of the job if the part is specific to a job of this batch, -1 otherwise
+         */
+        int getJobIndex(String partName) {
+            int index = partName.lastIndexOf(JobTagSeparator);
+            if (index<0) return -1;
+            try {
+                int jobIndex = Integer.parseInt(partName.substring(index+JobTagSeparator.length()));
+                return ((jobIndex>=0)&&(jobIndex<numberOfJobs)) ? jobIndex : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * @return the name of the part used by the job for this tag : the part specific to the job if it exists,
+         * the shared part otherwise
+         */
+        String getTag(String tag, int jobIndex) throws IOException, ServletException {
+            String jobTag = JobTag(tag, jobIndex);
+            return ServletUtils.hasFile(request, jobTag) ? jobTag : tag;
+        }
+
+        /**
+         * @return the names of the parts of the files of a job : images, initial transform (if any) and transforms
+         */
+        List<String> getFileTags(int jobIndex) throws IOException, ServletException {
+            List<String> tags = new ArrayList<>(Arrays.asList(getTag(FixedImageTag, jobIndex), getTag(MovingImageTag, jobIndex)));
+            String initialTransformTag = getTag(InitialTransformTag, jobIndex);
+            if (ServletUtils.hasFile(request, initialTransformTag)) {
+                tags.add(initialTransformTag);
+            }
+            for (int idxTransform = 0; idxTransform < numberOfTransforms[jobIndex]; idxTransform++) {
+                tags.add(getTag(TransformParameterTag(idxTransform), jobIndex));
+            }
+            return tags;
+        }
+
+        List<String> getUnknownHashes() throws ServletException {
+            Set<String> unknownHashes = new LinkedHashSet<>();
+            try {
+                for (int jobIndex = 0; jobIndex<numberOfJobs; jobIndex++) {
+                    unknownHashes.addAll(ServletUtils.getUnknownHashes(request, getFileTags(jobIndex), inputStore));
+                }
+            } catch (IOException e) {
+                throw new ServletException(e);
+            }
+            return new ArrayList<>(unknownHashes);
+        }
+
+        /**
+         * Starts the asynchronous response and enqueues the jobs
+         */
+        void start() throws IOException {
+            asyncContext = request.startAsync();
+            asyncContext.setTimeout(0); // The batch lasts as long as its jobs, it is cancelled if the client disconnects
+            asyncContext.addListener(new AsyncListener() {
+                @Override
+                public void onComplete(AsyncEvent event) {}
+
+                @Override
+                public void onTimeout(AsyncEvent event) {
+                    cancel();
+                }
+
+                @Override
+                public void onError(AsyncEvent event) {
+                    log.accept("Error during batch request, cancelling the remaining jobs...");
+                    cancel();
+                }
+
+                @Override
+                public void onStartAsync(AsyncEvent event) {}
+            });
+
+            response.setHeader(ContentAddressedInputsHeader, Boolean.toString((inputStore!=null)&&(inputStore.isEnabled())));
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("application/zip");
+            response.addHeader("Content-Disposition", "attachment; filename=batch_result.zip");
+            zipOut = new ZipOutputStream(response.getOutputStream());
+
+            connectionCheck = watchdog.scheduleWithFixedDelay(() -> {
+                if (!ServletUtils.isClientConnected(request)) {
+                    log.accept("Batch client disconnected, cancelling the remaining jobs");
+                    cancel();
+                }
+            }, clientConnectionCheckIntervalInMs, clientConnectionCheckIntervalInMs, TimeUnit.MILLISECONDS);
+
+            Map<Long, Runnable> jobs = new LinkedHashMap<>();
+            for (int jobIndex = 0; jobIndex<numberOfJobs; jobIndex++) {
+                final int currentJobIndex = jobIndex;
+                jobIds[jobIndex] = ElastixJobQueueServlet.getNextJobIndex();
+                jobs.put(jobIds[jobIndex], () -> submit(currentJobIndex));
+            }
+            log.accept("Batch of "+numberOfJobs+" jobs enqueued (jobs "+jobIds[0]+" to "+jobIds[numberOfJobs-1]+")");
+            ElastixJobQueueServlet.enqueueServerJobs(jobs, null);
+        }
+
+        /**
+         * Called by the queue when a slot is available for the job
+         */
+        void submit(int jobIndex) {
+            try {
+                executor.execute(() -> run(jobIndex));
+            } catch (RejectedExecutionException e) {
+                // The slot is released without notifying the queue, which is already looking for the next job to start
+                numberOfCurrentTask.decrementAndGet();
+                fail(jobIndex, "elastix executor full");
+                jobDone();
+            }
+        }
+
+        /**
+         * Registration of a job of the batch
+         */
+        void run(int jobIndex) {
+            long currentJobId = jobIds[jobIndex];
+            RegistrationJob job = null;
+            try {
+                if (!isAlive.get()) {
+                    fail(jobIndex, "batch cancelled");
+                    return;
+                }
+
+                log.accept("----------- ELASTIX BATCH JOB " + currentJobId + " ("+(jobIndex+1)+"/"+numberOfJobs+") START");
+
+                // The shared files are copied elsewhere, only once
+                job = new RegistrationJob(currentJobId, jobSizeInBytes[jobIndex], numberOfTransforms[jobIndex], taskMetadata, new RegistrationJob.Inputs() {
+                    @Override
+                    public boolean hasFile(String tag) throws IOException, ServletException {
+                        return ServletUtils.hasFile(request, getTag(tag, jobIndex));
+                    }
+
+                    @Override
+                    public ServletUtils.InputFile copy(String jobInputsFolder, String tag, String fileNameOut) throws IOException, ServletException {
+                        String jobTag = JobTag(tag, jobIndex);
+                        if (ServletUtils.hasFile(request, jobTag)) {
+                            return copyInputToServer(jobInputsFolder, request, jobTag, fileNameOut, inputStore);
+                        }
+                        return getSharedInput(tag, fileNameOut);
+                    }
+                });
+
+                File result = job.getCachedResult();
+                if (result == null) {
+                    runningJobs.put(currentJobId, job);
+                    try {
+                        if (!isAlive.get()) { // cancelled while the inputs were copied ?
+                            fail(jobIndex, "batch cancelled");
+                            return;
+                        }
+                        result = job.run();
+                    } finally {
+                        runningJobs.remove(currentJobId);
+                    }
+                }
+
+                sendResult(jobIndex, result);
+            } catch (Exception e) {
+                log.accept(isAlive.get() ? "Error during batch job "+currentJobId+" : "+e.getMessage() : "Job "+currentJobId+" cancelled");
+                fail(jobIndex, isAlive.get() ? e.getMessage() : "batch cancelled");
+            } finally {
+                if (job != null) {
+                    job.close();
+                }
+                releaseSlot();
+                jobDone();
+            }
+        }
+
+        synchronized ServletUtils.InputFile getSharedInput(String tag, String fileNameOut) throws IOException, ServletException {
+            ServletUtils.InputFile input = sharedInputs.get(tag);
+            if (input == null) {
+                if (sharedWorkspace == null) {
+                    sharedWorkspace = workspaces.acquire(elastixJobsFolder, "job_" + jobIds[0] + "_shared", sharedSizeInBytes);
+                    Files.createDirectories(sharedWorkspace.folder.toPath());
+                }
+                input = copyInputToServer(sharedWorkspace.getPath(), request, tag, fileNameOut, inputStore);
+                sharedInputs.put(tag, input);
+            }
+            return input;
+        }
+
+        /**
+         * Adds the result of a job to the response, and sends it right away
+         */
+        void sendResult(int jobIndex, File zippedResult) throws IOException {
+            ZipEntry entry = new ZipEntry(ResultEntryName(jobIndex));
+            entry.setMethod(ZipEntry.STORED); // Already compressed
+            entry.setSize(zippedResult.length());
+            entry.setCompressedSize(zippedResult.length());
+            entry.setCrc(ServletUtils.crc32(zippedResult));
+            synchronized (this) {
+                zipOut.putNextEntry(entry);
+                Files.copy(zippedResult.toPath(), zipOut);
+                zipOut.closeEntry();
+                zipOut.flush();
+            }
+        }
+
+        /**
+         * Tells the client that a job failed. If this is not possible, the client is gone : the batch is cancelled
+         */
+        void fail(int jobIndex, String reason) {
+            byte[] message = String.valueOf(reason).getBytes(StandardCharsets.UTF_8);
+            ZipEntry entry = new ZipEntry(ErrorEntryName(jobIndex));
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(message.length);
+            entry.setCompressedSize(message.length);
+            CRC32 crc = new CRC32();
+            crc.update(message);
+            entry.setCrc(crc.getValue());
+            try {
+                synchronized (this) {
+                    zipOut.putNextEntry(entry);
+                    zipOut.write(message);
+                    zipOut.closeEntry();
+                    zipOut.flush();
+                }
+            } catch (IOException e) {
+                cancel();
+            }
+        }
+
+        /**
+         * Cancels the jobs which are not done yet
+         */
+        void cancel() {
+            if (!isAlive.compareAndSet(true, false)) return;
+            for (int jobIndex = 0; jobIndex<numberOfJobs; jobIndex++) {
+                if (ElastixJobQueueServlet.removeServerJob(jobIds[jobIndex])) {
+                    // Never started
+                    jobDone();
+                }
+            }
+            for (RegistrationJob job : runningJobs.values()) {
+                job.cancel();
+            }
+            ElastixJobQueueServlet.queueStateChanged();
+        }
+
+        /**
+         * Called once per job : the response is completed when all jobs are done
+         */
+        void jobDone() {
+            if (numberOfJobsDone.incrementAndGet()<numberOfJobs) return;
+            connectionCheck.cancel(false);
+            try {
+                synchronized (this) {
+                    zipOut.finish();
+                }
+            } catch (IOException e) {
+                log.accept("Could not complete batch response : "+e.getMessage());
+            }
+            synchronized (this) {
+                if (sharedWorkspace != null) {
+                    sharedWorkspace.close();
+                }
+            }
+            deleteParts(parts);
+            log.accept("Batch of jobs "+jobIds[0]+" to "+jobIds[numberOfJobs-1]+" done");
+            asyncContext.complete();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.server.ElastixJobQueueServlet.WaitingJob;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queue of the elastix jobs handled by {@link ElastixJobQueueServlet}
+ *
+ * A job is first waiting, then it is promoted as ready to be processed, and finally it is
+ * taken by the {@link ElastixServlet} when the client sends its registration request.
+ *
+ * The previous implementation (a linked list and an array list locked by a single monitor)
+ * required a linear scan for each client request. Here:
+ *  - jobs are indexed by their id : lookup is O(1)
+ *  - each waiting job gets a ticket on arrival, and a Fenwick tree over the tickets gives
+ *  its position in the queue in O(log n)
+ *  - ready jobs are kept in a concurrent map
+ *
+ * No global lock is needed, only the (tiny) position counter is synchronized.
+ *
+ * Regarding consistency: a job is counted as ready before it stops being counted as waiting,
+ * so a concurrent reader which reads the position of a job first, then the number of ready jobs,
+ * never under-estimates the number of jobs in front of it.
+ */
+public class ElastixJobQueue {
+
+    /**
+     * Waiting jobs, indexed by id
+     */
+    final Map<Long, WaitingJob> waitingJobs = new ConcurrentHashMap<>();
+
+    /**
+     * Waiting jobs, indexed by ticket : iterating over it gives the jobs in the queue order
+     */
+    final ConcurrentSkipListMap<Long, WaitingJob> waitingJobsInOrder = new ConcurrentSkipListMap<>();
+
+    /**
+     * Jobs ready to be processed, indexed by id
+     */
+    final Map<Long, WaitingJob> readyJobs = new ConcurrentHashMap<>();
+
+    final AtomicInteger numberOfWaitingJobs = new AtomicInteger(0);
+
+    final AtomicInteger numberOfReadyJobs = new AtomicInteger(0);
+
+    final PositionCounter positions = new PositionCounter();
+
+    /**
+     * Puts a new job at the end of the queue
+     * @param jobId id of the job
+     * @return the waiting job
+     */
+    public WaitingJob add(long jobId) {
+        WaitingJob wjob = new WaitingJob();
+        wjob.jobId = jobId;
+        wjob.ticket = positions.next();
+        waitingJobsInOrder.put(wjob.ticket, wjob);
+        waitingJobs.put(jobId, wjob);
+        numberOfWaitingJobs.incrementAndGet();
+        return wjob;
+    }
+
+    /**
+     * Puts new jobs at the end of the queue, as a unit : their tickets are consecutive, so
+     * no job enqueued concurrently can be inserted in between
+     * @param jobIds ids of the jobs, in the queue order
+     * @return the waiting jobs
+     */
+    public List<WaitingJob> addAll(long[] jobIds) {
+        List<WaitingJob> wjobs = new ArrayList<>(jobIds.length);
+        long firstTicket = positions.nextRange(jobIds.length);
+        for (int i = 0; i<jobIds.length; i++) {
+            WaitingJob wjob = new WaitingJob();
+            wjob.jobId = jobIds[i];
+            wjob.ticket = firstTicket+i;
+            waitingJobsInOrder.put(wjob.ticket, wjob);
+            waitingJobs.put(wjob.jobId, wjob);
+            numberOfWaitingJobs.incrementAndGet();
+            wjobs.add(wjob);
+        }
+        return wjobs;
+    }
+
+    /**
+     * @param jobId id of the job
+     * @return the waiting job with this id, or null if it is not waiting (anymore)
+     */
+    public WaitingJob getWaitingJob(long jobId) {
+        return waitingJobs.get(jobId);
+    }
+
+    /**
+     * @param wjob a waiting job
+     * @return the number of waiting jobs in front of this job
+     */
+    public int getPosition(WaitingJob wjob) {
+        return positions.countBefore(wjob.ticket);
+    }
+
+    /**
+     * Moves a waiting job to the ready jobs
+     * @param wjob job to promote
+     * @return false if the job was not waiting (already promoted or removed)
+     */
+    public boolean promote(WaitingJob wjob) {
+        if (!waitingJobs.remove(wjob.jobId, wjob)) return false;
+        // Counted as ready before not being counted as waiting anymore, see class documentation
+        readyJobs.put(wjob.jobId, wjob);
+        numberOfReadyJobs.incrementAndGet();
+        waitingJobsInOrder.remove(wjob.ticket);
+        positions.remove(wjob.ticket);
+        numberOfWaitingJobs.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes a waiting job from the queue (rejected or forgotten job)
+     * @param wjob job to remove
+     * @return false if the job was not waiting
+     */
+    public boolean removeWaitingJob(WaitingJob wjob) {
+        if (!waitingJobs.remove(wjob.jobId, wjob)) return false;
+        waitingJobsInOrder.remove(wjob.ticket);
+        positions.remove(wjob.ticket);
+        numberOfWaitingJobs.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Puts back a job taken with {@link ElastixJobQueue#takeReadyJob(long)}
+     * @param wjob job
+     */
+    public void addReadyJob(WaitingJob wjob) {
+        if (readyJobs.put(wjob.jobId, wjob)==null) numberOfReadyJobs.incrementAndGet();
+    }
+
+    /**
+     * @param wjob a job
+     * @return true if the job is ready to be processed
+     */
+    public boolean isReady(WaitingJob wjob) {
+        return readyJobs.get(wjob.jobId)==wjob;
+    }
+
+    /**
+     * Removes a ready job
+     * @param jobId id of the job
+     * @return the job, or null if no ready job has this id
+     */
+    public WaitingJob takeReadyJob(long jobId) {
+        WaitingJob wjob = readyJobs.remove(jobId);
+        if (wjob!=null) numberOfReadyJobs.decrementAndGet();
+        return wjob;
+    }
+
+    /**
+     * Removes a ready job (forgotten job)
+     * @param wjob job to remove
+     * @return false if the job was not ready
+     */
+    public boolean removeReadyJob(WaitingJob wjob) {
+        if (!readyJobs.remove(wjob.jobId, wjob)) return false;
+        numberOfReadyJobs.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return waiting jobs, in the queue order (weakly consistent view)
+     */
+    public Collection<WaitingJob> getWaitingJobs() {
+        return waitingJobsInOrder.values();
+    }
+
+    /**
+     * @return ready jobs (weakly consistent view)
+     */
+    public Collection<WaitingJob> getReadyJobs() {
+        return readyJobs.values();
+    }
+
+    public int getNumberOfWaitingJobs() {
+        return numberOfWaitingJobs.get();
+    }
+
+    public int getNumberOfReadyJobs() {
+        return numberOfReadyJobs.get();
+    }
+
+    /**
+     * Counts the tickets which are still in the queue with a Fenwick tree.
+     *
+     * Tickets are stored relative to the smallest live ticket (base): the tree
+     * is rebuilt when it is full, which keeps its size proportional to the
+     * queue length. Each operation is O(log n) (amortized for next).
+     *
+     * The tickets are handed out by the counter, and recorded in the same step : a ticket can't
+     * be recorded after a bigger one, which could have moved the base above it.
+     */
+    static class PositionCounter {
+
+        private long nextTicket = 0;
+
+        private long base = 0;
+
+        private int[] tree = new int[1025]; // 1-based, tree[0] unused
+
+        private int size() {
+            return tree.length-1;
+        }
+
+        /**
+         * @return a new ticket, after all the previous ones, counted in the queue
+         */
+        synchronized long next() {
+            return nextRange(1);
+        }
+
+        /**
+         * @param n number of tickets
+         * @return the first of n new consecutive tickets, after all the previous ones, all counted in the queue
+         */
+        synchronized long nextRange(int n) {
+            long firstTicket = nextTicket;
+            if (n<=0) return firstTicket;
+            nextTicket += n;
+            long lastTicket = nextTicket-1;
+            if (lastTicket-base>=size()) rebuild(firstTicket, lastTicket);
+            for (long ticket = firstTicket; ticket<=lastTicket; ticket++) {
+                update((int) (ticket-base)+1, 1);
+            }
+            return firstTicket;
+        }
+
+        synchronized void remove(long ticket) {
+            if ((ticket<base)||(ticket-base>=size())) return;
+            update((int) (ticket-base)+1, -1);
+        }
+
+        /**
+         * @return number of tickets still in the queue which are strictly smaller than ticket
+         */
+        synchronized int countBefore(long ticket) {
+            if (ticket<=base) return 0;
+            return prefixSum((int) Math.min(ticket-base, size()));
+        }
+
+        private void update(int index, int delta) {
+            for (int i = index; i<tree.length; i+= i & (-i)) {
+                tree[i]+=delta;
+            }
+        }
+
+        private int prefixSum(int index) {
+            int sum = 0;
+            for (int i = index; i>0; i-= i & (-i)) {
+                sum+=tree[i];
+            }
+            return sum;
+        }
+
+        /**
+         * Moves the base to the smallest live ticket (or to firstNewTicket if there is none),
+         * and grows the tree if needed in order to be able to store the new tickets
+         */
+        private void rebuild(long firstNewTicket, long lastNewTicket) {
+            int n = size();
+            int[] values = new int[n];
+            long newBase = firstNewTicket;
+            int previous = 0;
+            for (int i = 1; i<=n; i++) {
+                int current = prefixSum(i);
+                values[i-1] = current-previous;
+                previous = current;
+                if ((values[i-1]!=0)&&(base+i-1<newBase)) newBase = base+i-1;
+            }
+            int newSize = n;
+            while (lastNewTicket-newBase>=newSize/2) newSize*=2;
+            int[] newTree = new int[newSize+1];
+            for (int i = 0; i<n; i++) {
+                if (values[i]!=0) newTree[(int) (base+i-newBase)+1] = values[i];
+            }
+            // Linear time construction of the Fenwick tree
+            for (int i = 1; i<newTree.length; i++) {
+                int parent = i + (i & (-i));
+                if (parent<newTree.length) newTree[parent]+=newTree[i];
+            }
+            tree = newTree;
+            base = newBase;
+        }
+    }
+}
@@ -34,15 +34,18 @@ package ch.epfl.biop.server;
 
 import com.google.gson.Gson;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.time.LocalDateTime;
-import java.util.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 /**
  * This servlet handles a queue for all the elastix registration job. This is necessary
@@ -89,6 +92,20 @@ import java.util.stream.Collectors;
  *      - the number of tasks requested becomes too big, the estimated time to process the queue
  *      then exceeds {@link RegistrationServerConfig#maxQueueEstimatedWaitingTimeInS}. In this case,
  *      the client received a 503 error code.
+ *
+ * Long polling: instead of sleeping on its side, a client can add longpoll=true to its POST request:
+ *
+ * http://servername/elastix/startjob?id=ze_id&longpoll=true
+ *
+ * If the job cannot be started, the server keeps the request open (without holding a thread) and answers it
+ * as soon as a slot is available for this job. If nothing happens during {@link RegistrationServerConfig#maxDelayBetweenQueueUpdateRequestInS},
+ * the request is answered with the current estimated waiting time, and the client can immediately send a new request.
+ * The {@link WaitingJob#longPoll} flag tells the client that the server handled the request this way. Clients
+ * which do not ask for long polling are served as before.
+ *
+ * Server jobs: the jobs of a batch request (see {@link ElastixBatchServlet}) enter the queue together, one after
+ * the other, and so do submitted jobs (see {@link ElastixJobsServlet}). They are not polled by any client, they
+ * are started by the server when their turn comes.
  */
 
 public class ElastixJobQueueServlet extends HttpServlet {
@@ -96,18 +113,34 @@ public class ElastixJobQueueServlet extends HttpServlet {
     public static Consumer<String> log = (str) -> {};//System.out.println(ElastixJobQueueServlet.class+":"+str);
 
     /**
-     * Queue containing the job that are expected to be processed in the future
-     * this object also served as the main synchronization lock to avoid concurrency issues
+     * Queue containing the jobs that are expected to be processed in the future (waiting jobs)
+     * and the jobs that are ready to be processed (waiting time sent to the client = 0)
+     *
+     * Ready jobs are taken by the {@link ElastixServlet} when the client
+     * ask to perform the registration
+     *
+     * see {@link ElastixJobQueue} - no global lock is needed to access it
      */
-    final static LinkedList<WaitingJob> queue = new LinkedList<>();
+    final static ElastixJobQueue queue = new ElastixJobQueue();
 
     /**
-     * Queue containing the jobs that are ready to be processed (waiting time sent to the client = 0)
-     *
-     * This queue will be emptied by the {@link ElastixServlet} when the client
-     * ask to perform the registration
+     * Long poll requests which are kept open until their job is ready to be processed,
+     * indexed by job id. Whoever removes a request from this map is in charge of answering it.
+     */
+    final static Map<Long, AsyncContext> parkedRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Jobs started by the server itself (jobs of batch requests, see {@link ElastixBatchServlet}, and
+     * submitted jobs, see {@link ElastixJobsServlet}), indexed by job id. No client polls the queue
+     * for these jobs : the server starts them as soon as they can be processed. Whoever
+     * removes a job from this map is in charge of starting it (or of giving up on it).
+     */
+    final static Map<Long, Runnable> serverJobs = new ConcurrentHashMap<>();
+
+    /**
+     * Request parameter used by a client to ask for long polling
      */
-    final static ArrayList<WaitingJob> queueReadyToBeProcessed = new ArrayList<>();
+    final public static String LongPollTag = "longpoll";
 
     /**
      * If the client forget to ask for the queue state update for more than this value
@@ -122,10 +155,11 @@ public class ElastixJobQueueServlet extends HttpServlet {
     public static int maxWaitingQueueTimeInS = 120; // 2 min max waiting time, after the jobs are not processed
 
     /**
-     * Can be configured in {@link RegistrationServerConfig}
-     * Value taken to estimate the average time that takes an elastix registration job
+     * Estimates the average time that takes an elastix registration job, fed by the
+     * {@link ElastixServlet} with the measured durations of the jobs.
+     * Its initial value and its smoothing factor can be configured in {@link RegistrationServerConfig}
      */
-    public static int estimatedElastixJobProcessingTimeInMs = 3000;
+    public static ServiceTimeEstimator elastixJobDurationEstimator = new ServiceTimeEstimator(3000, 0.2);
 
     /**
      * Can be configured in {@link RegistrationServerConfig}
@@ -137,7 +171,8 @@ public class ElastixJobQueueServlet extends HttpServlet {
      * Cleaner thread - checks every {@link ElastixJobQueueServlet#cleanupTimeoutInS} whether
      * a task has not been forgotten ba the client
      *
-     * Cleans both {@link ElastixJobQueueServlet#queue} and {@link ElastixJobQueueServlet#queueReadyToBeProcessed}
+     * Cleans both waiting and ready jobs of {@link ElastixJobQueueServlet#queue}, and their staged inputs
+     * (see {@link ElastixStagingServlet})
      */
     public static Thread wall_e;
 
@@ -156,73 +191,97 @@ public class ElastixJobQueueServlet extends HttpServlet {
                     e.printStackTrace();
                 }
 
-                synchronized (queue) { // locks on the queue
-
-                    final LocalDateTime now = LocalDateTime.now();
-
-                    List<WaitingJob> jobsToRemove = queue.stream()
-                         .filter(job -> {
-                             if (job.updateTimeTarget!=null) { // If this field is not initialized, it's an early job
-                                 LocalDateTime maxDateForUpdate = job.updateTimeTarget.plusSeconds(cleanupTimeoutInS);
-                                 log.accept("Clean check job[" + job.jobId + "]: " + job.updateTimeTarget);
-                                 log.accept("Job should be updated before " + maxDateForUpdate);
-                                 log.accept("And it is " + now);
-                                 return !(now.isBefore(maxDateForUpdate));
-                             } else return false;
-                         }).collect(Collectors.toList());
-
-                    queue.removeAll(jobsToRemove);
+                final LocalDateTime now = LocalDateTime.now();
 
-                    if (jobsToRemove.size()>0) {
-                        log.accept("Number of jobs removed because of timeout : "+jobsToRemove.size());
+                int numberOfJobsRemoved = 0;
+                for (WaitingJob job : queue.getWaitingJobs()) {
+                    if (isForgotten(job, now) && queue.removeWaitingJob(job)) {
+                        ElastixStagingServlet.drop(job.jobId);
+                        numberOfJobsRemoved++;
                     }
+                }
 
-                    synchronized (queueReadyToBeProcessed) { // TODO : is it the right lock ?
-                        try {
-                            Thread.sleep(cleanupTimeoutInS * 1000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-
-                        jobsToRemove = queueReadyToBeProcessed.stream()
-                                .filter(job -> {
-                                    if (job.updateTimeTarget!=null) {
-                                    return job.updateTimeTarget.plusSeconds(cleanupTimeoutInS).isAfter(now);
-                                    } else return false;
-                                })
-                                .collect(Collectors.toList());
-
-                        queueReadyToBeProcessed.removeAll(jobsToRemove);
-
-                        if (jobsToRemove.size()>0) {
-                            log.accept("(Ready) number of jobs removed because of timeout : "+jobsToRemove.size());
-                        }
+                if (numberOfJobsRemoved>0) {
+                    log.accept("Number of jobs removed because of timeout : "+numberOfJobsRemoved);
+                }
 
+                int numberOfReadyJobsRemoved = 0;
+                for (WaitingJob job : queue.getReadyJobs()) {
+                    if (isForgotten(job, now) && queue.removeReadyJob(job)) {
+                        ElastixStagingServlet.drop(job.jobId);
+                        numberOfReadyJobsRemoved++;
                     }
                 }
 
+                if (numberOfReadyJobsRemoved>0) {
+                    log.accept("(Ready) number of jobs removed because of timeout : "+numberOfReadyJobsRemoved);
+                }
+
+                if (numberOfJobsRemoved+numberOfReadyJobsRemoved>0) {
+                    queueStateChanged();
+                }
             }
         });
+        wall_e.setName("ElastixJobQueue-Cleaner");
+        wall_e.setDaemon(true);
         wall_e.start();
     }
 
+    /**
+     * @param job waiting or ready job
+     * @param now current time
+     * @return true if the client did not send any news about its job in time
+     */
+    static boolean isForgotten(WaitingJob job, LocalDateTime now) {
+        LocalDateTime updateTimeTarget = job.updateTimeTarget;
+        if (updateTimeTarget==null) return false; // If this field is not initialized, it's an early job
+        LocalDateTime maxDateForUpdate = updateTimeTarget.plusSeconds(cleanupTimeoutInS);
+        log.accept("Clean check job[" + job.jobId + "]: " + updateTimeTarget);
+        log.accept("Job should be updated before " + maxDateForUpdate);
+        log.accept("And it is " + now);
+        return !(now.isBefore(maxDateForUpdate));
+    }
+
     /**
      * Appends configuration to this servlet
      * @param config provided configuration
      */
     public static void setConfiguration(RegistrationServerConfig config) {
         maxWaitingQueueTimeInS = config.maxQueueEstimatedWaitingTimeInS;
-        estimatedElastixJobProcessingTimeInMs = config.elastixTaskEstimatedDurationInMs;
+        elastixJobDurationEstimator = new ServiceTimeEstimator(config.elastixTaskEstimatedDurationInMs, config.elastixTaskDurationSmoothingFactor);
         maxDelayBetweenQueueUpdateRequestInS = config.maxDelayBetweenQueueUpdateRequestInS;
     }
 
+    /**
+     * Several jobs are processed in parallel, so the queue moves forward faster
+     * than the duration of a single job
+     *
+     * @return the estimated time between the start of two successive jobs of the queue
+     */
+    public static double getEstimatedQueueProgressTimePerJobInMs() {
+        return getEstimatedQueueProgressTimePerJobInMs(null);
+    }
+
+    /**
+     * Same as {@link ElastixJobQueueServlet#getEstimatedQueueProgressTimePerJobInMs()}, but with the estimated duration
+     * of the jobs with the given parameters : the jobs in front of a job are most often of the same kind (a client
+     * registering many images with the same parameters)
+     *
+     * @param parametersFingerprint fingerprint of the registration parameters, see {@link RegistrationJob#parametersFingerprint},
+     *                              null if unknown
+     * @return the estimated time between the start of two successive jobs of the queue
+     */
+    public static double getEstimatedQueueProgressTimePerJobInMs(String parametersFingerprint) {
+        double durationInMs = (parametersFingerprint == null) ? elastixJobDurationEstimator.getEstimatedDurationInMs()
+                : elastixJobDurationEstimator.getEstimatedDurationInMs(parametersFingerprint);
+        return durationInMs/Math.max(1, ElastixServlet.getNumberOfSlots());
+    }
+
     /**
      * @return the number of jobs contained in the queue
      */
     public static int getQueueSize() {
-        synchronized (queue) {
-            return queue.size();
-        }
+        return queue.getNumberOfWaitingJobs();
     }
 
     // Get method not supported
@@ -242,84 +301,266 @@ public class ElastixJobQueueServlet extends HttpServlet {
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         // Is it a new job ( = id = -1  ? ) or an old job asking for an update ?
 
-        synchronized (queue) { // only one request processed at a time - this should be fine because it's fast - also avoids cleaning of the queue while processing the request
-
-            long requestId = Long.parseLong(request.getParameter("id"));
-
-            // First : create or retrieve the referenced waiting job
-            WaitingJob wjob;
-
-            if (requestId == -1) {
-                // New job
-                log.accept("New job to enqueue:"+requestId);
-                wjob = new WaitingJob();
-                wjob.jobId = getNextJobIndex();
-                queue.add(wjob);
-            } else {
-                log.accept("Already existing job :"+requestId);
-                // Already existing job
-                // Let's try to get it, if it has not been cleaned
-                Optional<WaitingJob> j = queue.stream().filter(job -> job.jobId == requestId).findFirst();
-                if (j.isPresent()) {
-                    wjob = j.get();
-                } else {
-                    log.accept("Invalid request : job not found, maybe it does not exists or it has been cleaned, or it has already been set as ready to be processed");
+        long requestId = Long.parseLong(request.getParameter("id"));
+
+        boolean longPoll = Boolean.parseBoolean(request.getParameter(LongPollTag));
+
+        // First : create or retrieve the referenced waiting job
+        WaitingJob wjob;
+
+        if (requestId == -1) {
+            // New job
+            log.accept("New job to enqueue:"+requestId);
+            wjob = queue.add(getNextJobIndex());
+        } else {
+            log.accept("Already existing job :"+requestId);
+            // Already existing job
+            // Let's try to get it, if it has not been cleaned
+            wjob = queue.getWaitingJob(requestId);
+            if ((wjob == null)||(serverJobs.containsKey(requestId))) {
+                log.accept("Invalid request : job not found, maybe it does not exists or it has been cleaned, or it has already been set as ready to be processed");
+                response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+                return; // end of request
+            }
+        }
+
+        wjob.longPoll = longPoll;
+
+        if (!updateWaitingJob(wjob)) {
+            response.setStatus(503); // Too many requests - server temporarily unavailable
+            return;
+        }
+
+        if ((wjob.waitingTimeInMs!=0)&&(longPoll)) {
+            // The client does not want to come back later: the request is kept open
+            // until the job is ready or until maxDelayBetweenQueueUpdateRequestInS is reached
+            park(request, wjob);
+            return;
+        }
+
+        sendWaitingJob(response, wjob);
+
+    }
+
+    /**
+     * Estimates the time needed before the job can be started, and moves it to
+     * the ready jobs if it can be started right away
+     *
+     * @param wjob job to update
+     * @return false if the job has been rejected because the queue is too long, true otherwise
+     */
+    static boolean updateWaitingJob(WaitingJob wjob) {
+        int numberOfTasksWaiting = getNumberOfTasksWaiting(wjob);
+
+        if ((numberOfTasksWaiting<=0)&&((queue.promote(wjob))||(queue.isReady(wjob)))) {
+            // We can actually process the task immediately
+            // The job has been moved from the waiting jobs to the ready jobs
+            // Let's warn the client he can start : waiting time = 0
+            wjob.waitingTimeInMs = 0;
+            wjob.updateTimeTarget = LocalDateTime.now();
+        } else {
+            // Too many jobs waiting - the server cannot process the job immediately
+            numberOfTasksWaiting = Math.max(numberOfTasksWaiting, 1);
+
+            // With the formula below, the job in front of the queue is pretty active:
+            // it sends a request every 5 per cent of the estimated task duration
+            int waitingTimeInMs = (int) ((numberOfTasksWaiting-0.95)*getEstimatedQueueProgressTimePerJobInMs(wjob.parametersFingerprint));
+
+            // If the estimated woiting is above the threshold : 503 error code sent to the client
+            if (waitingTimeInMs/1000>maxWaitingQueueTimeInS) {
+                log.accept("Too many elastix job requests in elastix queue servlet - expected time exceed "+maxWaitingQueueTimeInS+" seconds");
+                queue.removeWaitingJob(wjob);
+                ElastixStagingServlet.drop(wjob.jobId);
+                numberOfRejectedRequestsFullQueue.incrementAndGet();
+                return false;
+            }
+
+            // We don't want the client to wait too long before asking for a queue state update
+            // see maxDelayBetweenQueueUpdateRequestInS in RegistrationConfigClass for an explanation
+            waitingTimeInMs = Math.min(waitingTimeInMs, maxDelayBetweenQueueUpdateRequestInS*1000);
+
+            wjob.waitingTimeInMs = waitingTimeInMs;
+
+            log.accept("Update update time");
+            wjob.updateTimeTarget = LocalDateTime.now().plusSeconds((waitingTimeInMs/1000)+1);
+
+            log.accept("Updated update time to "+wjob.updateTimeTarget);
+        }
+        return true;
+    }
+
+    /**
+     * Beware of the order : the position in the queue is read before the number of ready jobs
+     * which is read before the number of current tasks, see {@link ElastixJobQueue}
+     *
+     * @param wjob waiting job
+     * @return the number of tasks that need to be processed before the job can start, 0 or negative if it can start immediately
+     */
+    static int getNumberOfTasksWaiting(WaitingJob wjob) {
+        int position = queue.getPosition(wjob);                     // number of tasks queued (not ready)
+        int numberOfReadyJobs = queue.getNumberOfReadyJobs();       // number of tasks queued (ready)
+        return ElastixServlet.getNumberOfCurrentTasks()             // Number of tasks being effectively processed
+             - ElastixServlet.getNumberOfSlots()                  // subtract the max number of task which can be processed
+             + numberOfReadyJobs
+             + position
+             + 1;
+    }
+
+    static void sendWaitingJob(HttpServletResponse response, WaitingJob wjob) throws IOException {
+        response.setContentType("application/json");
+        // Send jsonized version of WaitingJob class
+        response.getWriter().println(new Gson().toJson(wjob));
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Keeps the request open until the job is ready to be processed or until
+     * {@link ElastixJobQueueServlet#maxDelayBetweenQueueUpdateRequestInS} is reached.
+     * No Jetty thread is held in the meantime.
+     */
+    static void park(HttpServletRequest request, WaitingJob wjob) {
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(maxDelayBetweenQueueUpdateRequestInS*1000L);
+        // The client is not forgetting its job while its request is parked
+        wjob.updateTimeTarget = LocalDateTime.now().plusSeconds(maxDelayBetweenQueueUpdateRequestInS+1);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) { }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (!parkedRequests.remove(wjob.jobId, async)) return; // Already answered
+                HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                if ((queue.getWaitingJob(wjob.jobId)!=wjob)&&(wjob.waitingTimeInMs!=0)) {
+                    // Cleaned in the meantime
                     response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
-                    return; // end of request
+                } else if ((wjob.waitingTimeInMs!=0)&&(!updateWaitingJob(wjob))) {
+                    response.setStatus(503);
+                } else {
+                    try {
+                        sendWaitingJob(response, wjob);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
+                async.complete();
             }
 
-            // Ok now let's estimate the time needed before the request can be started
-
-            int numberOfTasksWaiting =
-                    ElastixServlet.getNumberOfCurrentTasks()         // Number of tasks being effectively processed
-                    - ElastixServlet.maxNumberOfSimultaneousRequests // subtract the max number of task which can be processed
-                    + queueReadyToBeProcessed.size()                 // number of tasks queued (ready)
-                    + queue.indexOf(wjob)                            // number of tasks queued (not ready)
-                    + 1;
-
-            if (numberOfTasksWaiting<=0) {
-                // We can actually process the task immediately
-                // Move job from waiting queue to ready queue
-                queue.remove(wjob);
-                queueReadyToBeProcessed.add(wjob);
-                // Let's warn the client he can start : waiting time = 0
-                wjob.waitingTimeInMs = 0;
-                wjob.updateTimeTarget = LocalDateTime.now();
-            } else {
-                // Too many jobs waiting - the server cannot process the job immediately
-
-                // With the formula below, the job in front of the queue is pretty active:
-                // it sends a request every 5 per cent of the estimated task duration
-                int waitingTimeInMs = (int) ((numberOfTasksWaiting-0.95)*estimatedElastixJobProcessingTimeInMs);
-
-                // If the estimated woiting is above the threshold : 503 error code sent to the client
-                if (waitingTimeInMs/1000>maxWaitingQueueTimeInS) {
-                    log.accept("Too many elastix job requests in elastix queue servlet - expected time exceed "+maxWaitingQueueTimeInS+" seconds");
-                    queue.remove(wjob);
-                    numberOfRejectedRequestsFullQueue.incrementAndGet();
-                    response.setStatus(503); // Too many requests - server temporarily unavailable
-                    return;
-                }
+            @Override
+            public void onError(AsyncEvent event) {
+                parkedRequests.remove(wjob.jobId, async);
+            }
 
-                // We don't want the client to wait too long before asking for a queue state update
-                // see maxDelayBetweenQueueUpdateRequestInS in RegistrationConfigClass for an explanation
-                waitingTimeInMs = Math.min(waitingTimeInMs, maxDelayBetweenQueueUpdateRequestInS*1000);
+            @Override
+            public void onStartAsync(AsyncEvent event) { }
+        });
+        parkedRequests.put(wjob.jobId, async);
+        // A slot may have been released in the meantime
+        queueStateChanged();
+    }
 
-                wjob.waitingTimeInMs = waitingTimeInMs;
+    /**
+     * Should be called each time a slot may have been freed (end of an elastix task, jobs
+     * removed from the queue) : parked requests of jobs which can now be started are answered
+     * immediately
+     */
+    public static void queueStateChanged() {
+        if (parkedRequests.isEmpty()&&serverJobs.isEmpty()) return;
+        for (WaitingJob wjob : queue.getWaitingJobs()) {
+            if (getNumberOfTasksWaiting(wjob)>0) break; // Next jobs will have to wait as well
+            Runnable serverJob = serverJobs.remove(wjob.jobId);
+            if (serverJob!=null) {
+                // Counted as processed before not being counted as waiting anymore, see ElastixJobQueue
+                ElastixServlet.numberOfCurrentTask.incrementAndGet();
+                queue.removeWaitingJob(wjob);
+                serverJob.run(); // Submits the job, the slot is released by the job
+                continue;
+            }
+            // Clients polling by themselves keep their position
+            AsyncContext async = parkedRequests.remove(wjob.jobId);
+            if (async!=null) {
+                HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                if (updateWaitingJob(wjob)) {
+                    // Most probably ready - otherwise the client is informed of its new waiting time and asks again
+                    try {
+                        sendWaitingJob(response, wjob);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                } else {
+                    response.setStatus(503);
+                }
+                async.complete();
+            }
+        }
+    }
 
-                log.accept("Update update time");
-                wjob.updateTimeTarget = LocalDateTime.now().plusSeconds((waitingTimeInMs/1000)+1);
+    /**
+     * Admission of server jobs : they are subject to the same limit as the jobs of the clients
+     * (see {@link RegistrationServerConfig#maxQueueEstimatedWaitingTimeInS}), otherwise a big batch
+     * would make the server reject all the clients until it is processed
+     *
+     * @param numberOfJobs number of jobs which would be enqueued together
+     * @param parametersFingerprint fingerprint of the registration parameters of the jobs, null if unknown
+     * @return true if the last of these jobs would not wait longer than the limit, false if they should be rejected
+     */
+    static boolean canEnqueueServerJobs(int numberOfJobs, String parametersFingerprint) {
+        int numberOfTasksWaiting = ElastixServlet.getNumberOfCurrentTasks()
+                - ElastixServlet.getNumberOfSlots()
+                + queue.getNumberOfReadyJobs()
+                + queue.getNumberOfWaitingJobs()
+                + numberOfJobs;
+        if (numberOfTasksWaiting<=0) return true;
+        // Same estimation as for a client job, see updateWaitingJob
+        int waitingTimeInMs = (int) ((numberOfTasksWaiting-0.95)*getEstimatedQueueProgressTimePerJobInMs(parametersFingerprint));
+        if (waitingTimeInMs/1000>maxWaitingQueueTimeInS) {
+            log.accept("Too many elastix jobs - "+numberOfJobs+" server job(s) rejected, expected time exceed "+maxWaitingQueueTimeInS+" seconds");
+            numberOfRejectedRequestsFullQueue.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
 
-                log.accept("Updated update time to "+wjob.updateTimeTarget);
-            }
+    /**
+     * Enqueues server jobs as a unit, see {@link ElastixJobQueue#addAll(long[])}. Each job is run
+     * by the server once a slot is available for it : the slot is already counted in
+     * {@link ElastixServlet#getNumberOfCurrentTasks()} when the job is run, and it should be released by the job.
+     *
+     * @param jobs jobs to start, by job id (see {@link ElastixJobQueueServlet#getNextJobIndex()}), in the queue order
+     * @param parametersFingerprint fingerprint of the registration parameters of the jobs, null if unknown
+     */
+    static void enqueueServerJobs(Map<Long, Runnable> jobs, String parametersFingerprint) {
+        long[] jobIds = new long[jobs.size()];
+        int index = 0;
+        for (Map.Entry<Long, Runnable> job : jobs.entrySet()) {
+            jobIds[index++] = job.getKey();
+            serverJobs.put(job.getKey(), job.getValue());
+        }
+        for (WaitingJob wjob : queue.addAll(jobIds)) {
+            wjob.parametersFingerprint = parametersFingerprint;
+        }
+        queueStateChanged();
+    }
 
-            response.setContentType("application/json");
-            // Send jsonized version of WaitingJob class
-            response.getWriter().println(new Gson().toJson(wjob));
-            response.setStatus(HttpServletResponse.SC_OK);
+    /**
+     * Removes a server job (batch or submitted job) which has not been started yet
+     * @param jobId id of the job
+     * @return true if the job has been removed, false if it has already been started
+     */
+    static boolean removeServerJob(long jobId) {
+        if (serverJobs.remove(jobId)==null) return false;
+        WaitingJob wjob = queue.getWaitingJob(jobId);
+        if (wjob!=null) {
+            queue.removeWaitingJob(wjob);
         }
+        return true;
+    }
 
+    /**
+     * @return the number of server jobs (batch or submitted jobs) which have not been started yet
+     */
+    public static int getNumberOfServerJobsWaiting() {
+        return serverJobs.size();
     }
 
     /**
@@ -337,6 +578,12 @@ public class ElastixJobQueueServlet extends HttpServlet {
          */
         public int waitingTimeInMs;
 
+        /**
+         * True if the server handled the request as a long poll: the client
+         * does not need to wait before sending its next queue update request
+         */
+        public boolean longPoll;
+
         /**
          * Kept in the server : it's the estimated date when the client
          * should ask for a queue update state.
@@ -345,5 +592,16 @@ public class ElastixJobQueueServlet extends HttpServlet {
          * when a job has been forgotten by the client and should be cleaned
          */
         volatile transient LocalDateTime updateTimeTarget;
+
+        /**
+         * Kept in the server : arrival order of the job in the {@link ElastixJobQueue}
+         */
+        transient long ticket;
+
+        /**
+         * Kept in the server : fingerprint of the registration parameters of the job, once its inputs
+         * are known (staged inputs or server job), for the estimation of its waiting time
+         */
+        volatile transient String parametersFingerprint;
     }
 }
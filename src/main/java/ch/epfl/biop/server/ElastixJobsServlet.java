@@ -0,0 +1,670 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static ch.epfl.biop.server.ElastixServlet.*;
+import static ch.epfl.biop.server.ServletUtils.copyInputToServer;
+
+/**
+ * Servlet which decouples a registration from the http request which sends it : the client submits
+ * its job and comes back later for the result, so that the registration time is not limited by the
+ * request timeouts and no connection is held during the registration.
+ *
+ * Submission, with the same multipart content as a registration request (see {@link ElastixServlet}):
+ *
+ * POST http://servername/elastix/jobs
+ *
+ * The input files are copied on the server, the job enters the queue of the {@link ElastixJobQueueServlet}
+ * and is started by the server when its turn comes. The server answers right away (202) with the
+ * {@link JobStatus} of the job, which contains its id. If some files referenced by their hash are unknown,
+ * the server answers with {@link ElastixServlet#UnknownHashesStatus} and nothing is submitted. If there are too many
+ * pending jobs, or if the job would wait longer than {@link RegistrationServerConfig#maxQueueEstimatedWaitingTimeInS}
+ * in the queue, the server answers with a 503 error code.
+ *
+ * Status and progress of the job, as a {@link JobStatus}:
+ *
+ * GET http://servername/elastix/jobs/ze_id
+ *
+ * Result of the job, the same zip file as the one returned by the {@link ElastixServlet}:
+ *
+ * GET http://servername/elastix/jobs/ze_id/result
+ *
+ * If the job is not done yet, its status is returned with a 202 code instead. If it failed, its status
+ * is returned with a 500 code. Results are kept during {@link ElastixJobsServlet#resultTimeToLiveInS} after
+ * the end of the job, then the job is forgotten (404).
+ *
+ * A job can be cancelled, and its result deleted, with:
+ *
+ * DELETE http://servername/elastix/jobs/ze_id
+ *
+ * The statuses of many jobs can be polled in a single request, which returns an array of {@link JobStatus}
+ * (forgotten jobs are omitted):
+ *
+ * GET http://servername/elastix/jobs?ids=12,13,27&wait=5000
+ *
+ * With the optional wait parameter (in ms, capped by {@link ElastixJobQueueServlet#maxDelayBetweenQueueUpdateRequestInS}),
+ * the request is kept open until one of the jobs is over, so that a client can follow all its jobs with
+ * a single connection and without polling each job.
+ */
+public class ElastixJobsServlet extends HttpServlet {
+
+    public static Consumer<String> log = (str) -> System.out.println(ElastixJobsServlet.class+":"+str);
+
+    final public static String ResultPath = "result";
+
+    final public static String IdsTag = "ids";
+
+    final public static String WaitTag = "wait";
+
+    /**
+     * Maximal number of jobs in a status request
+     */
+    public static int maxNumberOfJobsPerStatusRequest = 1000;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, time during which a job and its result
+     * are kept once the job is over
+     */
+    public static long resultTimeToLiveInS = 3600;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, submissions are rejected (503) when
+     * so many jobs are not over yet
+     */
+    public static int maxNumberOfPendingJobs = 1000;
+
+    /**
+     * Where the results are kept, see {@link ElastixJobsServlet#setResultsLocation(String)}
+     */
+    static String resultsFolder = "src/test/resources/tmp/elastix_results/";
+
+    final static Map<Long, SubmittedJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Status requests kept open until one of their jobs is over
+     */
+    final static Set<StatusRequest> parkedStatusRequests = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Keeps track of the number of jobs submitted
+     */
+    final public static AtomicLong numberOfSubmittedJobs = new AtomicLong(0);
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    static {
+        // Expired jobs are removed regularly
+        watchdog.scheduleWithFixedDelay(ElastixJobsServlet::removeExpiredJobs, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets the folder where the results are kept. Results of a previous run are deleted : jobs
+     * are not kept across restarts
+     * @param jobsDataLocation jobs data folder of the server
+     * @throws IOException if the folder cannot be created
+     */
+    public static void setResultsLocation(String jobsDataLocation) throws IOException {
+        File folder = Paths.get(jobsDataLocation, "elastix_results").toFile();
+        if (folder.exists()) {
+            FileUtils.cleanDirectory(folder);
+        } else {
+            Files.createDirectories(folder.toPath());
+        }
+        resultsFolder = folder.getAbsolutePath()+File.separator;
+    }
+
+    public static int getNumberOfJobs() {
+        return jobs.size();
+    }
+
+    static void removeExpiredJobs() {
+        long now = System.currentTimeMillis();
+        for (SubmittedJob sjob : jobs.values()) {
+            if (sjob.isExpired(now) && jobs.remove(sjob.jobId, sjob)) {
+                log.accept("Job "+sjob.jobId+" expired");
+                sjob.deleteResult();
+                jobOver(sjob.jobId);
+            }
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if ((request.getPathInfo()!=null)&&(!request.getPathInfo().equals("/"))) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        if (getNumberOfPendingJobs()>=maxNumberOfPendingJobs) {
+            log.accept("Too many jobs submitted");
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        // The files are copied right away : the request and its parts are gone when the job starts
+        RegistrationJob job;
+        try {
+            Part numberOfTransformsPart = request.getPart(NumberOfTransformsTag);
+            if (numberOfTransformsPart == null) {
+                throw new IllegalArgumentException("no number of transforms");
+            }
+            int numberOfTransforms = Integer.parseInt(IOUtils.toString(numberOfTransformsPart.getInputStream(), StandardCharsets.UTF_8).trim());
+
+            List<String> fileTags = new ArrayList<>(Arrays.asList(FixedImageTag, MovingImageTag));
+            for (int idxTransform = 0; idxTransform < numberOfTransforms; idxTransform++) {
+                fileTags.add(TransformParameterTag(idxTransform));
+            }
+            for (String tag : fileTags) {
+                if (!ServletUtils.hasFile(request, tag)) {
+                    throw new IllegalArgumentException("missing "+tag);
+                }
+            }
+            fileTags.add(InitialTransformTag);
+
+            List<String> unknownHashes = ServletUtils.getUnknownHashes(request, fileTags, inputStore);
+            if (unknownHashes.size()>0) {
+                log.accept("Submitted job references "+unknownHashes.size()+" unknown file(s) - the client needs to send them");
+                response.setContentType("application/json");
+                response.setStatus(UnknownHashesStatus);
+                response.getWriter().println(new Gson().toJson(new UnknownHashes(unknownHashes)));
+                return;
+            }
+
+            String taskMetadata = null;
+            if (request.getPart(TaskMetadata)!=null) {
+                taskMetadata = IOUtils.toString(request.getPart(TaskMetadata).getInputStream(), StandardCharsets.UTF_8);
+            }
+
+            job = new RegistrationJob(ElastixJobQueueServlet.getNextJobIndex(), ServletUtils.getInputsSizeInBytes(request.getParts(), inputStore), numberOfTransforms, taskMetadata, new RegistrationJob.Inputs() {
+                @Override
+                public boolean hasFile(String tag) throws IOException, ServletException {
+                    return ServletUtils.hasFile(request, tag);
+                }
+
+                @Override
+                public ServletUtils.InputFile copy(String jobInputsFolder, String tag, String fileNameOut) throws IOException, ServletException {
+                    return copyInputToServer(jobInputsFolder, request, tag, fileNameOut, inputStore);
+                }
+            });
+        } catch (BlobStore.UnknownHashException e) {
+            // The file has been evicted from the store since the check above : same answer as the check
+            log.accept("Submitted job references a file removed from the store - the client needs to send it");
+            response.setContentType("application/json");
+            response.setStatus(UnknownHashesStatus);
+            response.getWriter().println(new Gson().toJson(new UnknownHashes(Collections.singletonList(e.hash))));
+            return;
+        } catch (IOException | ServletException | IllegalArgumentException | IllegalStateException e) {
+            log.accept("Invalid job submission : "+e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        // Same admission as the jobs of the clients which poll the queue, with the estimated duration of
+        // the jobs with the same parameters, which is only known once the transforms are read
+        if (!ElastixJobQueueServlet.canEnqueueServerJobs(1, job.parametersFingerprint)) {
+            job.close();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        SubmittedJob sjob = new SubmittedJob(job);
+        jobs.put(sjob.jobId, sjob);
+        numberOfSubmittedJobs.incrementAndGet();
+        log.accept("Job "+sjob.jobId+" submitted");
+
+        ElastixJobQueueServlet.enqueueServerJobs(Collections.singletonMap(sjob.jobId, () -> submit(sjob)), job.parametersFingerprint);
+
+        response.setHeader(ContentAddressedInputsHeader, Boolean.toString((inputStore!=null)&&(inputStore.isEnabled())));
+        response.setHeader("Location", request.getRequestURI().replaceAll("/$", "")+"/"+sjob.jobId);
+        sendStatus(response, HttpServletResponse.SC_ACCEPTED, sjob);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String[] path = getPath(request);
+        if (path.length==0) {
+            getStatuses(request, response);
+            return;
+        }
+        SubmittedJob sjob = getJob(path[0]);
+        if ((sjob == null)||(path.length>2)||((path.length==2)&&(!path[1].equals(ResultPath)))) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (path.length==1) {
+            sendStatus(response, HttpServletResponse.SC_OK, sjob);
+            return;
+        }
+        // Result requested
+        switch (sjob.state) {
+            case DONE:
+                File result = sjob.result;
+                if ((result == null)||(!result.exists())) {
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND); // Deleted in the meantime
+                } else {
+                    response.setHeader(ContentAddressedInputsHeader, Boolean.toString((inputStore!=null)&&(inputStore.isEnabled())));
+                    ServletUtils.sendFile(response, result, "application/zip", "registration_result.zip");
+                }
+                break;
+            case QUEUED:
+            case RUNNING:
+                sendStatus(response, HttpServletResponse.SC_ACCEPTED, sjob);
+                break;
+            default:
+                sendStatus(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, sjob);
+        }
+    }
+
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response) {
+        String[] path = getPath(request);
+        SubmittedJob sjob = (path.length==1) ? getJob(path[0]) : null;
+        if ((sjob == null)||(!jobs.remove(sjob.jobId, sjob))) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        log.accept("Job "+sjob.jobId+" deleted");
+        sjob.cancel();
+        sjob.deleteResult();
+        jobOver(sjob.jobId);
+        response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+
+    /**
+     * Sends the statuses of the jobs listed in the request, right away or once one of them is over
+     */
+    static void getStatuses(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<Long> jobIds = new ArrayList<>();
+        long waitInMs;
+        try {
+            String ids = request.getParameter(IdsTag);
+            if ((ids == null)||(ids.trim().equals(""))) {
+                throw new IllegalArgumentException("no job id");
+            }
+            for (String id : ids.split(",")) {
+                jobIds.add(Long.parseLong(id.trim()));
+            }
+            if (jobIds.size()>maxNumberOfJobsPerStatusRequest) {
+                throw new IllegalArgumentException("too many jobs");
+            }
+            waitInMs = (request.getParameter(WaitTag) == null) ? 0 : Long.parseLong(request.getParameter(WaitTag));
+        } catch (IllegalArgumentException e) {
+            log.accept("Invalid status request : "+e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        waitInMs = Math.min(waitInMs, ElastixJobQueueServlet.maxDelayBetweenQueueUpdateRequestInS * 1000L);
+        if ((waitInMs<=0)||(isAnyJobOver(jobIds))) {
+            sendStatuses(response, jobIds);
+            return;
+        }
+        // No Jetty thread is held in the meantime
+        StatusRequest statusRequest = new StatusRequest(request.startAsync(), jobIds);
+        statusRequest.async.setTimeout(waitInMs);
+        statusRequest.async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) { }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                statusRequest.answer();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                parkedStatusRequests.remove(statusRequest);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) { }
+        });
+        parkedStatusRequests.add(statusRequest);
+        // A job may be over in the meantime
+        if (isAnyJobOver(jobIds)) {
+            statusRequest.answer();
+        }
+    }
+
+    static boolean isAnyJobOver(List<Long> jobIds) {
+        for (Long jobId : jobIds) {
+            SubmittedJob sjob = jobs.get(jobId);
+            if ((sjob == null)||(sjob.isOver())) return true;
+        }
+        return false;
+    }
+
+    static void sendStatuses(HttpServletResponse response, List<Long> jobIds) throws IOException {
+        List<JobStatus> statuses = new ArrayList<>();
+        for (Long jobId : jobIds) {
+            SubmittedJob sjob = jobs.get(jobId);
+            if (sjob != null) {
+                statuses.add(sjob.getStatus());
+            }
+        }
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(new Gson().toJson(statuses));
+    }
+
+    /**
+     * Answers the parked status requests waiting for this job
+     * @param jobId id of a job which is over, or forgotten
+     */
+    static void jobOver(long jobId) {
+        if (parkedStatusRequests.isEmpty()) return;
+        for (StatusRequest statusRequest : parkedStatusRequests) {
+            if (statusRequest.jobIds.contains(jobId)) {
+                statusRequest.answer();
+            }
+        }
+    }
+
+    /**
+     * A status request kept open until one of its jobs is over
+     */
+    static class StatusRequest {
+
+        final AsyncContext async;
+
+        final List<Long> jobIds;
+
+        final AtomicBoolean answered = new AtomicBoolean(false);
+
+        StatusRequest(AsyncContext async, List<Long> jobIds) {
+            this.async = async;
+            this.jobIds = jobIds;
+        }
+
+        void answer() {
+            if (!answered.compareAndSet(false, true)) return;
+            parkedStatusRequests.remove(this);
+            try {
+                sendStatuses((HttpServletResponse) async.getResponse(), jobIds);
+            } catch (IOException e) {
+                log.accept("Could not send job statuses : "+e.getMessage());
+            }
+            async.complete();
+        }
+    }
+
+    static String[] getPath(HttpServletRequest request) {
+        String pathInfo = request.getPathInfo();
+        if ((pathInfo == null)||(pathInfo.equals("/"))) return new String[0];
+        return pathInfo.substring(1).split("/");
+    }
+
+    static SubmittedJob getJob(String id) {
+        try {
+            return jobs.get(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static int getNumberOfPendingJobs() {
+        int numberOfPendingJobs = 0;
+        for (SubmittedJob sjob : jobs.values()) {
+            if ((sjob.state == State.QUEUED)||(sjob.state == State.RUNNING)) {
+                numberOfPendingJobs++;
+            }
+        }
+        return numberOfPendingJobs;
+    }
+
+    static void sendStatus(HttpServletResponse response, int status, SubmittedJob sjob) throws IOException {
+        response.setContentType("application/json");
+        response.setStatus(status);
+        response.getWriter().println(new Gson().toJson(sjob.getStatus()));
+    }
+
+    /**
+     * Called by the queue when a slot is available for the job
+     */
+    static void submit(SubmittedJob sjob) {
+        try {
+            executor.execute(() -> run(sjob));
+        } catch (RejectedExecutionException e) {
+            // The slot is released without notifying the queue, which is already looking for the next job to start
+            numberOfCurrentTask.decrementAndGet();
+            sjob.end(State.FAILED, null, "elastix executor full");
+        }
+    }
+
+    static void run(SubmittedJob sjob) {
+        try {
+            if (!sjob.start()) return; // Cancelled
+
+            log.accept("----------- ELASTIX SUBMITTED JOB " + sjob.jobId + " START");
+
+            File result = sjob.job.getCachedResult();
+            if (result == null) {
+                result = sjob.job.run();
+            }
+
+            // Kept outside of the workspace, which is deleted or archived
+            File keptResult = new File(resultsFolder, "job_"+sjob.jobId+".zip");
+            Files.copy(result.toPath(), keptResult.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            sjob.end(State.DONE, keptResult, null);
+        } catch (Exception e) {
+            log.accept("Job "+sjob.jobId+" : "+e.getMessage());
+            sjob.end(sjob.job.cancelled ? State.CANCELLED : State.FAILED, null, e.getMessage());
+        } finally {
+            releaseSlot();
+        }
+    }
+
+    /**
+     * A submitted job, and what the client can know about it
+     */
+    static class SubmittedJob {
+
+        final long jobId;
+
+        final RegistrationJob job;
+
+        volatile State state = State.QUEUED;
+
+        volatile long startTimeInMs;
+
+        volatile long endTimeInMs;
+
+        volatile File result;
+
+        volatile String message;
+
+        SubmittedJob(RegistrationJob job) {
+            this.jobId = job.jobId;
+            this.job = job;
+        }
+
+        /**
+         * @return false if the job has been cancelled before its start
+         */
+        synchronized boolean start() {
+            if (state != State.QUEUED) return false;
+            state = State.RUNNING;
+            startTimeInMs = System.currentTimeMillis();
+            return true;
+        }
+
+        boolean isOver() {
+            return (state == State.DONE)||(state == State.FAILED)||(state == State.CANCELLED);
+        }
+
+        /**
+         * Ends the job, and deletes its workspace. A cancelled job stays cancelled
+         */
+        void end(State finalState, File result, String message) {
+            if (setEnd(finalState, result, message)) {
+                jobOver(jobId);
+            }
+        }
+
+        /**
+         * @return false if the job was already over
+         */
+        synchronized boolean setEnd(State finalState, File result, String message) {
+            if (isOver()) return false;
+            this.state = finalState;
+            this.result = result;
+            this.message = message;
+            this.endTimeInMs = System.currentTimeMillis();
+            job.close();
+            if (!jobs.containsKey(jobId)) {
+                deleteResult(); // Deleted in the meantime
+            }
+            return true;
+        }
+
+        void cancel() {
+            if (ElastixJobQueueServlet.removeServerJob(jobId)) {
+                // Never started
+                end(State.CANCELLED, null, "cancelled");
+                ElastixJobQueueServlet.queueStateChanged();
+            } else {
+                job.cancel();
+            }
+        }
+
+        void deleteResult() {
+            File result = this.result;
+            if (result != null) {
+                result.delete();
+            }
+        }
+
+        boolean isExpired(long now) {
+            return (endTimeInMs != 0)&&(now > endTimeInMs + resultTimeToLiveInS * 1000);
+        }
+
+        JobStatus getStatus() {
+            JobStatus status = new JobStatus();
+            status.jobId = jobId;
+            status.state = state;
+            status.message = message;
+            int maxDelayInMs = ElastixJobQueueServlet.maxDelayBetweenQueueUpdateRequestInS * 1000;
+            switch (state) {
+                case QUEUED:
+                    ElastixJobQueueServlet.WaitingJob wjob = ElastixJobQueueServlet.queue.getWaitingJob(jobId);
+                    int numberOfTasksWaiting = (wjob == null) ? 0 : Math.max(ElastixJobQueueServlet.getNumberOfTasksWaiting(wjob), 0);
+                    status.positionInQueue = (wjob == null) ? 0 : ElastixJobQueueServlet.queue.getPosition(wjob);
+                    status.estimatedWaitingTimeInMs = (int) (numberOfTasksWaiting * ElastixJobQueueServlet.getEstimatedQueueProgressTimePerJobInMs(job.parametersFingerprint));
+                    status.nextUpdateInMs = Math.max(100, Math.min(status.estimatedWaitingTimeInMs, maxDelayInMs));
+                    break;
+                case RUNNING:
+                    double estimatedDurationInMs = ElastixJobQueueServlet.elastixJobDurationEstimator.getEstimatedDurationInMs(job.parametersFingerprint);
+                    status.runningTimeInMs = System.currentTimeMillis() - startTimeInMs;
+                    status.progress = Math.min(0.99, status.runningTimeInMs / Math.max(1, estimatedDurationInMs));
+                    status.nextUpdateInMs = (int) Math.max(100, Math.min(estimatedDurationInMs - status.runningTimeInMs, maxDelayInMs));
+                    break;
+                default:
+                    status.runningTimeInMs = (startTimeInMs == 0) ? 0 : endTimeInMs - startTimeInMs;
+                    status.progress = (state == State.DONE) ? 1 : 0;
+                    status.expiresInS = Math.max(0, (endTimeInMs + resultTimeToLiveInS * 1000 - System.currentTimeMillis())/1000);
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Status of a submitted job, sent to the client
+     */
+    public static class JobStatus {
+
+        public long jobId;
+
+        public State state;
+
+        /**
+         * Number of jobs in front of this one in the queue, when it is queued
+         */
+        public int positionInQueue;
+
+        public int estimatedWaitingTimeInMs;
+
+        public long runningTimeInMs;
+
+        /**
+         * Between 0 and 1, estimated from the duration of the previous similar jobs while the job runs
+         */
+        public double progress;
+
+        /**
+         * When the client should ask again for the status of a job which is not over, 0 otherwise
+         */
+        public int nextUpdateInMs;
+
+        /**
+         * Once the job is over, time left before the job and its result are forgotten by the server
+         */
+        public long expiresInS;
+
+        /**
+         * Why the job failed, if it failed
+         */
+        public String message;
+    }
+}
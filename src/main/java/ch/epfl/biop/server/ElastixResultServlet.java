@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Servlet which returns the result of a registration which has already been performed, without going
+ * through the queue:
+ *
+ * http://servername/elastix/result?key=ze_key
+ *
+ * where ze_key is the digest of the registration inputs, see {@link ElastixServlet#getResultKey}
+ *
+ * If the result is kept in {@link ElastixServlet#resultCache}, it is sent back as a zip file (like
+ * the {@link ElastixServlet} does), otherwise a 404 error code is returned and the client
+ * should enqueue its registration as usual
+ *
+ */
+public class ElastixResultServlet extends HttpServlet {
+
+    public static Consumer<String> log = (str) -> {};//System.out.println(ElastixResultServlet.class+":"+str);
+
+    final public static String ResultKeyTag = "key";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String key = request.getParameter(ResultKeyTag);
+        if (!BlobStore.isValidHash(key)) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        File result = (ElastixServlet.resultCache == null) ? null : ElastixServlet.resultCache.get(key);
+        if (result == null) {
+            log.accept("No result for key "+key);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        log.accept("Result found for key "+key);
+        ElastixServlet.resultCacheHits.incrementAndGet();
+        ServletUtils.sendFile(response, result, "application/zip", "registration_result.zip");
+    }
+}
@@ -32,11 +32,9 @@
  */
 package ch.epfl.biop.server;
 
-import ch.epfl.biop.wrappers.elastix.DefaultElastixTask;
-import ch.epfl.biop.wrappers.elastix.ElastixTask;
-import ch.epfl.biop.wrappers.elastix.ElastixTaskSettings;
-import org.apache.commons.io.FileUtils;
+import com.google.gson.Gson;
 import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
 
 import javax.servlet.*;
@@ -45,20 +43,25 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 import java.io.*;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.Optional;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.Deflater;
 
-import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
+import static ch.epfl.biop.server.ServletUtils.copyInputToServer;
 
 /**
  * Servlet which processes an Elastix task.
@@ -66,7 +69,7 @@ import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
  * The client has to go through the queueing process handled by {@link ElastixJobQueueServlet}
  * before becoming a valid request for {@link ElastixServlet}.
  *
- * The server checks thanks to its id whether the request is valid (is it in the {@link ElastixJobQueueServlet#queueReadyToBeProcessed} ?)
+ * The server checks thanks to its id whether the request is valid (is it one of the ready jobs of {@link ElastixJobQueueServlet#queue} ?)
  *
  * The client then sends a MultiPart request which contains:
  * - the task metadata (optional) as text
@@ -74,6 +77,11 @@ import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
  * - the moving image (file)
  * - the elastix transformation parameter file (text file)
  *
+ * Instead of a file, the client can send a reference (SHA-256 hash) to a file already sent before,
+ * see {@link ServletUtils#ContentHashSuffix}. If the server does not know the hash (anymore), it answers
+ * with a {@link ElastixServlet#UnknownHashesStatus} status and the client needs to send its request again with
+ * the files. The job stays ready to be processed in the meantime.
+ *
  * The server executes locally on the server this elastix task and returns the resulting transformation file
  *
  * If some metadata where sent, the input images, the metadata and the resulting transformation are
@@ -81,7 +89,15 @@ import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
  *
  * Otherwise all data are deleted.
  *
- * Note : all jobs are performed on a single thread
+ * If an identical registration (same inputs, see {@link ElastixServlet#getResultKey}) is already being processed,
+ * the request waits for its result and releases its slot : elastix is run only once.
+ *
+ * A registration is cancelled, and its elastix process killed, when the request times out or when the
+ * client disconnects (unless identical requests wait for its result). Its slot is released once the
+ * process is gone.
+ *
+ * Note : the jobs are processed by a shared pool of threads ({@link ElastixServlet#executor}), the response being
+ * sent asynchronously : no jetty thread is held during the registration
  *
  */
 
@@ -108,6 +124,55 @@ public class ElastixServlet extends HttpServlet{
     final public static String InitialTransformTag = "initialTransform";
     final public static String NumberOfTransformsTag = "numberOfTransforms";
 
+    /**
+     * Content-addressed store of the input files (images and parameter files) sent by the clients.
+     * Clients can send the hash of a file instead of the file itself, see {@link ServletUtils#ContentHashSuffix}.
+     * The store size can be configured in {@link RegistrationServerConfig}
+     */
+    public static BlobStore inputStore;
+
+    /**
+     * Results of the registrations already performed, keyed by the digest of their inputs (see {@link ElastixServlet#getResultKey}).
+     * Its size and the time the results are kept can be configured in {@link RegistrationServerConfig}
+     */
+    public static BlobStore resultCache;
+
+    /**
+     * Number of registration requests answered with a result from {@link ElastixServlet#resultCache}
+     */
+    final public static AtomicLong resultCacheHits = new AtomicLong(0);
+
+    /**
+     * Number of registration requests which had to be computed
+     */
+    final public static AtomicLong resultCacheMisses = new AtomicLong(0);
+
+    /**
+     * Registrations currently computed, keyed by the digest of their inputs (see {@link ElastixServlet#getResultKey}).
+     * A request identical to a registration in progress waits for its result instead of running elastix again
+     */
+    final static Map<String, InFlightRegistration> inFlightRegistrations = new ConcurrentHashMap<>();
+
+    /**
+     * Number of registration requests answered with the result of an identical registration in progress
+     */
+    final public static AtomicLong coalescedRequests = new AtomicLong(0);
+
+    public static int getNumberOfInFlightRegistrations() {
+        return inFlightRegistrations.size();
+    }
+
+    /**
+     * Response header telling whether the server accepts files referenced by their hash
+     */
+    final public static String ContentAddressedInputsHeader = "X-Content-Addressed-Inputs";
+
+    /**
+     * Status returned when the request references files by a hash unknown to the server:
+     * the client should send its request again with the files, see {@link UnknownHashes}
+     */
+    final public static int UnknownHashesStatus = HttpServletResponse.SC_CONFLICT;
+
     /**
      * Can be configured in {@link RegistrationServerConfig}
      */
@@ -118,6 +183,42 @@ public class ElastixServlet extends HttpServlet{
      */
     public static int timeOut = 50000;
 
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, if true the result is zipped directly
+     * into the response, otherwise it is zipped into a file which is then sent
+     */
+    public static boolean streamResults = true;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, compression level of the zipped results
+     */
+    public static int resultCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, if true the results are zipped without compression
+     */
+    public static boolean storeResultsUncompressed = false;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, elastix executable file
+     */
+    public static File elastixExe = new File("elastix");
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, how often the server checks
+     * whether the clients of the running registrations are still connected
+     */
+    public static int clientConnectionCheckIntervalInMs = 2000;
+
+    /**
+     * Checks the connection of the clients during the registrations
+     */
+    final static ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ElastixServlet-Watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * Several successive transformations can exist in an elastix registration job
      * this function serves to generate the tags for the multipart request retrieval
@@ -145,6 +246,158 @@ public class ElastixServlet extends HttpServlet{
         }
     }
 
+    /**
+     * @param jobsDataLocation param given by the server config
+     * @param maxSizeInBytes maximal size of the files kept in the store
+     * @throws IOException if the store folder cannot be created
+     */
+    public static void setInputStore(String jobsDataLocation, long maxSizeInBytes) throws IOException {
+        inputStore = new BlobStore(Paths.get(jobsDataLocation, "blobs").toString(), maxSizeInBytes);
+    }
+
+    /**
+     * @param jobsDataLocation param given by the server config
+     * @param maxSizeInBytes maximal size of the results kept in the cache
+     * @param timeToLiveInS time during which a result is kept
+     * @throws IOException if the cache folder cannot be created
+     */
+    public static void setResultCache(String jobsDataLocation, long maxSizeInBytes, long timeToLiveInS) throws IOException {
+        resultCache = new BlobStore(Paths.get(jobsDataLocation, "results").toString(), maxSizeInBytes, timeToLiveInS);
+    }
+
+    /**
+     * Digest of all the inputs of a registration : two requests with the same key give the same result.
+     * Used by the server and by the client, see {@link ElastixResultServlet}
+     *
+     * @param fixedImageHash SHA-256 hex string of the fixed image
+     * @param movingImageHash SHA-256 hex string of the moving image
+     * @param initialTransformHash SHA-256 hex string of the initial transform file, null if there is none
+     * @param transformParameterHashes SHA-256 hex strings of the registration parameter files, in order
+     * @return a SHA-256 hex string identifying the registration
+     */
+    public static String getResultKey(String fixedImageHash, String movingImageHash, String initialTransformHash, List<String> transformParameterHashes) {
+        List<String> inputs = new ArrayList<>();
+        inputs.add(FixedImageTag+"="+fixedImageHash);
+        inputs.add(MovingImageTag+"="+movingImageHash);
+        inputs.add(InitialTransformTag+"="+initialTransformHash);
+        for (int idxTransform = 0; idxTransform < transformParameterHashes.size(); idxTransform++) {
+            inputs.add(TransformParameterTag(idxTransform)+"="+transformParameterHashes.get(idxTransform));
+        }
+        return ServletUtils.digest(inputs);
+    }
+
+    /**
+     * Deletes the job folders in the background, see {@link ElastixServlet#setCleaner}
+     */
+    static FolderCleaner cleaner = new FolderCleaner(32);
+
+    /**
+     * Replaces the cleaner of the job folders. The folders already submitted to the previous cleaner are still deleted
+     * @param batchSize maximal number of folders deleted in a row
+     */
+    public static void setCleaner(int batchSize) {
+        FolderCleaner previous = cleaner;
+        cleaner = new FolderCleaner(batchSize);
+        previous.shutdown();
+    }
+
+    public static FolderCleaner getCleaner() {
+        return cleaner;
+    }
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, provides the job folders
+     */
+    public static WorkspaceProvider workspaces = new WorkspaceProvider(ElastixServlet.cleaner);
+
+    /**
+     * Archives the jobs data in the background, see {@link ElastixServlet#setArchiver}
+     */
+    static JobArchiver archiver = new JobArchiver(1, 64);
+
+    /**
+     * Replaces the archiver of the jobs data. The jobs already submitted to the previous archiver are still archived
+     * @param nThreads number of jobs archived at the same time
+     * @param queueCapacity number of jobs which can wait to be archived
+     */
+    public static void setArchiver(int nThreads, int queueCapacity) {
+        JobArchiver previous = archiver;
+        archiver = new JobArchiver(nThreads, queueCapacity);
+        previous.shutdown();
+    }
+
+    public static JobArchiver getArchiver() {
+        return archiver;
+    }
+
+    /**
+     * Shared pool processing the elastix jobs, see {@link ElastixServlet#setExecutor}
+     */
+    static ThreadPoolExecutor executor = newExecutor(1, 16);
+
+    /**
+     * Replaces the pool processing the elastix jobs. The jobs already submitted to the
+     * previous pool are still processed
+     * @param nThreads number of jobs processed at the same time, typically {@link ElastixServlet#maxNumberOfSimultaneousRequests}
+     * @param queueCapacity number of jobs which can wait for a thread, jobs submitted beyond are rejected with a 503 error code
+     */
+    public static void setExecutor(int nThreads, int queueCapacity) {
+        ThreadPoolExecutor previous = executor;
+        executor = newExecutor(nThreads, queueCapacity);
+        previous.shutdown();
+    }
+
+    /**
+     * Resizes the pool processing the elastix jobs, without replacing it : used when the
+     * number of slots changes while the server is running, see {@link FederationServlet}
+     * @param nThreads number of jobs processed at the same time
+     */
+    static synchronized void setNumberOfExecutorThreads(int nThreads) {
+        nThreads = Math.max(1, nThreads);
+        // The core size can not be bigger than the max size, at any time
+        if (nThreads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(nThreads);
+            executor.setCorePoolSize(nThreads);
+        } else {
+            executor.setCorePoolSize(nThreads);
+            executor.setMaximumPoolSize(nThreads);
+        }
+    }
+
+    /**
+     * @return the number of elastix tasks which can be processed at the same time, including
+     * the tasks sent to workers if this server is a coordinator
+     */
+    public static int getNumberOfSlots() {
+        return maxNumberOfSimultaneousRequests + (FederationServlet.acceptWorkers ? FederationServlet.getNumberOfWorkerSlots() : 0);
+    }
+
+    static ThreadPoolExecutor newExecutor(int nThreads, int queueCapacity) {
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        return new ThreadPoolExecutor(nThreads, nThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ElastixServlet-Worker-"+threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @return number of elastix jobs waiting for a thread of the pool
+     */
+    public static int getExecutorQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of elastix jobs being processed by the pool
+     */
+    public static int getExecutorActiveCount() {
+        return executor.getActiveCount();
+    }
+
     /**
      * Atomic integer to keep track of the number of currently processed tasks
      */
@@ -154,6 +407,15 @@ public class ElastixServlet extends HttpServlet{
         return numberOfCurrentTask.get();
     }
 
+    /**
+     * Notifies that a task is not processed anymore. The queue is informed
+     * in order to answer immediately the clients waiting for a free slot
+     */
+    static void releaseSlot() {
+        numberOfCurrentTask.decrementAndGet();
+        ElastixJobQueueServlet.queueStateChanged();
+    }
+
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         response.setContentType("application/json");
         response.setStatus(HttpServletResponse.SC_OK);
@@ -171,229 +433,440 @@ public class ElastixServlet extends HttpServlet{
         // Flag which indicates whether the job has been / should be cancelled
         final AtomicBoolean isAlive = new AtomicBoolean(true);
 
+        // Registration computed by this request, which other identical requests may be waiting for
+        final AtomicReference<InFlightRegistration> ownRegistration = new AtomicReference<>();
+
+        // Job of this request, its elastix process is killed if the job is cancelled
+        final AtomicReference<RegistrationJob> currentJob = new AtomicReference<>();
+
         // Notify that we're processing a task
         numberOfCurrentTask.getAndIncrement();
 
-        // Not sure whether it's useful to put it into a Runnable...
+        // The multipart request is read now, by the jetty thread (the queue limits the number of simultaneous uploads anyway).
+        // Jetty deletes the parts at the end of the dispatch, even if the request is processed asynchronously : the
+        // parts are thus detached from the request, and deleted once the task is done
+        // A request which is not multipart relies on inputs staged while the job was waiting, see ElastixStagingServlet
+        final boolean usesStagedInputs = (request.getContentType()==null)||(!request.getContentType().startsWith("multipart/"));
+        final Collection<Part> parts;
+        try {
+            if (usesStagedInputs) {
+                parts = Collections.emptyList();
+            } else {
+                parts = request.getParts();
+                request.removeAttribute(Request.MULTIPARTS);
+            }
+        } catch (IOException | ServletException | IllegalStateException e) {
+            log.accept("Could not read registration request : "+e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            releaseSlot();
+            return;
+        }
+
+        // The response is sent asynchronously : no jetty thread is held during the registration
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeOut);
+
+        final AtomicBoolean isCompleted = new AtomicBoolean(false);
+        final Runnable completeResponse = () -> {
+            if (isCompleted.compareAndSet(false, true)) {
+                asyncContext.complete();
+            }
+        };
+
+        // Flag set when the response is not completed at the end of the task, but later on
+        final AtomicBoolean answeredLater = new AtomicBoolean(false);
+
+        final AtomicReference<Future<?>> future = new AtomicReference<>();
+
+        // Set by the worker thread when it starts the job, or by the cancellation if the job never started :
+        // whoever sets it first is in charge of releasing the slot and deleting the parts
+        final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+        // Cancels the job : the worker thread releases the slot once the elastix process is gone
+        final Runnable cancelJob = () -> {
+            isAlive.set(false);
+            if (isStarted.compareAndSet(false, true)) {
+                // Still waiting for a thread of the pool : it will never run
+                if (future.get()!=null) {
+                    future.get().cancel(false);
+                }
+                releaseSlot();
+                deleteParts(parts);
+                return;
+            }
+            if (currentJob.get()!=null) {
+                currentJob.get().cancel();
+            }
+            if (future.get()!=null) {
+                future.get().cancel(true);
+            }
+        };
+
         Runnable taskToPerform = () -> {
             try {
 
-                Instant start = Instant.now();
-
                 if (request.getParameter("id")==null) {
                     log.accept("Registration job has no id - this request will not be processed");
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    numberOfCurrentTask.decrementAndGet();
+                    releaseSlot();
                     return;
                 }
 
                 int currentJobId = Integer.parseInt(request.getParameter("id"));
 
-                synchronized (ElastixJobQueueServlet.queue) {
-                    Optional<ElastixJobQueueServlet.WaitingJob> job = ElastixJobQueueServlet.queueReadyToBeProcessed.stream()
-                            .filter(j -> j.jobId == currentJobId).findFirst();
-                    if (job.isPresent()) {
-                        // Ok - it's a valid job - let's remove it from the ready queue
-                        ElastixJobQueueServlet.queueReadyToBeProcessed.remove(job.get());
-                    } else {
-                        log.accept("Job "+currentJobId+" has not been queued before - this request will not be processed");
-                        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                        numberOfCurrentTask.decrementAndGet();
-                        return;
-                    }
+                ElastixJobQueueServlet.WaitingJob readyJob = ElastixJobQueueServlet.queue.takeReadyJob(currentJobId);
+                if (readyJob==null) {
+                    log.accept("Job "+currentJobId+" has not been queued before - this request will not be processed");
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    releaseSlot();
+                    return;
                 }
+                // Ok - it's a valid job - it has been removed from the ready jobs
 
                 synchronized (ElastixServlet.class) {
-                    if (numberOfCurrentTask.get()>maxNumberOfSimultaneousRequests) {
+                    if (numberOfCurrentTask.get()>getNumberOfSlots()) {
                         log.accept("Too many elastix requests in elastix servlet");
                         response.setStatus(503); // Too many requests - server temporarily unavailable - this should not happen with the queueing system however ...
-                        numberOfCurrentTask.decrementAndGet();
+                        ElastixStagingServlet.drop(currentJobId);
+                        releaseSlot();
                         return;
                     }
                 }
 
-                log.accept("----------- ELASTIX JOB " + currentJobId + " START");
+                // Have the inputs been sent while the job was waiting in the queue ?
+                RegistrationJob job = ElastixStagingServlet.take(currentJobId);
+
+                if (job == null) {
+                    if (usesStagedInputs) {
+                        log.accept("Job "+currentJobId+" has no staged inputs - the client needs to send them");
+                        // The job is still ready to be processed : the client will send again its request with the files
+                        readyJob.updateTimeTarget = LocalDateTime.now();
+                        ElastixJobQueueServlet.queue.addReadyJob(readyJob);
+                        response.setStatus(ElastixStagingServlet.NoStagedInputsStatus);
+                        releaseSlot();
+                        return;
+                    }
+
+                    // Retrieves the number of transforms in the request - get their number first
+                    Part numberOfTransformsPart = request.getPart(NumberOfTransformsTag);
+                    String strNTransforms = IOUtils.toString(numberOfTransformsPart.getInputStream(), StandardCharsets.UTF_8.name());
+                    int numberOfTransforms = new Integer(strNTransforms);
+
+                    // Are all files referenced by their hash known by the server ?
+                    List<String> fileTags = new ArrayList<>(Arrays.asList(FixedImageTag, MovingImageTag, InitialTransformTag));
+                    for (int idxTransform = 0; idxTransform < numberOfTransforms; idxTransform++) {
+                        fileTags.add(TransformParameterTag(idxTransform));
+                    }
+                    List<String> unknownHashes = ServletUtils.getUnknownHashes(request, fileTags, inputStore);
+                    if (unknownHashes.size()>0) {
+                        log.accept("Job "+currentJobId+" references "+unknownHashes.size()+" unknown file(s) - the client needs to send them");
+                        // The job is still ready to be processed : the client will send again its request with the files
+                        readyJob.updateTimeTarget = LocalDateTime.now();
+                        ElastixJobQueueServlet.queue.addReadyJob(readyJob);
+                        response.setContentType("application/json");
+                        response.setStatus(UnknownHashesStatus);
+                        response.getWriter().println(new Gson().toJson(new UnknownHashes(unknownHashes)));
+                        releaseSlot();
+                        return;
+                    }
 
-                ElastixTaskSettings settings = new ElastixTaskSettings();
-                settings.singleThread(); //
+                    String taskMetadata = null;
 
-                String taskMetadata = null;
+                    // --- Task Info
+                    if (request.getPart(TaskMetadata)!=null) {
+                        InputStream taskInfoStream = request.getPart(TaskMetadata).getInputStream();
+                        taskMetadata = IOUtils.toString(taskInfoStream, StandardCharsets.UTF_8);
+                    }
 
-                // --- Task Info
-                if (request.getPart(TaskMetadata)!=null) {
-                    InputStream taskInfoStream = request.getPart(TaskMetadata).getInputStream();
-                    taskMetadata = IOUtils.toString(taskInfoStream, StandardCharsets.UTF_8);
+                    // Prepare temp folders, in RAM if possible, and copy files to the server
+                    try {
+                        job = new RegistrationJob(currentJobId, ServletUtils.getInputsSizeInBytes(parts, inputStore), numberOfTransforms, taskMetadata, new RegistrationJob.Inputs() {
+                            @Override
+                            public boolean hasFile(String tag) throws IOException, ServletException {
+                                return ServletUtils.hasFile(request, tag);
+                            }
+
+                            @Override
+                            public ServletUtils.InputFile copy(String jobInputsFolder, String tag, String fileNameOut) throws IOException, ServletException {
+                                return copyInputToServer(jobInputsFolder, request, tag, fileNameOut, inputStore);
+                            }
+                        });
+                    } catch (BlobStore.UnknownHashException e) {
+                        // The file has been evicted from the store since the check above : same answer as the check
+                        log.accept("Job "+currentJobId+" references a file removed from the store - the client needs to send it");
+                        readyJob.updateTimeTarget = LocalDateTime.now();
+                        ElastixJobQueueServlet.queue.addReadyJob(readyJob);
+                        response.setContentType("application/json");
+                        response.setStatus(UnknownHashesStatus);
+                        response.getWriter().println(new Gson().toJson(new UnknownHashes(Collections.singletonList(e.hash))));
+                        releaseSlot();
+                        return;
+                    }
+                } else {
+                    log.accept("Job "+currentJobId+" uses the inputs staged while it was waiting in the queue");
                 }
 
+                log.accept("----------- ELASTIX JOB " + currentJobId + " START");
+
+                String taskMetadata = job.taskMetadata;
+
                 if (taskMetadata!=null) {
                     log.accept("Task Metadata = "+taskMetadata);
                 } else {
                     log.accept("No task metadata");
                 }
 
-                // Prepare temp folders
-                if (!new File(elastixJobsFolder, "job_" + currentJobId).exists()) {
-                    Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId));
-                }
-                String currentElastixJobFolder = Paths.get(elastixJobsFolder, "job_" + currentJobId).toString()+File.separator;
-                String currentElastixJobFolderInputs = currentElastixJobFolder+"input"+File.separator;
-                String currentElastixJobFolderOutputs = currentElastixJobFolder+"output"+File.separator;
-                if (!new File(currentElastixJobFolderInputs).exists()) {
-                    Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId, "input"));
+                final RegistrationJob registrationJob = job;
+                currentJob.set(registrationJob);
+                if (!isAlive.get()) {
+                    // Cancelled before the job was known by cancelJob
+                    registrationJob.cancel();
                 }
-                if (!new File(currentElastixJobFolderOutputs).exists()) {
-                    Files.createDirectory(Paths.get(elastixJobsFolder, "job_" + currentJobId, "output"));
-                }
-
-                // Copy files to server HDD and sets elastix job settings
-                String fImagePath = copyFileToServer(currentElastixJobFolderInputs, request, FixedImageTag, "fixed" );
-                settings.fixedImage(() -> fImagePath);
-
-                String mImagePath = copyFileToServer(currentElastixJobFolderInputs, request, MovingImageTag, "moving" );
-                settings.movingImage(() -> mImagePath);
-
-                // Is there an initial transform file ?
-                Part iniTransformPart = request.getPart(InitialTransformTag);
 
-                if (iniTransformPart != null) {
-                    String iniTransformPath = copyFileToServer(currentElastixJobFolderInputs, request, InitialTransformTag, "iniTransform" );
-                    settings.addInitialTransform(iniTransformPath);
+                // Has the same registration already been done ?
+                String resultKey = job.resultKey;
+                File cachedResult = job.getCachedResult();
+                if (cachedResult != null) {
+                    response.setHeader(ContentAddressedInputsHeader, Boolean.toString((inputStore!=null)&&(inputStore.isEnabled())));
+                    ServletUtils.sendFile(response, cachedResult, "application/zip", "registration_result.zip");
+                    job.close();
+                    releaseSlot();
+                    return;
                 }
 
-                // Retrieves the number of transforms in the request - get their number first
-                Part numberOfTransformsPart = request.getPart(NumberOfTransformsTag);
-                String strNTransforms = IOUtils.toString(numberOfTransformsPart.getInputStream(), StandardCharsets.UTF_8.name());
-                int numberOfTransforms = new Integer(strNTransforms);
-
-                // Gets all successive transforms and copy to server hdd
-                for (int idxTransform = 0; idxTransform < numberOfTransforms; idxTransform++) {
-                    String transformPath = copyFileToServer(currentElastixJobFolderInputs, request, TransformParameterTag(idxTransform), "transform_" + idxTransform);
-                    settings.addTransform(() -> transformPath);
+                // Is the same registration being computed right now ?
+                InFlightRegistration registration = new InFlightRegistration(resultKey);
+                InFlightRegistration inFlight = inFlightRegistrations.compute(resultKey, (key, current) -> {
+                    if (current == null) return registration;
+                    current.numberOfFollowers.incrementAndGet();
+                    return current;
+                });
+                if (inFlight != registration) {
+                    // Yes : no need to run elastix twice, this request does not need its slot anymore
+                    log.accept("Job "+currentJobId+" : identical registration in progress, waiting for its result");
+                    coalescedRequests.incrementAndGet();
+                    releaseSlot();
+                    // The response is completed when the result arrives, no worker thread is held in the meantime
+                    answeredLater.set(true);
+                    inFlight.result.whenComplete((result, error) -> {
+                        try {
+                            if (!isAlive.get()) {
+                                log.accept("Job "+currentJobId+" interrupted");
+                            } else if (error != null) {
+                                log.accept("Job "+currentJobId+" : identical registration failed ("+error.getMessage()+")");
+                                response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
+                            } else {
+                                response.setHeader(ContentAddressedInputsHeader, Boolean.toString((inputStore!=null)&&(inputStore.isEnabled())));
+                                response.setContentType("application/zip");
+                                response.addHeader("Content-Disposition", "attachment; filename=registration_result.zip");
+                                response.setContentLength(result.length);
+                                response.setStatus(Response.SC_OK);
+                                response.getOutputStream().write(result);
+                            }
+                        } catch (IOException e) {
+                            log.accept("Job "+currentJobId+" : could not send the result ("+e.getMessage()+")");
+                        } finally {
+                            registrationJob.close();
+                            completeResponse.run();
+                        }
+                    });
+                    return;
                 }
+                ownRegistration.set(registration);
+
+                try {
+                    // Kills the registration if the client is gone, unless identical requests wait for its result
+                    ScheduledFuture<?> connectionCheck = watchdog.scheduleWithFixedDelay(() -> {
+                        if ((registration.numberOfFollowers.get()==0)&&(!ServletUtils.isClientConnected(request))) {
+                            log.accept("Job "+currentJobId+" : client disconnected, cancelling the registration");
+                            cancelJob.run();
+                        }
+                    }, clientConnectionCheckIntervalInMs, clientConnectionCheckIntervalInMs, TimeUnit.MILLISECONDS);
 
-                // Where to store the result
-                String outputFolder = currentElastixJobFolderOutputs;//elastixJobsFolder + "job_" + currentJobId;
-                settings.outFolder(() -> outputFolder);
-
-                ElastixTask elastixTask = new DefaultElastixTask();
-                settings.nThreads(nThreadPerTask);
-                elastixTask.setSettings(settings);
-
-                if (isAlive.get()) { // not cancelled ?
                     try {
+                        job.runElastix(); // DOES the registration thus most of the time is spent there
+                    } finally {
+                        connectionCheck.cancel(false);
+                    }
 
-                        elastixTask.run(); // DOES the registration thus most of the time is spent there
-
-                        if (isAlive.get()) { // still not cancelled ?
-
-                            String sourceFile = outputFolder;
+                    String registrationResultFileName = "registration_result.zip";
 
-                            // Removes (unnecessary?) log files
-                            cleanLogFiles(outputFolder);
+                    // Tells the client that it can reference its files by their hash next time
+                    response.setHeader(ContentAddressedInputsHeader, Boolean.toString((inputStore!=null)&&(inputStore.isEnabled())));
 
-                            // Zip response files to send back to the client
-                            FileOutputStream fos = new FileOutputStream(currentElastixJobFolder + "res.zip");
-                            ZipOutputStream zipOut = new ZipOutputStream(fos);
-                            File fileToZip = new File(sourceFile);
+                    if (streamResults) {
+                        // Zip response files directly into the response. The identical requests which arrive from now on
+                        // will find the result in the cache, or will run their own registration
+                        boolean hasFollowers = registration.detach();
+                        boolean keepResult = hasFollowers || ((resultCache != null) && (resultCache.isEnabled()));
 
-                            ServletUtils.zipFile(fileToZip, fileToZip.getName(), zipOut);
-                            zipOut.close();
-                            fos.close();
+                        response.setStatus(Response.SC_OK);
+                        response.setContentType("application/zip");
+                        response.addHeader("Content-Disposition", "attachment; filename=" + registrationResultFileName);
 
-                            File fileResZip = new File(currentElastixJobFolder + "res.zip");
-                            String registrationResultFileName = "registration_result.zip";
+                        // If kept, the zip is also written to a file, for the cache and for the identical requests
+                        File fileResZip = job.zipResult(response.getOutputStream(), keepResult);
 
-                            // Really sends back the result
-                            FileInputStream fileInputStream = new FileInputStream(fileResZip);
-                            ServletOutputStream responseOutputStream = response.getOutputStream();
-                            int bytes;
-                            while ((bytes = fileInputStream.read()) != -1) {
-                                responseOutputStream.write(bytes);
-                            }
-                            responseOutputStream.close();
-                            fileInputStream.close();
-
-                            // Response information
-                            response.setContentType("application/zip");
-                            response.addHeader("Content-Disposition", "attachment; filename=" + registrationResultFileName);
-                            response.setContentLength((int) fileResZip.length());
-                            response.setStatus(Response.SC_OK);
-
-                            // Clean Up : let's remove the output folder because it has already been zipped
-                            ServletUtils.eraseFolder(outputFolder);
-
-                            // Should we store the job data ?
-                            if (!StatusServlet.config.storeJobsData) {
-                                // Server set to not store anything -> just delete the data
-                                ServletUtils.eraseFolder(currentElastixJobFolder);
-                            } else {
-                                // Server can store some user data, if the user agrees
-                                if (taskMetadata == null) {
-                                    // No metadata = no user agreement to store job, erase data
-                                    ServletUtils.eraseFolder(currentElastixJobFolder);
-                                } else {
-                                    // We have some metadata : the user agreed to store data
-                                    FileUtils.writeStringToFile(new File(currentElastixJobFolderInputs,"metadata.txt"), taskMetadata, Charset.defaultCharset());
-
-                                    // Zip result folder (factor 2 gained on average)
-                                    fos = new FileOutputStream(elastixJobsFolder + "job_"+currentJobId+".zip");
-                                    zipOut = new ZipOutputStream(fos);
-                                    fileToZip = new File(currentElastixJobFolder);
-
-                                    ServletUtils.zipFile(fileToZip, fileToZip.getName(), zipOut);
-                                    zipOut.close();
-                                    fos.close();
-
-                                    // and delete original result folder
-                                    ServletUtils.eraseFolder(currentElastixJobFolder);
-                                }
-                            }
-                            Instant end = Instant.now();
-                            log.accept("Job "+currentJobId+" done in "+ Duration.between(start,end).getSeconds()+" s.");
-                        } else {
-                            log.accept("Job "+currentJobId+" interrupted");
-                            ServletUtils.eraseFolder(currentElastixJobFolder);
-                        }
+                        registration.complete(fileResZip);
+                    } else {
+                        // Zip response files to send back to the client, and keeps the result for identical registration requests
+                        File fileResZip = job.zipResult(null, true);
 
-                        // Don't forget to decrement that the number of current processed jobs
-                        numberOfCurrentTask.decrementAndGet();
+                        // Shares the result with the identical requests which arrived in the meantime
+                        registration.complete(fileResZip);
 
-                    } catch (Exception e) {
-                        numberOfCurrentTask.decrementAndGet();
-                        log.accept("Error during elastix request");
-                        response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
-                        e.printStackTrace();
-                        ServletUtils.eraseFolder(currentElastixJobFolder);
+                        // Really sends back the result
+                        ServletUtils.sendFile(response, fileResZip, "application/zip", registrationResultFileName);
                     }
-                } else {
+                } catch (InterruptedException e) {
+                    // The elastix process is gone
                     log.accept("Job "+currentJobId+" interrupted");
-                    numberOfCurrentTask.decrementAndGet();
-                    ServletUtils.eraseFolder(currentElastixJobFolder);
+                } catch (Exception e) {
+                    // If elastix was running, its process is gone
+                    log.accept(isAlive.get() ? "Error during elastix request" : "Job "+currentJobId+" cancelled");
+                    response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
+                    e.printStackTrace();
+                } finally {
+                    // Archives the job data if the server stores them and the user agreed, deletes them otherwise
+                    job.close();
+                    // Don't forget to decrement that the number of current processed jobs
+                    releaseSlot();
                 }
             } catch (IOException|ServletException  e) {
                 response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
                 log.accept("Servlet Exception "+e.getMessage());
-                numberOfCurrentTask.decrementAndGet();
+                releaseSlot();
+                if (currentJob.get()!=null) {
+                    currentJob.get().close();
+                }
+            } finally {
+                // Identical requests should not wait for a registration which did not succeed
+                if (ownRegistration.get()!=null) {
+                    ownRegistration.get().abandon();
+                }
             }
         };
 
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<?> future = executor.submit(taskToPerform);
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {}
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                log.accept("Timed out. Cancelling the runnable...");
+                cancelJob.run();
+                response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
+                completeResponse.run();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                log.accept("Error during elastix request, cancelling the runnable...");
+                cancelJob.run();
+                completeResponse.run();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
 
         try {
-            future.get(timeOut, TimeUnit.MILLISECONDS);
-            log.accept("Task completed successfully");
-        } catch (InterruptedException | ExecutionException e) {
-            isAlive.set(false);
-        } catch (TimeoutException e) {
-            log.accept("Timed out. Cancelling the runnable...");
-            isAlive.set(false);
-            future.cancel(true);
+            future.set(executor.submit(() -> {
+                if (!isStarted.compareAndSet(false, true)) return; // Cancelled while waiting in the pool
+                try {
+                    taskToPerform.run();
+                } finally {
+                    deleteParts(parts);
+                    if (!answeredLater.get()) {
+                        log.accept("Task completed");
+                        completeResponse.run();
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            log.accept("Elastix executor full - this request will not be processed");
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            releaseSlot();
+            deleteParts(parts);
+            completeResponse.run();
+        }
+    }
+
+    static void deleteParts(Collection<Part> parts) {
+        for (Part part : parts) {
+            try {
+                part.delete();
+            } catch (IOException e) {
+                log.accept("Could not delete part "+part.getName()+" : "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A registration being computed, and the identical requests waiting for its result
+     */
+    static class InFlightRegistration {
+
+        final String resultKey;
+
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        /**
+         * Only modified while the registration is in {@link ElastixServlet#inFlightRegistrations}
+         */
+        final AtomicInteger numberOfFollowers = new AtomicInteger(0);
+
+        InFlightRegistration(String resultKey) {
+            this.resultKey = resultKey;
+        }
+
+        /**
+         * Removes the registration from {@link ElastixServlet#inFlightRegistrations} : no request can wait for
+         * its result anymore
+         * @return true if some requests are waiting for its result
+         */
+        boolean detach() {
+            inFlightRegistrations.remove(resultKey, this);
+            return numberOfFollowers.get()>0;
+        }
+
+        /**
+         * Sends the zipped result to the waiting requests. From now on, identical requests will
+         * be answered by {@link ElastixServlet#resultCache} or will run a new registration
+         * @param zippedResult result file, which does not need to exist after this call, null if
+         *                     it has not been kept because nobody was waiting for it
+         * @throws IOException if the result cannot be read
+         */
+        void complete(File zippedResult) throws IOException {
+            if (detach() && (zippedResult != null)) {
+                result.complete(Files.readAllBytes(zippedResult.toPath()));
+            } else {
+                result.complete(new byte[0]); // Nobody is waiting
+            }
+        }
+
+        /**
+         * Tells the waiting requests that the registration failed, if it has not been completed before
+         */
+        void abandon() {
+            inFlightRegistrations.remove(resultKey, this);
+            result.completeExceptionally(new IllegalStateException("Registration not completed"));
+        }
+    }
+
+    /**
+     * Response sent with {@link ElastixServlet#UnknownHashesStatus}
+     */
+    public static class UnknownHashes {
+
+        public List<String> unknownHashes;
+
+        public UnknownHashes(List<String> unknownHashes) {
+            this.unknownHashes = unknownHashes;
         }
-        executor.shutdown();
     }
 
-    private void cleanLogFiles(String outputFolder) {
+    static void cleanLogFiles(String outputFolder) {
         File[] allContents = new File(outputFolder).listFiles();
         if (allContents!=null) {
             for (File f : allContents) {
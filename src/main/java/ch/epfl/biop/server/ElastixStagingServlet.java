@@ -0,0 +1,338 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static ch.epfl.biop.server.ElastixServlet.*;
+import static ch.epfl.biop.server.ServletUtils.copyInputToServer;
+
+/**
+ * Servlet which receives the inputs of a registration job while the job is still waiting in the
+ * queue of the {@link ElastixJobQueueServlet}, so that the upload does not add up to the registration time:
+ *
+ * http://servername/elastix/stage?id=ze_id
+ *
+ * with the same multipart content as a registration request (see {@link ElastixServlet}). The files are
+ * copied in the workspace of the job. When the job can be started, the client sends its registration
+ * request to the {@link ElastixServlet} without any content (no multipart), and elastix starts right away
+ * on the staged files. If the staged files are not there anymore, the {@link ElastixServlet} answers with
+ * {@link ElastixStagingServlet#NoStagedInputsStatus} and the client sends its request with the files, as usual.
+ *
+ * The staged files are limited by a quota ({@link ElastixStagingServlet#maxStagedSizeInBytes}, which counts the files
+ * referenced by their hash too) and by a number of staged jobs ({@link ElastixStagingServlet#maxNumberOfStagedJobs}).
+ * Requests beyond are answered with a 507 error code : the client then simply sends its files when its job can start.
+ * The staged files are deleted if the job is removed from the queue (forgotten or rejected job).
+ */
+public class ElastixStagingServlet extends HttpServlet {
+
+    public static Consumer<String> log = (str) -> System.out.println(ElastixStagingServlet.class+":"+str);
+
+    /**
+     * Answer of the {@link ElastixServlet} to a registration request without content for a job
+     * which has no staged inputs
+     */
+    final public static int NoStagedInputsStatus = HttpServletResponse.SC_GONE;
+
+    /**
+     * Answer when the quota is exceeded (Insufficient Storage)
+     */
+    final public static int QuotaExceededStatus = 507;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, max total size of the staged requests
+     */
+    public static long maxStagedSizeInBytes = 256 * 1024 * 1024;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, max number of staged jobs, including the ones
+     * whose files are being sent
+     */
+    public static int maxNumberOfStagedJobs = 32;
+
+    final static AtomicLong stagedSizeInBytes = new AtomicLong(0);
+
+    // Entries of stagedJobs, placeholders included, kept apart to be checked and incremented atomically
+    final static AtomicInteger numberOfStagedJobsInMap = new AtomicInteger(0);
+
+    // Either a staged job, or a placeholder (null job) while its files are being sent
+    final static Map<Long, StagedJob> stagedJobs = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps track of the staged jobs, of the ones which have been used for a registration,
+     * and of the requests rejected because of the quota
+     */
+    final public static AtomicLong numberOfStagedJobs = new AtomicLong(0);
+
+    final public static AtomicLong numberOfStagedJobsUsed = new AtomicLong(0);
+
+    final public static AtomicLong numberOfRejectedStagings = new AtomicLong(0);
+
+    public static int getNumberOfStagedJobs() {
+        return stagedJobs.size();
+    }
+
+    public static long getStagedSizeInBytes() {
+        return stagedSizeInBytes.get();
+    }
+
+    // Get method not supported
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long jobId;
+        try {
+            jobId = Long.parseLong(request.getParameter("id"));
+        } catch (NumberFormatException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        ElastixJobQueueServlet.WaitingJob wjob = ElastixJobQueueServlet.queue.getWaitingJob(jobId);
+        if ((wjob == null)||(ElastixJobQueueServlet.serverJobs.containsKey(jobId))) {
+            log.accept("Job "+jobId+" is not waiting in the queue");
+            response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+            return;
+        }
+
+        long contentLength = request.getContentLengthLong();
+        if (contentLength<0) {
+            response.setStatus(HttpServletResponse.SC_LENGTH_REQUIRED);
+            return;
+        }
+
+        if (!reserveStagedJob()) {
+            log.accept("Too many staged jobs, job "+jobId+" will send its inputs later");
+            numberOfRejectedStagings.incrementAndGet();
+            response.setStatus(QuotaExceededStatus);
+            return;
+        }
+
+        // Holds the place of the job while its files are read : a concurrent staging of the same job is rejected
+        StagedJob placeholder = new StagedJob(null, 0);
+        if (stagedJobs.putIfAbsent(jobId, placeholder) != null) {
+            numberOfStagedJobsInMap.decrementAndGet();
+            log.accept("Job "+jobId+" is already staged");
+            response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+            return;
+        }
+
+        // The upload is counted first, then the files once their size is known
+        if (!reserve(contentLength)) {
+            if (stagedJobs.remove(jobId, placeholder)) numberOfStagedJobsInMap.decrementAndGet();
+            log.accept("Staging quota exceeded, job "+jobId+" will send its inputs later");
+            numberOfRejectedStagings.incrementAndGet();
+            response.setStatus(QuotaExceededStatus);
+            return;
+        }
+        long reservedSizeInBytes = contentLength;
+
+        // The client is busy sending its files : its job should not be considered as forgotten
+        wjob.updateTimeTarget = null;
+
+        RegistrationJob job = null;
+        boolean staged = false;
+        try {
+            Part numberOfTransformsPart = request.getPart(NumberOfTransformsTag);
+            if (numberOfTransformsPart == null) {
+                throw new IllegalArgumentException("no number of transforms");
+            }
+            int numberOfTransforms = Integer.parseInt(IOUtils.toString(numberOfTransformsPart.getInputStream(), StandardCharsets.UTF_8).trim());
+
+            List<String> fileTags = new ArrayList<>(Arrays.asList(FixedImageTag, MovingImageTag, InitialTransformTag));
+            for (int idxTransform = 0; idxTransform < numberOfTransforms; idxTransform++) {
+                fileTags.add(TransformParameterTag(idxTransform));
+            }
+            List<String> unknownHashes = ServletUtils.getUnknownHashes(request, fileTags, inputStore);
+            if (unknownHashes.size()>0) {
+                log.accept("Job "+jobId+" references "+unknownHashes.size()+" unknown file(s) - the client needs to send them");
+                response.setContentType("application/json");
+                response.setStatus(UnknownHashesStatus);
+                response.getWriter().println(new Gson().toJson(new UnknownHashes(unknownHashes)));
+                return;
+            }
+
+            // The files referenced by their hash are copied in the workspace too : they count in the quota
+            long inputsSizeInBytes = ServletUtils.getInputsSizeInBytes(request.getParts(), inputStore);
+            if (inputsSizeInBytes>=0) {
+                // Can't fail if the inputs are smaller than the request
+                if (!reserve(inputsSizeInBytes - reservedSizeInBytes)) {
+                    log.accept("Staging quota exceeded, job "+jobId+" will send its inputs later");
+                    numberOfRejectedStagings.incrementAndGet();
+                    response.setStatus(QuotaExceededStatus);
+                    return;
+                }
+                reservedSizeInBytes = inputsSizeInBytes;
+            }
+
+            String taskMetadata = null;
+            if (request.getPart(TaskMetadata)!=null) {
+                taskMetadata = IOUtils.toString(request.getPart(TaskMetadata).getInputStream(), StandardCharsets.UTF_8);
+            }
+
+            job = new RegistrationJob(jobId, inputsSizeInBytes, numberOfTransforms, taskMetadata, new RegistrationJob.Inputs() {
+                @Override
+                public boolean hasFile(String tag) throws IOException, ServletException {
+                    return ServletUtils.hasFile(request, tag);
+                }
+
+                @Override
+                public ServletUtils.InputFile copy(String jobInputsFolder, String tag, String fileNameOut) throws IOException, ServletException {
+                    return copyInputToServer(jobInputsFolder, request, tag, fileNameOut, inputStore);
+                }
+            });
+
+            if (!stagedJobs.replace(jobId, placeholder, new StagedJob(job, reservedSizeInBytes))) {
+                // Taken or dropped while the files were copied
+                log.accept("Job "+jobId+" has been removed while its inputs were staged");
+                response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+                return;
+            }
+            staged = true;
+        } catch (BlobStore.UnknownHashException e) {
+            // The file has been evicted from the store since the check above : same answer as the check
+            log.accept("Job "+jobId+" references a file removed from the store - the client needs to send it");
+            response.setContentType("application/json");
+            response.setStatus(UnknownHashesStatus);
+            response.getWriter().println(new Gson().toJson(new UnknownHashes(Collections.singletonList(e.hash))));
+            return;
+        } catch (IOException | ServletException | IllegalArgumentException | IllegalStateException e) {
+            log.accept("Invalid staging request for job "+jobId+" : "+e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        } finally {
+            // From now on, the client should ask for queue updates again : it may first wait for
+            // the waiting time it received before sending its files
+            wjob.updateTimeTarget = LocalDateTime.now().plusSeconds((wjob.waitingTimeInMs/1000)+1);
+            if (!staged) {
+                // Nothing staged : the placeholder, the reserved size and the files are released here
+                if (job != null) job.close();
+                stagedSizeInBytes.addAndGet(-reservedSizeInBytes);
+                if (stagedJobs.remove(jobId, placeholder)) numberOfStagedJobsInMap.decrementAndGet();
+            }
+        }
+
+        if ((ElastixJobQueueServlet.queue.getWaitingJob(jobId) != wjob)&&(!ElastixJobQueueServlet.queue.isReady(wjob))) {
+            // Removed from the queue in the meantime
+            drop(jobId);
+            response.setStatus(HttpServletResponse.SC_NOT_ACCEPTABLE);
+            return;
+        }
+
+        // The waiting time of the job can now be estimated from the jobs with the same parameters
+        wjob.parametersFingerprint = job.parametersFingerprint;
+        numberOfStagedJobs.incrementAndGet();
+        log.accept("Inputs of job "+jobId+" staged");
+        response.setHeader(ContentAddressedInputsHeader, Boolean.toString((inputStore!=null)&&(inputStore.isEnabled())));
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    static boolean reserveStagedJob() {
+        while (true) {
+            int current = numberOfStagedJobsInMap.get();
+            if (current >= maxNumberOfStagedJobs) return false;
+            if (numberOfStagedJobsInMap.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    static boolean reserve(long sizeInBytes) {
+        while (true) {
+            long current = stagedSizeInBytes.get();
+            if (current + sizeInBytes > maxStagedSizeInBytes) return false;
+            if (stagedSizeInBytes.compareAndSet(current, current + sizeInBytes)) return true;
+        }
+    }
+
+    /**
+     * Takes the staged inputs of a job, which is about to be processed
+     * @param jobId id of the job
+     * @return the job with its inputs, owned by the caller, or null if the job has no staged inputs
+     */
+    static RegistrationJob take(long jobId) {
+        StagedJob staged = stagedJobs.remove(jobId);
+        if (staged == null) return null;
+        numberOfStagedJobsInMap.decrementAndGet();
+        stagedSizeInBytes.addAndGet(-staged.sizeInBytes);
+        if (staged.job == null) return null; // Still being staged : the staging request cleans up
+        numberOfStagedJobsUsed.incrementAndGet();
+        return staged.job;
+    }
+
+    /**
+     * Deletes the staged inputs of a job, if any
+     * @param jobId id of the job
+     */
+    static void drop(long jobId) {
+        StagedJob staged = stagedJobs.remove(jobId);
+        if (staged == null) return;
+        numberOfStagedJobsInMap.decrementAndGet();
+        log.accept("Staged inputs of job "+jobId+" dropped");
+        stagedSizeInBytes.addAndGet(-staged.sizeInBytes);
+        if (staged.job != null) staged.job.close(); // Else still being staged : the staging request cleans up
+    }
+
+    static class StagedJob {
+
+        final RegistrationJob job;
+
+        final long sizeInBytes;
+
+        StagedJob(RegistrationJob job, long sizeInBytes) {
+            this.job = job;
+            this.sizeInBytes = sizeInBytes;
+        }
+    }
+}
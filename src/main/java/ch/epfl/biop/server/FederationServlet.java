@@ -0,0 +1,359 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.elastix.ElastixProcessTask;
+import ch.epfl.biop.wrappers.elastix.RemoteElastixClient;
+import ch.epfl.biop.wrappers.elastix.RemoteHttpClients;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import static ch.epfl.biop.server.ElastixServlet.watchdog;
+import static ch.epfl.biop.server.RegistrationServer.FEDERATION_WORKERS_PATH;
+
+/**
+ * Servlet which lets other registration servers (workers) register themselves to this server (the coordinator).
+ *
+ * The clients keep sending their jobs to the coordinator, which keeps a single queue: the slots of the
+ * workers are added to the slots of the coordinator (see {@link ElastixServlet#getNumberOfSlots()}), and
+ * each job which can be started is run on the coordinator if it has a free slot, or sent to the worker which
+ * has the most free slots otherwise (see {@link WorkerElastixTask}). If no slot is free, the job waits for one. The workers run these jobs as submitted jobs
+ * (see {@link ElastixJobsServlet}), and the coordinator sends back their results to the clients.
+ *
+ * A worker sends its capacity and its load regularly, as a {@link WorkerStatus}:
+ *
+ * POST http://coordinator/federation/workers
+ *
+ * A worker which does not send news during {@link FederationServlet#workerTimeOutInMs} is forgotten. The
+ * workers known by the coordinator are listed with:
+ *
+ * GET http://coordinator/federation/workers
+ *
+ * Workers are only accepted if the coordinator is configured to (see {@link RegistrationServerConfig#acceptWorkers}),
+ * and a server becomes a worker if a coordinator is set in its configuration (see {@link RegistrationServerConfig#coordinatorUrl}).
+ */
+public class FederationServlet extends HttpServlet {
+
+    public static Consumer<String> log = (str) -> System.out.println(FederationServlet.class+":"+str);
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}, false unless this server is a coordinator
+     */
+    public static boolean acceptWorkers = false;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}
+     */
+    public static int workerTimeOutInMs = 6000;
+
+    final static Map<String, Worker> workers = new ConcurrentHashMap<>();
+
+    /**
+     * Elastix tasks run by this server, while workers are accepted
+     */
+    final static AtomicInteger numberOfLocalTasks = new AtomicInteger(0);
+
+    /**
+     * Keeps track of the number of tasks sent to workers
+     */
+    final public static AtomicLong numberOfDispatchedTasks = new AtomicLong(0);
+
+    static {
+        watchdog.scheduleWithFixedDelay(FederationServlet::removeDeadWorkers, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        WorkerStatus status;
+        try {
+            status = new Gson().fromJson(IOUtils.toString(request.getInputStream(), StandardCharsets.UTF_8), WorkerStatus.class);
+        } catch (JsonParseException e) {
+            status = null;
+        }
+        if ((status == null)||(status.url == null)||(status.url.trim().equals(""))||(status.maxNumberOfSimultaneousRequests<0)) {
+            log.accept("Invalid worker status");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        String url = status.url.replaceAll("/$", "");
+        status.url = url;
+        Worker worker = workers.computeIfAbsent(url, Worker::new);
+        int previousCapacity = worker.status == null ? -1 : worker.status.maxNumberOfSimultaneousRequests;
+        worker.status = status;
+        worker.lastHeartbeatInMs = System.currentTimeMillis();
+        if (previousCapacity != status.maxNumberOfSimultaneousRequests) {
+            log.accept("Worker "+url+" : "+status.maxNumberOfSimultaneousRequests+" slots of "+status.nThreadsPerElastixTask+" threads");
+            capacityChanged();
+        }
+        slotsChanged();
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<WorkerStatus> statuses = new ArrayList<>();
+        for (Worker worker : workers.values()) {
+            statuses.add(worker.status);
+        }
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(new Gson().toJson(statuses));
+    }
+
+    static void removeDeadWorkers() {
+        long now = System.currentTimeMillis();
+        boolean removed = false;
+        for (Worker worker : workers.values()) {
+            if ((now-worker.lastHeartbeatInMs > workerTimeOutInMs)&&(workers.remove(worker.url, worker))) {
+                log.accept("Worker "+worker.url+" lost");
+                removed = true;
+            }
+        }
+        if (removed) capacityChanged();
+    }
+
+    /**
+     * The pool processing the elastix jobs follows the number of slots, and the waiting jobs
+     * may be started on the new slots
+     */
+    static void capacityChanged() {
+        ElastixServlet.setNumberOfExecutorThreads(ElastixServlet.getNumberOfSlots());
+        ElastixJobQueueServlet.queueStateChanged();
+    }
+
+    /**
+     * @return the number of slots of the workers
+     */
+    public static int getNumberOfWorkerSlots() {
+        int numberOfSlots = 0;
+        for (Worker worker : workers.values()) {
+            numberOfSlots += worker.status.maxNumberOfSimultaneousRequests;
+        }
+        return numberOfSlots;
+    }
+
+    public static int getNumberOfWorkers() {
+        return workers.size();
+    }
+
+    /**
+     * @return the number of tasks currently run by the workers for this server
+     */
+    public static int getNumberOfTasksOnWorkers() {
+        int numberOfTasks = 0;
+        for (Worker worker : workers.values()) {
+            numberOfTasks += worker.numberOfTasks.get();
+        }
+        return numberOfTasks;
+    }
+
+    /**
+     * @param elastixExe elastix executable file
+     * @param nThreads number of threads used by elastix, if run on this server
+     * @return a task which runs elastix on this server, or on a worker if workers are accepted
+     */
+    static ElastixProcessTask newElastixTask(File elastixExe, int nThreads) {
+        return acceptWorkers ? new WorkerElastixTask(elastixExe, nThreads) : new ElastixProcessTask(elastixExe, nThreads);
+    }
+
+    /**
+     * Takes a slot for a new task, on this server if it has a free slot, on the worker with the most free slots otherwise.
+     * If no slot is free, waits until one is : the task stays queued rather than overloading this server or a worker
+     * @param excludedWorkers urls of the workers which should not be chosen. Emptied when a slot had to be waited for,
+     *                        since the workers which were overloaded may have free slots by then
+     * @param isCancelled true if the task has been cancelled in the meantime
+     * @return the worker where the task should run, or null if it should run on this server
+     * @throws InterruptedException if the task is cancelled or interrupted while waiting for a slot
+     */
+    static synchronized Worker acquireSlot(Set<String> excludedWorkers, BooleanSupplier isCancelled) throws InterruptedException {
+        while (true) {
+            if (isCancelled.getAsBoolean()) {
+                throw new InterruptedException("Elastix task cancelled");
+            }
+            if (numberOfLocalTasks.get() < ElastixServlet.maxNumberOfSimultaneousRequests) {
+                numberOfLocalTasks.incrementAndGet();
+                return null;
+            }
+            Worker bestWorker = null;
+            int bestNumberOfFreeSlots = 0;
+            for (Worker worker : workers.values()) {
+                if (excludedWorkers.contains(worker.url)) continue;
+                int numberOfFreeSlots = worker.getNumberOfFreeSlots();
+                if (numberOfFreeSlots > bestNumberOfFreeSlots) {
+                    bestNumberOfFreeSlots = numberOfFreeSlots;
+                    bestWorker = worker;
+                }
+            }
+            if (bestWorker != null) {
+                bestWorker.numberOfTasks.incrementAndGet();
+                numberOfDispatchedTasks.incrementAndGet();
+                return bestWorker;
+            }
+            // Woken up by a released slot or a worker status, the timeout is there to check the cancellation
+            FederationServlet.class.wait(1000);
+            excludedWorkers.clear();
+        }
+    }
+
+    /**
+     * Releases a slot taken with {@link FederationServlet#acquireSlot(Set, BooleanSupplier)}
+     * @param worker the worker, null for this server
+     */
+    static synchronized void releaseSlot(Worker worker) {
+        if (worker == null) {
+            numberOfLocalTasks.decrementAndGet();
+        } else {
+            worker.numberOfTasks.decrementAndGet();
+        }
+        FederationServlet.class.notifyAll();
+    }
+
+    /**
+     * Wakes up the tasks waiting for a slot : the load of a worker has changed
+     */
+    static synchronized void slotsChanged() {
+        FederationServlet.class.notifyAll();
+    }
+
+    /**
+     * Forgets a worker which cannot be reached, until its next status
+     * @param worker the worker
+     */
+    static void removeWorker(Worker worker) {
+        if (workers.remove(worker.url, worker)) {
+            log.accept("Worker "+worker.url+" cannot be reached");
+            capacityChanged();
+        }
+    }
+
+    /**
+     * Makes this server a worker of a coordinator : its status is sent regularly to the coordinator
+     * @param coordinatorUrl url of the coordinator
+     * @param workerUrl url of this server, as seen by the coordinator
+     * @param periodInMs time between two status updates
+     */
+    static void startHeartbeat(String coordinatorUrl, String workerUrl, int periodInMs) {
+        String url = coordinatorUrl.replaceAll("/$", "")+FEDERATION_WORKERS_PATH;
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(periodInMs)
+                .setConnectionRequestTimeout(periodInMs)
+                .setSocketTimeout(periodInMs).build();
+        AtomicInteger lastStatusCode = new AtomicInteger(0);
+        watchdog.scheduleWithFixedDelay(() -> {
+            WorkerStatus status = new WorkerStatus();
+            status.url = workerUrl;
+            status.maxNumberOfSimultaneousRequests = ElastixServlet.maxNumberOfSimultaneousRequests;
+            status.nThreadsPerElastixTask = ElastixServlet.nThreadPerTask;
+            status.numberOfCurrentElastixTasks = ElastixServlet.getNumberOfCurrentTasks();
+            status.numberOfElastixTasksEnqueued = ElastixJobQueueServlet.getQueueSize();
+            int statusCode;
+            try {
+                HttpPost heartbeat = new HttpPost(url);
+                heartbeat.setEntity(new StringEntity(new Gson().toJson(status), ContentType.APPLICATION_JSON));
+                HttpResponse response = RemoteHttpClients.get(url, config).execute(heartbeat);
+                EntityUtils.consume(response.getEntity());
+                statusCode = response.getStatusLine().getStatusCode();
+            } catch (IOException e) {
+                statusCode = -1;
+            }
+            // Logged only when it changes
+            if (lastStatusCode.getAndSet(statusCode) != statusCode) {
+                log.accept(statusCode==200 ? "Registered to coordinator "+coordinatorUrl : "Coordinator "+coordinatorUrl+" not reachable ("+statusCode+")");
+            }
+        }, 0, periodInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Capacity and load of a worker, sent regularly to the coordinator
+     */
+    public static class WorkerStatus {
+        public String url;
+        public int maxNumberOfSimultaneousRequests;
+        public int nThreadsPerElastixTask;
+        public int numberOfCurrentElastixTasks;
+        public int numberOfElastixTasksEnqueued;
+    }
+
+    static class Worker {
+
+        final String url;
+
+        final RemoteElastixClient client;
+
+        volatile WorkerStatus status;
+
+        volatile long lastHeartbeatInMs;
+
+        /**
+         * Tasks sent by the coordinator and currently run by the worker
+         */
+        final AtomicInteger numberOfTasks = new AtomicInteger(0);
+
+        Worker(String url) {
+            this.url = url;
+            this.client = new RemoteElastixClient(url);
+        }
+
+        /**
+         * The load sent by the worker can include tasks which are not sent by the coordinator
+         */
+        int getNumberOfFreeSlots() {
+            WorkerStatus status = this.status;
+            return status.maxNumberOfSimultaneousRequests - Math.max(numberOfTasks.get(), status.numberOfCurrentElastixTasks);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Deletes the job folders in the background.
+ *
+ * Deleting a folder on a network file system can take a while, so the requests should not wait for it :
+ * a folder is first renamed into the '.trash' folder of its root (the elastix or transformix jobs folder),
+ * which is a cheap operation, and then deleted by a background thread, several folders at a time.
+ *
+ * When a root is added, what was left in its trash is deleted. {@link FolderCleaner#sweep(File)}
+ * also removes job folders which were left after a crash of the server.
+ */
+public class FolderCleaner {
+
+    public static Consumer<String> log = (str) -> System.out.println(FolderCleaner.class+":"+str);
+
+    final public static String TrashFolderName = ".trash";
+
+    final List<File> roots = new CopyOnWriteArrayList<>();
+
+    final LinkedBlockingQueue<Deletion> queue = new LinkedBlockingQueue<>();
+
+    final int batchSize;
+
+    final AtomicInteger numberOfFoldersBeingDeleted = new AtomicInteger(0);
+
+    final AtomicLong numberOfDeletedFolders = new AtomicLong(0);
+
+    final AtomicLong numberOfFailedDeletions = new AtomicLong(0);
+
+    final AtomicLong trashIndex = new AtomicLong(System.currentTimeMillis());
+
+    volatile boolean shutdown = false;
+
+    /**
+     * @param batchSize maximal number of folders deleted in a row
+     */
+    public FolderCleaner(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        Thread thread = new Thread(this::deleteLoop, "FolderCleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Folders located in this root will be moved into its trash before being deleted.
+     * What is left in the trash (crash of the server) is deleted.
+     * @param root folder containing job folders
+     * @throws IOException if the trash folder cannot be created
+     */
+    public void addRoot(File root) throws IOException {
+        File trash = new File(root, TrashFolderName);
+        Files.createDirectories(trash.toPath());
+        roots.add(root.getAbsoluteFile());
+        File[] leftovers = trash.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                queue.add(new Deletion(leftover, null));
+            }
+        }
+    }
+
+    /**
+     * Removes the job folders ('job_' prefix) of a folder. Job data which was archived is kept since it is zipped.
+     * To be called at startup, before any job is running.
+     * @param folder folder containing job folders
+     */
+    public void sweep(File folder) {
+        File[] jobFolders = folder.listFiles(file -> file.isDirectory() && file.getName().startsWith("job_"));
+        if ((jobFolders != null) && (jobFolders.length > 0)) {
+            log.accept("Removing " + jobFolders.length + " orphaned job folder(s) in " + folder.getAbsolutePath());
+            for (File jobFolder : jobFolders) {
+                delete(jobFolder);
+            }
+        }
+    }
+
+    /**
+     * Deletes a folder in the background
+     * @param folder folder to delete
+     */
+    public void delete(File folder) {
+        delete(folder, null);
+    }
+
+    /**
+     * Deletes a folder in the background
+     * @param folder folder to delete
+     * @param onDeleted called by the background thread once the folder is deleted (or could not be deleted), may be null
+     */
+    public void delete(File folder, Runnable onDeleted) {
+        File absoluteFolder = folder.getAbsoluteFile();
+        for (File root : roots) {
+            if (absoluteFolder.toPath().startsWith(root.toPath())) {
+                File trashed = new File(new File(root, TrashFolderName), absoluteFolder.getName() + "_" + trashIndex.getAndIncrement());
+                try {
+                    Files.move(absoluteFolder.toPath(), trashed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    queue.add(new Deletion(trashed, onDeleted));
+                    return;
+                } catch (IOException e) {
+                    log.accept("Could not move " + absoluteFolder + " to the trash : " + e.getMessage());
+                }
+                break;
+            }
+        }
+        // Not in a root, or could not be renamed : deleted in place
+        queue.add(new Deletion(absoluteFolder, onDeleted));
+    }
+
+    public void delete(String folder) {
+        delete(new File(folder));
+    }
+
+    void deleteLoop() {
+        List<Deletion> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                Deletion deletion = queue.poll(1, TimeUnit.SECONDS);
+                if (deletion == null) {
+                    if (shutdown) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(deletion);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            numberOfFoldersBeingDeleted.set(batch.size());
+            for (Deletion deletion : batch) {
+                try {
+                    FileUtils.deleteDirectory(deletion.folder);
+                    numberOfDeletedFolders.incrementAndGet();
+                } catch (IOException e) {
+                    log.accept("Could not delete " + deletion.folder + " : " + e.getMessage());
+                    numberOfFailedDeletions.incrementAndGet();
+                }
+                if (deletion.onDeleted != null) {
+                    try {
+                        deletion.onDeleted.run();
+                    } catch (RuntimeException e) {
+                        log.accept("Error after the deletion of " + deletion.folder + " : " + e.getMessage());
+                    }
+                }
+                numberOfFoldersBeingDeleted.decrementAndGet();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return number of folders waiting to be deleted or being deleted
+     */
+    public int getBacklog() {
+        return queue.size() + numberOfFoldersBeingDeleted.get();
+    }
+
+    public long getNumberOfDeletedFolders() {
+        return numberOfDeletedFolders.get();
+    }
+
+    public long getNumberOfFailedDeletions() {
+        return numberOfFailedDeletions.get();
+    }
+
+    /**
+     * Deletes the folders already submitted, then stops the thread
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * A folder waiting to be deleted
+     */
+    static class Deletion {
+
+        final File folder;
+
+        final Runnable onDeleted;
+
+        Deletion(File folder, Runnable onDeleted) {
+            this.folder = folder;
+            this.onDeleted = onDeleted;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Archives the data of the jobs the users agreed to store (see {@link RegistrationServerConfig#storeJobsData}),
+ * in the background : the elastix slot of a job is released without waiting for its archive.
+ *
+ * The archives are written by a bounded pool of threads. When too many jobs wait to be archived,
+ * the thread submitting a new job archives it itself : this slows down the elastix jobs instead of
+ * accumulating job folders on the disk. The same happens once the archiver is shut down : the jobs
+ * still running when the server stops are archived by their own thread instead of being dropped.
+ */
+public class JobArchiver {
+
+    public static Consumer<String> log = (str) -> System.out.println(JobArchiver.class+":"+str);
+
+    final ThreadPoolExecutor executor;
+
+    final AtomicLong numberOfArchivedJobs = new AtomicLong(0);
+
+    final AtomicLong numberOfFailedArchives = new AtomicLong(0);
+
+    /**
+     * @param nThreads number of jobs archived at the same time
+     * @param queueCapacity number of jobs which can wait to be archived
+     */
+    public JobArchiver(int nThreads, int queueCapacity) {
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(nThreads, nThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "JobArchiver-"+threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                JobArchiver::archiveInCallerThread); // Backpressure
+    }
+
+    /**
+     * Unlike {@link ThreadPoolExecutor.CallerRunsPolicy}, the archive is also written when the executor
+     * is shut down : otherwise the job folder would neither be archived nor deleted
+     */
+    static void archiveInCallerThread(Runnable archiveTask, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            log.accept("Archiver shut down, archiving the job in the calling thread");
+        }
+        archiveTask.run();
+    }
+
+    /**
+     * Writes the metadata in the input folder of the job, zips the job folder and deletes it
+     * @param workspace folder of the job, closed once archived
+     * @param metadataFile file where the metadata is written
+     * @param metadata metadata sent by the user
+     * @param archive zip file to create
+     */
+    public void archive(WorkspaceProvider.Workspace workspace, File metadataFile, String metadata, File archive) {
+        executor.execute(() -> {
+            try {
+                FileUtils.writeStringToFile(metadataFile, metadata, Charset.defaultCharset());
+
+                // Zip job folder (factor 2 gained on average)
+                try (FileOutputStream fos = new FileOutputStream(archive);
+                     ZipOutputStream zipOut = new ZipOutputStream(fos)) {
+                    File fileToZip = workspace.folder;
+                    ServletUtils.zipFile(fileToZip, fileToZip.getName(), zipOut);
+                }
+                numberOfArchivedJobs.incrementAndGet();
+            } catch (IOException e) {
+                log.accept("Could not archive "+workspace.getPath()+" : "+e.getMessage());
+                numberOfFailedArchives.incrementAndGet();
+            } finally {
+                // and delete original job folder
+                workspace.close();
+            }
+        });
+    }
+
+    /**
+     * @return number of jobs waiting to be archived or being archived
+     */
+    public int getBacklog() {
+        return executor.getQueue().size() + executor.getActiveCount();
+    }
+
+    public long getNumberOfArchivedJobs() {
+        return numberOfArchivedJobs.get();
+    }
+
+    public long getNumberOfFailedArchives() {
+        return numberOfFailedArchives.get();
+    }
+
+    /**
+     * Archives the jobs already submitted, then stops the threads
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Binary format of a set of points, much faster to write and read than the elastix text formats
+ * (input .pts file and outputpoints.txt) for large numbers of points.
+ *
+ * Little-endian : 4 bytes magic 'BPTS', int32 dimension, int32 number of points, then the
+ * float64 coordinates x0, y0, (z0), x1, ...
+ *
+ * Used by the {@link TransformixServlet} when the InputPts part has the {@link PointSetCodec#ContentType}
+ * content type (binary input), or when this content type is in the Accept header of the request (binary output).
+ */
+public class PointSetCodec {
+
+    final public static String ContentType = "application/x-biop-points";
+
+    final static byte[] Magic = {'B', 'P', 'T', 'S'};
+
+    final static int HeaderSize = 12;
+
+    final static int BufferSize = 64 * 1024;
+
+    /**
+     * Points of a given dimension, as a flat array of coordinates
+     */
+    public static class PointSet {
+        final public int dimension;
+        final public double[] coordinates;
+
+        public PointSet(int dimension, double[] coordinates) {
+            if ((dimension <= 0) || (coordinates.length % dimension != 0)) {
+                throw new IllegalArgumentException("Number of coordinates is not a multiple of the dimension " + dimension);
+            }
+            this.dimension = dimension;
+            this.coordinates = coordinates;
+        }
+
+        public int getNumberOfPoints() {
+            return coordinates.length / dimension;
+        }
+    }
+
+    public static void write(PointSet pointSet, OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(Magic).putInt(pointSet.dimension).putInt(pointSet.getNumberOfPoints());
+        for (double coordinate : pointSet.coordinates) {
+            if (buffer.remaining() < 8) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putDouble(coordinate);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+        out.flush();
+    }
+
+    /**
+     * @param in binary point set, the stream is not closed
+     * @param maxNumberOfCoordinates protects against invalid headers
+     * @return the point set
+     * @throws InvalidPointSetException if the stream is not a valid binary point set
+     * @throws IOException if the stream cannot be read
+     */
+    public static PointSet read(InputStream in, int maxNumberOfCoordinates) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] bytes = new byte[BufferSize];
+        try {
+            data.readFully(bytes, 0, HeaderSize);
+        } catch (EOFException e) {
+            throw new InvalidPointSetException("Truncated point set header");
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes, 0, HeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte b : Magic) {
+            if (header.get() != b) {
+                throw new InvalidPointSetException("Not a binary point set");
+            }
+        }
+        int dimension = header.getInt();
+        int numberOfPoints = header.getInt();
+        if ((dimension <= 0) || (numberOfPoints < 0) || ((long) dimension * numberOfPoints > maxNumberOfCoordinates)) {
+            throw new InvalidPointSetException("Invalid point set header : dimension " + dimension + ", " + numberOfPoints + " points");
+        }
+        double[] coordinates = new double[dimension * numberOfPoints];
+        int index = 0;
+        try {
+            while (index < coordinates.length) {
+                int count = Math.min(coordinates.length - index, BufferSize / 8);
+                data.readFully(bytes, 0, count * 8);
+                ByteBuffer.wrap(bytes, 0, count * 8).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(coordinates, index, count);
+                index += count;
+            }
+        } catch (EOFException e) {
+            throw new InvalidPointSetException("Truncated point set : " + index + " coordinates read out of " + coordinates.length);
+        }
+        return new PointSet(dimension, coordinates);
+    }
+
+    /**
+     * Writes the points as an elastix input points file, physical coordinates
+     */
+    public static void writePtsFile(PointSet pointSet, File file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("point\n");
+            writer.write(pointSet.getNumberOfPoints() + "\n");
+            StringBuilder line = new StringBuilder();
+            for (int i = 0; i < pointSet.coordinates.length; i += pointSet.dimension) {
+                line.setLength(0);
+                for (int d = 0; d < pointSet.dimension; d++) {
+                    line.append(d == 0 ? "" : " ").append(pointSet.coordinates[i + d]);
+                }
+                writer.write(line.append('\n').toString());
+            }
+        }
+    }
+
+    /**
+     * Reads the 'OutputPoint = [ ... ]' values of an outputpoints.txt file written by transformix
+     */
+    public static PointSet readOutputPointsFile(File file) throws IOException {
+        return readOutputPoints(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same as {@link PointSetCodec#readOutputPointsFile(File)}, for the content of an outputpoints.txt file
+     */
+    public static PointSet readOutputPoints(String content) throws IOException {
+        return readOutputPoints(Arrays.asList(content.split("\\r?\\n")));
+    }
+
+    static PointSet readOutputPoints(List<String> lines) throws IOException {
+        double[] coordinates = null;
+        int dimension = 0;
+        int index = 0;
+        for (String line : lines) {
+            int start = line.indexOf("OutputPoint = [");
+            if (start < 0) {
+                continue;
+            }
+            int end = line.indexOf(']', start);
+            String[] values = line.substring(start + "OutputPoint = [".length(), end).trim().split("\\s+");
+            if (coordinates == null) {
+                dimension = values.length;
+                coordinates = new double[lines.size() * dimension];
+            } else if (values.length != dimension) {
+                throw new IOException("Inconsistent dimension in output points");
+            }
+            for (String value : values) {
+                coordinates[index++] = Double.parseDouble(value.toLowerCase(Locale.ROOT));
+            }
+        }
+        if (coordinates == null) {
+            return new PointSet(1, new double[0]);
+        }
+        double[] result = new double[index];
+        System.arraycopy(coordinates, 0, result, 0, index);
+        return new PointSet(dimension, result);
+    }
+
+    /**
+     * Thrown when the binary points sent by a client are malformed or truncated
+     */
+    public static class InvalidPointSetException extends IOException {
+        public InvalidPointSetException(String message) {
+            super(message);
+        }
+    }
+}
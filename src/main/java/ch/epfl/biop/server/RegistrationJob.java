@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.elastix.ElastixProcessTask;
+import ch.epfl.biop.wrappers.elastix.ElastixTaskSettings;
+import org.apache.commons.io.output.TeeOutputStream;
+
+import javax.servlet.ServletException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static ch.epfl.biop.server.ElastixServlet.*;
+
+/**
+ * A registration job : its inputs are copied in its workspace when it is created, then elastix can be run,
+ * and the zipped result is kept in the workspace until the job is closed.
+ *
+ * Used by the {@link ElastixServlet}, which may also stream the zipped result to its client
+ * (see {@link RegistrationJob#zipResult(OutputStream, boolean)}), and by the server jobs, processed
+ * without a client request waiting for them (see {@link ElastixBatchServlet} and {@link ElastixJobsServlet}).
+ */
+class RegistrationJob {
+
+    public static Consumer<String> log = (str) -> System.out.println(RegistrationJob.class+":"+str);
+
+    /**
+     * Where the input files of a job come from
+     */
+    interface Inputs {
+
+        /**
+         * @param tag tag of a file, see {@link ElastixServlet}
+         * @return true if the job has this file, or a reference to this file
+         */
+        boolean hasFile(String tag) throws IOException, ServletException;
+
+        /**
+         * Copies a file of the job on the server
+         * @param jobInputsFolder input folder of the job, the file can be copied elsewhere if it is shared with other jobs
+         * @param tag tag of the file
+         * @param fileNameOut file name, without extension
+         * @return the copied file
+         */
+        ServletUtils.InputFile copy(String jobInputsFolder, String tag, String fileNameOut) throws IOException, ServletException;
+    }
+
+    final long jobId;
+
+    final WorkspaceProvider.Workspace workspace;
+
+    final String inputsFolder;
+
+    final String outputFolder;
+
+    final ElastixTaskSettings settings = new ElastixTaskSettings();
+
+    final String resultKey;
+
+    /**
+     * Identifies the kind of registration, for the estimation of the task duration
+     */
+    final String parametersFingerprint;
+
+    final String taskMetadata;
+
+    volatile ElastixProcessTask elastixTask;
+
+    volatile boolean cancelled = false;
+
+    /**
+     * True once elastix has been run successfully : the job data can be archived
+     */
+    boolean done = false;
+
+    /**
+     * Creates the job, its workspace and copies its input files
+     * @param jobId id of the job, see {@link ElastixJobQueueServlet#getNextJobIndex()}
+     * @param sizeInBytes size of the files of the job, in order to reserve its workspace
+     * @param numberOfTransforms number of parameter files
+     * @param taskMetadata metadata of the job, the job data is archived only if it is not null
+     * @param inputs input files
+     */
+    RegistrationJob(long jobId, long sizeInBytes, int numberOfTransforms, String taskMetadata, Inputs inputs) throws IOException, ServletException {
+        this.jobId = jobId;
+        this.taskMetadata = taskMetadata;
+
+        // Prepare temp folders, in RAM if possible
+        workspace = workspaces.acquire(elastixJobsFolder, "job_" + jobId, sizeInBytes);
+        inputsFolder = workspace.getPath()+"input"+File.separator;
+        outputFolder = workspace.getPath()+"output"+File.separator;
+
+        try {
+            Files.createDirectories(Paths.get(inputsFolder));
+            Files.createDirectories(Paths.get(outputFolder));
+
+            settings.singleThread();
+
+            ServletUtils.InputFile fImage = inputs.copy(inputsFolder, FixedImageTag, "fixed");
+            settings.fixedImage(() -> fImage.path);
+
+            ServletUtils.InputFile mImage = inputs.copy(inputsFolder, MovingImageTag, "moving");
+            settings.movingImage(() -> mImage.path);
+
+            String iniTransformHash = null;
+            if (inputs.hasFile(InitialTransformTag)) {
+                ServletUtils.InputFile iniTransform = inputs.copy(inputsFolder, InitialTransformTag, "iniTransform");
+                settings.addInitialTransform(iniTransform.path);
+                iniTransformHash = iniTransform.hash;
+            }
+
+            List<String> transformHashes = new ArrayList<>();
+            for (int idxTransform = 0; idxTransform < numberOfTransforms; idxTransform++) {
+                ServletUtils.InputFile transform = inputs.copy(inputsFolder, TransformParameterTag(idxTransform), "transform_" + idxTransform);
+                settings.addTransform(() -> transform.path);
+                transformHashes.add(transform.hash);
+            }
+
+            parametersFingerprint = ServletUtils.digest(transformHashes);
+            resultKey = getResultKey(fImage.hash, mImage.hash, iniTransformHash, transformHashes);
+        } catch (IOException | ServletException | RuntimeException e) {
+            workspace.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the result of the same registration if it has already been done, null otherwise
+     */
+    File getCachedResult() {
+        File cachedResult = (resultCache == null) ? null : resultCache.get(resultKey);
+        if (cachedResult != null) {
+            log.accept("Job "+jobId+" : result found in cache");
+            resultCacheHits.incrementAndGet();
+        } else {
+            resultCacheMisses.incrementAndGet();
+        }
+        return cachedResult;
+    }
+
+    /**
+     * Runs elastix and zips its result, which is added to the result cache
+     * @return the zipped result, valid until the job is closed
+     * @throws InterruptedException if the job has been cancelled
+     */
+    File run() throws IOException, InterruptedException {
+        runElastix();
+        return zipResult(null, true);
+    }
+
+    /**
+     * Runs elastix, its result is left in the output folder (see {@link RegistrationJob#zipResult(OutputStream, boolean)})
+     * @throws InterruptedException if the job has been cancelled
+     */
+    void runElastix() throws IOException, InterruptedException {
+        settings.outFolder(() -> outputFolder);
+        settings.nThreads(nThreadPerTask);
+        ElastixProcessTask task = FederationServlet.newElastixTask(elastixExe, nThreadPerTask);
+        task.setSettings(settings);
+        elastixTask = task;
+        if (cancelled) {
+            throw new InterruptedException("Job "+jobId+" cancelled");
+        }
+        Instant start = Instant.now();
+        task.run(); // DOES the registration thus most of the time is spent there
+        Instant end = Instant.now();
+        if (cancelled) {
+            throw new InterruptedException("Job "+jobId+" cancelled");
+        }
+
+        // Removes (unnecessary?) log files
+        cleanLogFiles(outputFolder);
+
+        log.accept("Job "+jobId+" done in "+ Duration.between(start,end).getSeconds()+" s.");
+        // Elastix time only, without the upload and the copy of the inputs : the queue moves forward at the pace of the elastix tasks
+        ElastixJobQueueServlet.elastixJobDurationEstimator.addSample(parametersFingerprint, Duration.between(start,end).toMillis());
+    }
+
+    /**
+     * Zips the result of elastix, adds it to the result cache and deletes the output folder
+     * @param out if not null, the zip is written to this stream as well (streamed to the client)
+     * @param keepFile if false, the zip is only written to out : it is neither kept in the workspace nor cached
+     * @return the zipped result, valid until the job is closed, or null if it is not kept
+     */
+    File zipResult(OutputStream out, boolean keepFile) throws IOException {
+        File fileResZip = null;
+        if (keepFile) {
+            fileResZip = new File(workspace.getPath() + "res.zip");
+            try (FileOutputStream fos = new FileOutputStream(fileResZip)) {
+                ServletUtils.zipFolder(new File(outputFolder), out == null ? fos : new TeeOutputStream(out, fos), resultCompressionLevel, storeResultsUncompressed);
+            }
+            if (resultCache != null) {
+                resultCache.put(fileResZip.toPath(), resultKey);
+            }
+        } else {
+            ServletUtils.zipFolder(new File(outputFolder), out, resultCompressionLevel, storeResultsUncompressed);
+        }
+
+        // The output folder has been zipped
+        cleaner.delete(outputFolder);
+        done = true;
+        return fileResZip;
+    }
+
+    /**
+     * Kills elastix if it is running
+     */
+    void cancel() {
+        cancelled = true;
+        ElastixProcessTask task = elastixTask;
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * Deletes the workspace, or archives it in the background if the server stores the jobs data
+     * and the user agreed (see {@link ElastixServlet#TaskMetadata})
+     */
+    void close() {
+        if ((done)&&(StatusServlet.config != null)&&(StatusServlet.config.storeJobsData)&&(taskMetadata != null)) {
+            archiver.archive(workspace,
+                    new File(inputsFolder,"metadata.txt"), taskMetadata,
+                    new File(elastixJobsFolder + "job_"+jobId+".zip"));
+        } else {
+            workspace.close();
+        }
+    }
+}
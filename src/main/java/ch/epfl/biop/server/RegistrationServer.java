@@ -41,15 +41,23 @@ import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.scijava.util.VersionUtils;
 
+import javax.servlet.DispatcherType;
 import javax.servlet.MultipartConfigElement;
 import java.io.File;
+import java.util.EnumSet;
 
 /**
  * Creates the server by creating all required Servlet:
  * {@link ElastixJobQueueServlet} for queueing request
  * {@link ElastixServlet} for processing elastix requests
+ * {@link ElastixResultServlet} for returning results of registrations already performed
+ * {@link ElastixBatchServlet} for processing many elastix requests sent at once
+ * {@link ElastixJobsServlet} for submitting elastix requests and fetching their results later on
+ * {@link ElastixStagingServlet} for receiving the inputs of elastix requests waiting in the queue
  * {@link TransformixServlet} for processing transformix requests (no queueing needed - that's fast)
+ * {@link TransformixTransformsServlet} and {@link TransformixPointsServlet} for transforming points with cached transforms
  * {@link StatusServlet} to keep track live of the server status
+ * {@link UploadLimitFilter} to keep threads for the light requests while files are uploaded
  *
  * Also initializes and sets the configuration to the different servlets
  *
@@ -66,9 +74,18 @@ public class RegistrationServer {
 
         System.out.println("--- Setting elastix location (warning : global settings) : " + config.elaxtixLocation);
         Elastix.setExePath(new File(config.elaxtixLocation));
+        ElastixServlet.elastixExe = new File(config.elaxtixLocation);
 
         System.out.println("--- Setting transformix location (warning : global settings) : " + config.transformixLocation);
         Transformix.setExePath(new File(config.transformixLocation));
+        TransformixServlet.transformixExe = new File(config.transformixLocation);
+
+        System.out.println("--- Settings transformix in java when possible : " + config.useJavaTransformix);
+        TransformixServlet.useJavaTransformix = config.useJavaTransformix;
+
+        System.out.println("--- Settings transform cache size (bytes) " + config.transformCacheMaxSizeInBytes);
+        TransformixServlet.transformCache = new TransformCache(config.transformCacheMaxSizeInBytes);
+        TransformixTransformsServlet.maxTransformSizeInBytes = config.maxFileSize;
 
         System.out.println("--- Settings initial Job indexes [elastix:" + config.initialElastixJobIndex + "; transformix:" + config.initialTransformixIndex + "]");
         ElastixJobQueueServlet.jobIndex = config.initialElastixJobIndex;
@@ -76,22 +93,78 @@ public class RegistrationServer {
 
         System.out.println("--- Settings servlet request timeout (ms) " + config.requestTimeOutInMs);
         ElastixServlet.timeOut = config.requestTimeOutInMs;
+
+        System.out.println("--- Settings client connection check interval (ms) " + config.clientConnectionCheckIntervalInMs);
+        ElastixServlet.clientConnectionCheckIntervalInMs = config.clientConnectionCheckIntervalInMs;
         TransformixServlet.timeOut = config.requestTimeOutInMs;
 
+        System.out.println("--- Settings jobs archiver threads " + config.archiverThreads + " and queue capacity " + config.archiverQueueCapacity);
+        ElastixServlet.setArchiver(config.archiverThreads, config.archiverQueueCapacity);
+
+        System.out.println("--- Settings job folders cleanup batch size " + config.cleanupBatchSize);
+        ElastixServlet.setCleaner(config.cleanupBatchSize);
+
+        System.out.println("--- Settings results streaming " + config.streamResults + ", compression level " + config.resultCompressionLevel + (config.storeResultsUncompressed ? " (uncompressed)" : ""));
+        ElastixServlet.streamResults = config.streamResults;
+        ElastixServlet.resultCompressionLevel = config.resultCompressionLevel;
+        ElastixServlet.storeResultsUncompressed = config.storeResultsUncompressed;
+
         System.out.println("--- Settings Elastix thread per task number " + config.nThreadsPerElastixTask);
         ElastixServlet.nThreadPerTask = config.nThreadsPerElastixTask;
 
+        System.out.println("--- Settings max number of simultaneous uploads " + config.maxNumberOfSimultaneousUploads + " and threads reserved for light requests " + config.numberOfThreadsReservedForLightRequests);
+        UploadLimitFilter.setMaxNumberOfSimultaneousUploads(config.maxNumberOfSimultaneousUploads);
+        UploadLimitFilter.maxWaitingTimeInMs = config.requestTimeOutInMs;
+
         System.out.println("--- Settings elastix servlet max number of simultaneous requests " + config.maxNumberOfSimultaneousRequests);
         ElastixServlet.maxNumberOfSimultaneousRequests = config.maxNumberOfSimultaneousRequests;
 
+        System.out.println("--- Settings elastix servlet pool queue capacity " + config.elastixExecutorQueueCapacity);
+        ElastixServlet.setExecutor(Math.max(1, config.maxNumberOfSimultaneousRequests), config.elastixExecutorQueueCapacity);
+
+        System.out.println("--- Settings accept workers " + config.acceptWorkers + " (worker time out (ms) " + config.workerTimeOutInMs + ")");
+        FederationServlet.acceptWorkers = config.acceptWorkers;
+        FederationServlet.workerTimeOutInMs = config.workerTimeOutInMs;
+
+        System.out.println("--- Settings elastix batch max number of jobs " + config.maxNumberOfJobsPerBatch + " and max request size (bytes) " + config.maxBatchRequestSizeInBytes);
+        ElastixBatchServlet.maxNumberOfJobsPerBatch = config.maxNumberOfJobsPerBatch;
+
+        System.out.println("--- Settings submitted jobs time to live (s) " + config.submittedJobTimeToLiveInS + " and max number of pending jobs " + config.maxNumberOfPendingSubmittedJobs);
+        ElastixJobsServlet.resultTimeToLiveInS = config.submittedJobTimeToLiveInS;
+        ElastixJobsServlet.maxNumberOfPendingJobs = config.maxNumberOfPendingSubmittedJobs;
+
+        System.out.println("--- Settings staging quota (bytes) " + config.stagingMaxSizeInBytes + " and max number of staged jobs " + config.stagingMaxNumberOfJobs);
+        ElastixStagingServlet.maxStagedSizeInBytes = config.stagingMaxSizeInBytes;
+        ElastixStagingServlet.maxNumberOfStagedJobs = config.stagingMaxNumberOfJobs;
+
+        System.out.println("--- Settings transformix servlet max number of simultaneous requests " + config.maxNumberOfSimultaneousTransformixRequests);
+        System.out.println("--- Settings transformix servlet pool queue capacity " + config.transformixExecutorQueueCapacity);
+        TransformixServlet.setExecutor(config.maxNumberOfSimultaneousTransformixRequests, config.transformixExecutorQueueCapacity);
+
         try {
             System.out.print("--- Settings jobs data location for elastix : ");
             ElastixServlet.setJobsDataLocation(config.jobsDataLocation);
             System.out.println(ElastixServlet.elastixJobsFolder);
+            ElastixJobsServlet.setResultsLocation(config.jobsDataLocation);
+
+            System.out.println("--- Settings elastix input files store size (bytes) " + config.inputStoreMaxSizeInBytes);
+            ElastixServlet.setInputStore(config.jobsDataLocation, config.inputStoreMaxSizeInBytes);
+
+            System.out.println("--- Settings elastix result cache size (bytes) " + config.resultCacheMaxSizeInBytes+" and time to live (s) "+config.resultCacheTimeToLiveInS);
+            ElastixServlet.setResultCache(config.jobsDataLocation, config.resultCacheMaxSizeInBytes, config.resultCacheTimeToLiveInS);
 
             System.out.print("--- Settings jobs data location for transformix : ");
             TransformixServlet.setJobsDataLocation(config.jobsDataLocation);
             System.out.println(TransformixServlet.transformixJobsFolder);
+
+            System.out.println("--- Settings RAM workspace location " + config.ramWorkspaceLocation+" with a budget (bytes) of "+config.ramWorkspaceMaxSizeInBytes);
+            ElastixServlet.workspaces = new WorkspaceProvider(config.ramWorkspaceLocation, config.ramWorkspaceMaxSizeInBytes, ElastixServlet.getCleaner());
+
+            // Job folders left by a previous run are removed, archived jobs are kept
+            for (String jobsFolder : new String[]{ElastixServlet.elastixJobsFolder, TransformixServlet.transformixJobsFolder}) {
+                ElastixServlet.getCleaner().addRoot(new File(jobsFolder));
+                ElastixServlet.getCleaner().sweep(new File(jobsFolder));
+            }
         } catch (Exception e) {
             System.err.println("Error during server creation:");
             e.printStackTrace();
@@ -103,7 +176,14 @@ public class RegistrationServer {
     final public static String STATUS_PATH = "/";
     final public static String ELASTIX_PATH = "/elastix";
     final public static String ELASTIX_QUEUE_PATH = "/elastix/startjob";
+    final public static String ELASTIX_RESULT_PATH = "/elastix/result";
+    final public static String ELASTIX_BATCH_PATH = "/elastix/batch";
+    final public static String ELASTIX_JOBS_PATH = "/elastix/jobs";
+    final public static String ELASTIX_STAGE_PATH = "/elastix/stage";
     final public static String TRANSFORMIX_PATH = "/transformix";
+    final public static String TRANSFORMIX_TRANSFORMS_PATH = "/transformix/transforms";
+    final public static String TRANSFORMIX_POINTS_PATH = "/transformix/points";
+    final public static String FEDERATION_WORKERS_PATH = "/federation/workers";
 
     final public static int DefaultLocalPort = 8090;
 
@@ -113,11 +193,10 @@ public class RegistrationServer {
         context.setContextPath("/");
         context.setAttribute("javax.servlet.context.tempdir",new File("tmp"));
 
-        int maxThreads = Math.max(4,4+config.maxNumberOfSimultaneousRequests);
         int minThreads = 1;
         int idleTimeout = 120;
 
-        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads, idleTimeout);
+        QueuedThreadPool threadPool = new QueuedThreadPool(8, minThreads, idleTimeout);
 
         server = new Server(threadPool);
 
@@ -126,12 +205,23 @@ public class RegistrationServer {
         ServerConnector connector = new ServerConnector(server);
         connector.setPort(localPort);
 
+        // Uploads can not take all the threads, see UploadLimitFilter. The connector needs its own threads as well
+        int maxThreads = Math.max(1, config.numberOfThreadsReservedForLightRequests)
+                + UploadLimitFilter.maxNumberOfSimultaneousUploads
+                + connector.getAcceptors() + connector.getSelectorManager().getSelectorCount();
+        threadPool.setMaxThreads(maxThreads);
+
         server.setConnectors(new Connector[] { connector });
 
         // ---- HTTP End
 
         server.setHandler(context);
 
+        // Requests with files are read by a limited number of threads
+        for (String uploadPath : new String[]{ELASTIX_PATH, ELASTIX_BATCH_PATH, ELASTIX_STAGE_PATH, ELASTIX_JOBS_PATH+"/*", TRANSFORMIX_PATH, TRANSFORMIX_POINTS_PATH}) {
+            context.addFilter(UploadLimitFilter.class, uploadPath, EnumSet.of(DispatcherType.REQUEST, DispatcherType.ASYNC));
+        }
+
         ServletHolder shElastix = context.addServlet(ElastixServlet.class, ELASTIX_PATH);
         shElastix.getRegistration().setMultipartConfig(new MultipartConfigElement("", config.maxFileSize, 2 * config.maxFileSize, 20*1024*1024));
 
@@ -144,7 +234,32 @@ public class RegistrationServer {
         ElastixJobQueueServlet.setConfiguration(config);
         context.addServlet(ElastixJobQueueServlet.class, ELASTIX_QUEUE_PATH);
 
+        context.addServlet(ElastixResultServlet.class, ELASTIX_RESULT_PATH);
+
+        ServletHolder shElastixBatch = context.addServlet(ElastixBatchServlet.class, ELASTIX_BATCH_PATH);
+        shElastixBatch.getRegistration().setMultipartConfig(new MultipartConfigElement("", config.maxFileSize, config.maxBatchRequestSizeInBytes, 20*1024*1024));
+
+        ServletHolder shElastixStage = context.addServlet(ElastixStagingServlet.class, ELASTIX_STAGE_PATH);
+        shElastixStage.getRegistration().setMultipartConfig(new MultipartConfigElement("", config.maxFileSize, 2 * config.maxFileSize, 20*1024*1024));
+
+        ServletHolder shElastixJobs = context.addServlet(ElastixJobsServlet.class, ELASTIX_JOBS_PATH+"/*");
+        shElastixJobs.getRegistration().setMultipartConfig(new MultipartConfigElement("", config.maxFileSize, 2 * config.maxFileSize, 20*1024*1024));
+
+        context.addServlet(TransformixTransformsServlet.class, TRANSFORMIX_TRANSFORMS_PATH);
+
+        context.addServlet(TransformixPointsServlet.class, TRANSFORMIX_POINTS_PATH);
+
+        if (config.acceptWorkers) {
+            context.addServlet(FederationServlet.class, FEDERATION_WORKERS_PATH);
+        }
+
         server.start();
+
+        if ((config.coordinatorUrl != null)&&(!config.coordinatorUrl.trim().equals(""))) {
+            String workerUrl = ((config.workerUrl == null)||(config.workerUrl.trim().equals(""))) ? "http://localhost:"+localPort : config.workerUrl;
+            System.out.println("--- Settings worker " + workerUrl + " of coordinator " + config.coordinatorUrl + ", status sent every (ms) " + config.workerHeartbeatPeriodInMs);
+            FederationServlet.startHeartbeat(config.coordinatorUrl.trim(), workerUrl, config.workerHeartbeatPeriodInMs);
+        }
     }
 
     void stop() throws Exception {
@@ -48,11 +48,47 @@ public class RegistrationServerConfig {
      */
     public String elaxtixLocation = "C:\\elastix-5.0.1-win64\\elastix.exe";
 
+    /**
+     * How often the server checks whether the clients of the running registrations are still
+     * connected. The elastix process of a client which disconnected is killed.
+     */
+    public int clientConnectionCheckIntervalInMs = 2000;
+
+    /**
+     * If true, the results are zipped directly into the http response, which avoids
+     * writing and reading a zip file on the server (the zip is still written to a file
+     * if it is kept in the result cache)
+     */
+    public boolean streamResults = true;
+
+    /**
+     * Compression level of the zipped results, from 0 to 9, -1 for the default level
+     */
+    public int resultCompressionLevel = -1;
+
+    /**
+     * If true, the results are zipped without compression : faster for outputs which are
+     * already compressed (images for instance)
+     */
+    public boolean storeResultsUncompressed = false;
+
     /**
      * Location of the transformix executable file on the server
      */
     public String transformixLocation = "C:\\elastix-5.0.1-win64\\transformix.exe";
 
+    /**
+     * Transforms points in Java instead of calling transformix, when all the transforms of the
+     * request are supported (translation, euler, similarity, affine and bspline transforms)
+     */
+    public boolean useJavaTransformix = true;
+
+    /**
+     * Maximal cumulated size of the transform parameter files kept parsed in memory, for
+     * the /transformix/points endpoint. Least recently used transforms are evicted first
+     */
+    public long transformCacheMaxSizeInBytes = 64 * 1024 * 1024;
+
     /**
      * Local port of the registration server
      */
@@ -69,24 +105,45 @@ public class RegistrationServerConfig {
     public int nThreadsPerElastixTask = 4;
 
     /**
-     * Estimated duration for processing a single elastix registration task
-     * No difference is made between different types of registration
+     * Maximum number of requests with files (elastix, batch, staging, job submission and transformix requests)
+     * read at the same time. Each upload holds a thread of the server while it is read : the uploads beyond this
+     * number wait without holding a thread, see {@link UploadLimitFilter}
+     */
+    public int maxNumberOfSimultaneousUploads = 4;
+
+    /**
+     * Number of server threads which can not be taken by uploads : they keep answering the light requests
+     * (status, queue updates, results) whatever the number of slow uploads
+     */
+    public int numberOfThreadsReservedForLightRequests = 8;
+
+    /**
+     * Initial estimated duration for processing a single elastix registration task
      * This is used to estimate the time required to process a queue of tasks
      *
      * Time to process the whole queue =
-     *      elastixTaskEstimatedDurationInMs * number of tasks in the queue
-     *
+     *      estimated task duration * number of tasks in the queue / maxNumberOfSimultaneousRequests
      *
      * Being able to process many tasks in parallel (provided that the server is not at 100%)
-     * reduces the task estimated duration because they can be processed in parallel
+     * reduces the queue processing time because they can be processed in parallel
+     *
+     * This value is only used until the first task is processed : the estimation is then
+     * updated with the measured durations of the tasks, see {@link ServiceTimeEstimator}
      *
      */
     public int elastixTaskEstimatedDurationInMs = 5000;
 
+    /**
+     * Weight of the last measured task duration when updating the estimated task duration
+     * (exponentially weighted moving average). 0 : the initial estimation is never updated,
+     * 1 : only the duration of the last task is taken into account
+     */
+    public double elastixTaskDurationSmoothingFactor = 0.2;
+
     /**
      * Estimated maximum time allowed for the queue.
      *
-     * If elastixTaskEstimatedDurationInMs/1000 * number of tasks in the queue is strictly superior to maxQueueEstimatedWaitingTimeInS
+     * If the estimated time to process the tasks in the queue is strictly superior to maxQueueEstimatedWaitingTimeInS
      *
      * Then requests are ignored with a 503 Service Unavailable error message
      */
@@ -124,6 +181,86 @@ public class RegistrationServerConfig {
      */
     public int maxNumberOfSimultaneousRequests = 4;
 
+    /**
+     * Number of elastix requests which can wait for a thread of the elastix pool, which has
+     * maxNumberOfSimultaneousRequests threads. Requests beyond are rejected with a 503 error code.
+     *
+     * The queueing process makes it rare for requests to wait there
+     */
+    public int elastixExecutorQueueCapacity = 16;
+
+    /**
+     * Maximum number of registration jobs in a single batch request, see {@link ElastixBatchServlet}
+     */
+    public int maxNumberOfJobsPerBatch = 1000;
+
+    /**
+     * In bytes, the maximal size of a batch request. Each file is still limited to maxFileSize,
+     * but a batch contains many files (typically one moving image per job)
+     */
+    public long maxBatchRequestSizeInBytes = 512 * 1024 * 1024;
+
+    /**
+     * Time during which a submitted job and its result are kept once the job is over, in seconds,
+     * see {@link ElastixJobsServlet}
+     */
+    public long submittedJobTimeToLiveInS = 3600;
+
+    /**
+     * Maximum number of submitted jobs which are not over, further submissions are rejected with a 503 error code
+     */
+    public int maxNumberOfPendingSubmittedJobs = 1000;
+
+    /**
+     * In bytes, the maximal total size of the inputs sent by clients while their job is waiting in the queue,
+     * see {@link ElastixStagingServlet}. 0 disables staging
+     */
+    public long stagingMaxSizeInBytes = 256 * 1024 * 1024;
+
+    /**
+     * Maximal number of jobs whose inputs are staged, or being staged, see {@link ElastixStagingServlet}
+     */
+    public int stagingMaxNumberOfJobs = 32;
+
+    /**
+     * If true, this server is a coordinator : other servers can register as workers (see {@link FederationServlet}),
+     * and the elastix jobs which do not fit in the slots of this server are sent to them.
+     * maxNumberOfSimultaneousRequests can be set to 0 in order to only dispatch jobs
+     */
+    public boolean acceptWorkers = false;
+
+    /**
+     * Url of a coordinator, for instance http://coordinator:8090 . If not empty, this server
+     * registers as a worker of the coordinator and sends it its capacity and its load regularly
+     */
+    public String coordinatorUrl = "";
+
+    /**
+     * Url of this server as seen by the coordinator, http://localhost:localPort if left empty
+     */
+    public String workerUrl = "";
+
+    /**
+     * Time between two status updates sent by a worker to its coordinator
+     */
+    public int workerHeartbeatPeriodInMs = 2000;
+
+    /**
+     * A worker which does not send its status during this time is forgotten by the coordinator
+     */
+    public int workerTimeOutInMs = 6000;
+
+    /**
+     * Maximum number of transformix jobs processed at the same time
+     */
+    public int maxNumberOfSimultaneousTransformixRequests = 4;
+
+    /**
+     * Number of transformix requests which can wait for a thread of the transformix pool.
+     * Requests beyond are rejected with a 503 error code.
+     */
+    public int transformixExecutorQueueCapacity = 64;
+
     /**
      * Directory used to store temporarily each jobs data.
      *
@@ -141,6 +278,21 @@ public class RegistrationServerConfig {
      */
     public String jobsDataLocation = "src/test/resources/tmp/";
 
+    /**
+     * RAM backed folder where jobs are processed, for instance a tmpfs like /dev/shm on Linux.
+     * Avoids writing inputs, outputs and zipped results to the disk. Jobs which do not fit in
+     * ramWorkspaceMaxSizeInBytes are processed in jobsDataLocation, like when this location is
+     * left empty. Job data which is kept (storeJobsData) is still archived in jobsDataLocation.
+     *
+     * Content of this folder is erased when the server starts!
+     */
+    public String ramWorkspaceLocation = "";
+
+    /**
+     * Memory budget of the RAM backed workspace. Each job reserves 3 times the size of its request
+     */
+    public long ramWorkspaceMaxSizeInBytes = 512 * 1024 * 1024;
+
     /**
      * Each elastix job has a unique index. It would make sense to always start at 0 and increment
      * but the server may have crashed. If there were some jobs kept on the server, you do
@@ -160,6 +312,23 @@ public class RegistrationServerConfig {
      */
     public boolean storeJobsData = true;
 
+    /**
+     * Number of threads archiving the jobs data in the background, when storeJobsData is true
+     */
+    public int archiverThreads = 1;
+
+    /**
+     * Number of jobs which can wait to be archived. Beyond this number, the jobs
+     * are archived before their elastix slot is released
+     */
+    public int archiverQueueCapacity = 64;
+
+    /**
+     * Job folders are moved to a trash folder once processed, and deleted in the background.
+     * This is the maximal number of folders deleted in a row
+     */
+    public int cleanupBatchSize = 32;
+
     /**
      * In bytes, the maximal size of a file which will be accepted ba the server
      * Default value 1 Mo - this is a security in order to avoid heavy traffic on the server
@@ -167,4 +336,28 @@ public class RegistrationServerConfig {
      */
     public long maxFileSize = 1024 * 1024;
 
+    /**
+     * In bytes, the maximal total size of the input files (images, registration parameters) kept
+     * on the server in order to avoid clients uploading again and again the same files.
+     * The least recently used files are removed first. Set to 0 to disable this store.
+     *
+     * Files are stored in the 'blobs' folder of jobsDataLocation
+     */
+    public long inputStoreMaxSizeInBytes = 256 * 1024 * 1024;
+
+    /**
+     * In bytes, the maximal total size of the registration results kept on the server. When
+     * the same registration is requested again (same images, same parameters), the kept
+     * result is sent back immediately. The least recently used results are removed first.
+     * Set to 0 to disable this cache.
+     *
+     * Results are stored in the 'results' folder of jobsDataLocation
+     */
+    public long resultCacheMaxSizeInBytes = 64 * 1024 * 1024;
+
+    /**
+     * Time during which a registration result is kept on the server, in seconds
+     */
+    public long resultCacheTimeToLiveInS = 24 * 3600;
+
 }
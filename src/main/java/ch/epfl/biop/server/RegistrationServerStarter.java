@@ -86,6 +86,25 @@ public class RegistrationServerStarter {
         }
 
         //StressTest(); // Uncomment for testing
+        //AsyncStressTest(); // Uncomment for testing
+    }
+
+    /**
+     * Same as {@link RegistrationServerStarter#StressTest()}, but with a few threads
+     */
+    public static void AsyncStressTest() {
+        RemoteElastixClient client = new RemoteElastixClient("http://localhost:8090");
+        for (int i=0;i<200;i++){
+            try {
+                client.submitAsync(getTestSettings(i))
+                        .exceptionally(e -> {
+                            e.printStackTrace();
+                            return null;
+                        });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     public static void StressTest() {
@@ -102,6 +121,12 @@ public class RegistrationServerStarter {
     }
 
     private static void TestRegister(int idx) throws Exception {
+        ElastixTask remoteTask = new RemoteElastixTask("http://localhost:8090");
+        remoteTask.setSettings(getTestSettings(idx));
+        remoteTask.run();
+    }
+
+    private static ElastixTaskSettings getTestSettings(int idx) throws Exception {
 
         RegistrationParameters rp = new RegParamAffine_Fast();
 
@@ -115,9 +140,7 @@ public class RegistrationServerStarter {
                 .addTransform(() -> RegisterHelper.getFileFromRegistrationParameters(rp))
                 .outFolder(()-> "src/test/resources/out/"+idx+"/");
 
-        ElastixTask remoteTask = new RemoteElastixTask("http://localhost:8090");
-        remoteTask.setSettings(settings);
-        remoteTask.run();
+        return settings;
     }
 
 }
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Online estimation of the time taken by a task, fed by the measured durations of the
+ * tasks processed by the server.
+ *
+ * Each estimate is an exponentially weighted moving average (EWMA):
+ *
+ *      estimate = smoothingFactor * lastDuration + (1 - smoothingFactor) * estimate
+ *
+ * A global estimate is kept for all tasks, and one estimate is kept per task fingerprint
+ * (for elastix tasks: the fingerprint of the registration parameter files). Indeed an
+ * affine registration and a spline registration can take very different times.
+ *
+ * The initial value of the global estimate is given by the server configuration
+ * ({@link RegistrationServerConfig#elastixTaskEstimatedDurationInMs}) and is
+ * progressively replaced by the measured durations.
+ */
+public class ServiceTimeEstimator {
+
+    /**
+     * Maximal number of fingerprints kept - the least recently updated are forgotten first
+     */
+    public static int maxNumberOfFingerprints = 256;
+
+    final double smoothingFactor;
+
+    volatile double globalEstimateInMs;
+
+    volatile long numberOfSamples = 0;
+
+    final Map<String, Estimate> estimates = new LinkedHashMap<String, Estimate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Estimate> eldest) {
+            return size() > maxNumberOfFingerprints;
+        }
+    };
+
+    /**
+     * @param initialEstimateInMs value returned until durations are measured
+     * @param smoothingFactor weight of the last measured duration, between 0 (never updated) and 1 (last duration only)
+     */
+    public ServiceTimeEstimator(double initialEstimateInMs, double smoothingFactor) {
+        this.globalEstimateInMs = initialEstimateInMs;
+        this.smoothingFactor = Math.max(0, Math.min(1, smoothingFactor));
+    }
+
+    /**
+     * Adds a measured duration
+     * @param fingerprint identifies the kind of task, can be null
+     * @param durationInMs measured duration of the task
+     */
+    public synchronized void addSample(String fingerprint, double durationInMs) {
+        if (numberOfSamples == 0) {
+            // The initial value is only a guess : the first measure replaces it
+            globalEstimateInMs = durationInMs;
+        } else {
+            globalEstimateInMs = smooth(globalEstimateInMs, durationInMs);
+        }
+        numberOfSamples++;
+        if (fingerprint != null) {
+            Estimate estimate = estimates.get(fingerprint);
+            if (estimate == null) {
+                estimate = new Estimate();
+                estimate.estimatedDurationInMs = durationInMs;
+                estimates.put(fingerprint, estimate);
+            } else {
+                estimate.estimatedDurationInMs = smooth(estimate.estimatedDurationInMs, durationInMs);
+            }
+            estimate.lastDurationInMs = durationInMs;
+            estimate.numberOfSamples++;
+        }
+    }
+
+    private double smooth(double estimate, double sample) {
+        return smoothingFactor * sample + (1 - smoothingFactor) * estimate;
+    }
+
+    /**
+     * @return the estimated duration of a task, whatever its kind
+     */
+    public double getEstimatedDurationInMs() {
+        return globalEstimateInMs;
+    }
+
+    /**
+     * @param fingerprint identifies the kind of task
+     * @return the estimated duration of a task of this kind, or the global estimate if this kind is unknown
+     */
+    public synchronized double getEstimatedDurationInMs(String fingerprint) {
+        Estimate estimate = estimates.get(fingerprint);
+        if (estimate == null) return globalEstimateInMs;
+        return estimate.estimatedDurationInMs;
+    }
+
+    public long getNumberOfSamples() {
+        return numberOfSamples;
+    }
+
+    /**
+     * @return a copy of the estimates per fingerprint
+     */
+    public synchronized Map<String, Estimate> getEstimates() {
+        Map<String, Estimate> copy = new LinkedHashMap<>();
+        estimates.forEach((fingerprint, estimate) -> {
+            Estimate e = new Estimate();
+            e.estimatedDurationInMs = estimate.estimatedDurationInMs;
+            e.lastDurationInMs = estimate.lastDurationInMs;
+            e.numberOfSamples = estimate.numberOfSamples;
+            copy.put(fingerprint, e);
+        });
+        return copy;
+    }
+
+    /**
+     * Estimate for a single kind of task
+     */
+    public static class Estimate {
+        public double estimatedDurationInMs;
+        public double lastDurationInMs;
+        public long numberOfSamples;
+    }
+}
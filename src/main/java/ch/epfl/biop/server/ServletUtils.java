@@ -34,31 +34,265 @@ package ch.epfl.biop.server;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.BufferUtil;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Part;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 public class ServletUtils {
 
+    /**
+     * Suffix of a multipart request part which references a file of a {@link BlobStore}
+     * instead of containing the file itself.
+     *
+     * For instance, instead of sending the file part 'fixedImage', a client can send
+     * a text part 'fixedImage_sha256' containing the reference 'sha256hexstring.tif':
+     * the SHA-256 of the file content followed by the file extension (if any).
+     */
+    final public static String ContentHashSuffix = "_sha256";
+
     static String copyFileToServer(String tempFileFolder, HttpServletRequest request, String tag, String fileNameOut) throws IOException, ServletException {
+        return copyInputToServer(tempFileFolder, request, tag, fileNameOut, null).path;
+    }
+
+    /**
+     * Copies a file sent by the client to the server. The client can either send the file
+     * or a reference to a file already present in the store (see {@link ServletUtils#ContentHashSuffix})
+     *
+     * Files sent are added to the store
+     *
+     * @param store content-addressed store, can be null
+     * @return the path of the file copied and the hash of its content
+     * @throws BlobStore.UnknownHashException if the client referenced a file which is not in the store
+     */
+    static InputFile copyInputToServer(String tempFileFolder, HttpServletRequest request, String tag, String fileNameOut, BlobStore store) throws IOException, ServletException {
         String pathFileOut;
         Part part = request.getPart(tag);
+        if ((part == null)&&(store != null)&&(request.getPart(tag+ContentHashSuffix) != null)) {
+            String reference = getReference(request, tag);
+            pathFileOut = tempFileFolder + fileNameOut + "." + FilenameUtils.getExtension(reference);
+            String hash = FilenameUtils.getBaseName(reference);
+            System.out.println(reference + " (stored) > " + pathFileOut);
+            if (!store.copyTo(hash, Paths.get(pathFileOut))) {
+                throw new BlobStore.UnknownHashException(hash);
+            }
+            return new InputFile(pathFileOut, hash);
+        }
         String fileNameIn = part.getSubmittedFileName();
         String fileExtension = FilenameUtils.getExtension(fileNameIn);
         pathFileOut = tempFileFolder + fileNameOut + "." + fileExtension;
         System.out.println(fileNameIn + " > " + pathFileOut);
-        Files.copy(part.getInputStream(), Paths.get(pathFileOut),
-                StandardCopyOption.REPLACE_EXISTING);
-        return pathFileOut;
+        MessageDigest digest = sha256();
+        try (InputStream is = new DigestInputStream(part.getInputStream(), digest)) {
+            Files.copy(is, Paths.get(pathFileOut),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        String hash = toHex(digest.digest());
+        if (store != null) {
+            store.put(Paths.get(pathFileOut), hash);
+        }
+        return new InputFile(pathFileOut, hash);
+    }
+
+    /**
+     * A file sent by the client, copied on the server
+     */
+    static class InputFile {
+
+        final String path;
+
+        /**
+         * SHA-256 hex string of the file content
+         */
+        final String hash;
+
+        InputFile(String path, String hash) {
+            this.path = path;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Sends a file as the response body, headers are set before sending the content.
+     * With Jetty, the file channel is given directly to the response output, otherwise
+     * the file is transferred by chunks with {@link FileChannel#transferTo}
+     * @param response http response
+     * @param file file to send
+     * @param contentType of the file
+     * @param fileName file name suggested to the client
+     * @throws IOException if the file cannot be sent
+     */
+    static void sendFile(HttpServletResponse response, File file, String contentType, String fileName) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(contentType);
+        response.addHeader("Content-Disposition", "attachment; filename=" + fileName);
+        response.setContentLengthLong(file.length());
+        ServletOutputStream out = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (out instanceof HttpOutput) {
+                ((HttpOutput) out).sendContent(channel); // Completes the response content
+            } else {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                long size = channel.size();
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * @return true if the request contains the file, or a reference to the file
+     */
+    static boolean hasFile(HttpServletRequest request, String tag) throws IOException, ServletException {
+        return (request.getPart(tag) != null)||(request.getPart(tag+ContentHashSuffix) != null);
+    }
+
+    /**
+     * @param tags file tags to check
+     * @param store content-addressed store
+     * @return the hashes referenced by the request which are not in the store
+     */
+    static List<String> getUnknownHashes(HttpServletRequest request, List<String> tags, BlobStore store) throws IOException, ServletException {
+        List<String> unknownHashes = new ArrayList<>();
+        for (String tag : tags) {
+            if ((request.getPart(tag) == null)&&(request.getPart(tag+ContentHashSuffix) != null)) {
+                String hash = FilenameUtils.getBaseName(getReference(request, tag));
+                if ((store == null)||(!store.contains(hash))) {
+                    unknownHashes.add(hash);
+                }
+            }
+        }
+        return unknownHashes;
+    }
+
+    private static String getReference(HttpServletRequest request, String tag) throws IOException, ServletException {
+        return getReference(request.getPart(tag+ContentHashSuffix));
+    }
+
+    private static String getReference(Part referencePart) throws IOException {
+        String reference = IOUtils.toString(referencePart.getInputStream(), StandardCharsets.UTF_8).trim();
+        // Only a file name is accepted - no path
+        return FilenameUtils.getName(reference);
+    }
+
+    /**
+     * Size of the files once copied on the server : the files referenced by their hash are
+     * copied from the store, so their real size is counted, not the size of the reference
+     * @param parts parts of a request
+     * @param store content-addressed store, can be null
+     * @return the total size of the parts and of the files they reference, -1 if a referenced file is unknown
+     */
+    static long getInputsSizeInBytes(Collection<Part> parts, BlobStore store) throws IOException {
+        long sizeInBytes = 0;
+        for (Part part : parts) {
+            if (part.getName().endsWith(ContentHashSuffix)) {
+                long fileSizeInBytes = (store == null) ? -1 : store.getSize(FilenameUtils.getBaseName(getReference(part)));
+                if (fileSizeInBytes < 0) return -1;
+                sizeInBytes += fileSizeInBytes;
+            } else {
+                sizeInBytes += part.getSize();
+            }
+        }
+        return sizeInBytes;
+    }
+
+    /**
+     * @param filePaths files to identify
+     * @return a SHA-256 hex string of the content of the files, taken in order
+     * @throws IOException if a file cannot be read
+     */
+    public static String fingerprint(List<String> filePaths) throws IOException {
+        MessageDigest digest = sha256();
+        for (String filePath : filePaths) {
+            digest.update(Files.readAllBytes(Paths.get(filePath)));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param strings strings to identify
+     * @return a SHA-256 hex string of the strings, taken in order
+     */
+    public static String digest(List<String> strings) {
+        MessageDigest digest = sha256();
+        for (String string : strings) {
+            digest.update(string.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Checks whether the client of a request is still connected. Only meaningful once the request
+     * content has been read : the client should not send anything else before getting its response.
+     * @param request request being processed
+     * @return false if the client closed its connection
+     */
+    public static boolean isClientConnected(HttpServletRequest request) {
+        Request baseRequest = Request.getBaseRequest(request);
+        if ((baseRequest==null)||(baseRequest.getHttpChannel()==null)) {
+            return true; // Cannot tell
+        }
+        EndPoint endPoint = baseRequest.getHttpChannel().getEndPoint();
+        if ((!endPoint.isOpen())||(endPoint.isInputShutdown())) {
+            return false;
+        }
+        try {
+            // -1 means that the client closed the connection
+            return endPoint.fill(BufferUtil.allocate(1)) >= 0;
+        } catch (IOException e) {
+            return false; // Connection reset
+        }
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Always available in the JVM
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length*2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
     }
 
     public static void eraseFolder(String currentElastixJobFolder) {
@@ -90,4 +324,62 @@ public class ServletUtils {
         }
         fis.close();
     }
+
+    /**
+     * Zips the content of a folder into a stream, the entries being named as in {@link ServletUtils#zipFile}
+     * @param folder folder to zip
+     * @param out stream where the zip is written, flushed but not closed
+     * @param compressionLevel compression level, see {@link java.util.zip.Deflater}
+     * @param stored if true the files are not compressed, which is faster for files which are already compressed
+     * @throws IOException if a file cannot be read or if the zip cannot be written
+     */
+    public static void zipFolder(File folder, OutputStream out, int compressionLevel, boolean stored) throws IOException {
+        ZipOutputStream zipOut = new ZipOutputStream(out);
+        zipOut.setLevel(compressionLevel);
+        File[] children = folder.listFiles();
+        if (children != null) {
+            for (File childFile : children) {
+                zipEntries(childFile, childFile.getName(), zipOut, stored);
+            }
+        }
+        zipOut.finish();
+        zipOut.flush();
+    }
+
+    private static void zipEntries(File fileToZip, String fileName, ZipOutputStream zipOut, boolean stored) throws IOException {
+        if (fileToZip.isHidden()) {
+            return;
+        }
+        if (fileToZip.isDirectory()) {
+            File[] children = fileToZip.listFiles();
+            if (children != null) {
+                for (File childFile : children) {
+                    zipEntries(childFile, childFile.getName(), zipOut, stored);
+                }
+            }
+            return;
+        }
+        ZipEntry zipEntry = new ZipEntry(fileName);
+        if (stored) {
+            // The size and the checksum need to be known before writing the entry
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(fileToZip.length());
+            zipEntry.setCompressedSize(fileToZip.length());
+            zipEntry.setCrc(crc32(fileToZip));
+        }
+        zipOut.putNextEntry(zipEntry);
+        Files.copy(fileToZip.toPath(), zipOut);
+        zipOut.closeEntry();
+    }
+
+    static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream is = new CheckedInputStream(new FileInputStream(file), crc)) {
+            byte[] buffer = new byte[32768];
+            while (is.read(buffer) >= 0) {
+                // Just computing the checksum
+            }
+        }
+        return crc.getValue();
+    }
 }
@@ -40,6 +40,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * Status servlet: easily called by
@@ -78,11 +79,95 @@ public class StatusServlet extends HttpServlet {
 
         int numberOfCurrentElastixTasks = ElastixServlet.getNumberOfCurrentTasks();
 
+        int numberOfElastixSlots = ElastixServlet.getNumberOfSlots();
+
+        int numberOfWorkers = FederationServlet.getNumberOfWorkers();
+
+        int numberOfElastixTasksOnWorkers = FederationServlet.getNumberOfTasksOnWorkers();
+
+        long numberOfElastixTasksDispatchedToWorkers = FederationServlet.numberOfDispatchedTasks.get();
+
         int numberOfCurrentTransformixTasks = TransformixServlet.getNumberOfCurrentTasks();
 
+        int numberOfSuspendedUploads = UploadLimitFilter.getNumberOfSuspendedUploads();
+
+        long numberOfRejectedUploads = UploadLimitFilter.numberOfRejectedRequests.get();
+
+        int transformixExecutorQueueDepth = TransformixServlet.getExecutorQueueDepth();
+
+        int transformixExecutorActiveCount = TransformixServlet.getExecutorActiveCount();
+
+        long numberOfRejectedTransformixRequests = TransformixServlet.getNumberOfRejectedRequests();
+
+        long numberOfJavaTransformixTasks = TransformixServlet.getNumberOfJavaTransformixTasks();
+
+        long numberOfTransformedPointSets = TransformixServlet.numberOfTransformedPointSets.get();
+
+        int numberOfCachedTransforms = TransformixServlet.transformCache.getNumberOfTransforms();
+
+        long transformCacheSizeInBytes = TransformixServlet.transformCache.getSizeInBytes();
+
+        long numberOfTransformCacheHits = TransformixServlet.transformCache.getNumberOfHits();
+
+        long numberOfTransformCacheMisses = TransformixServlet.transformCache.getNumberOfMisses();
+
         int numberOfElastixTasksEnqueued = ElastixJobQueueServlet.getQueueSize();
 
-        int estimatedQueueProcessingTimeInS = ElastixJobQueueServlet.getQueueSize()*StatusServlet.config.elastixTaskEstimatedDurationInMs/1000;
+        int estimatedQueueProcessingTimeInS = (int) (ElastixJobQueueServlet.getQueueSize()*ElastixJobQueueServlet.getEstimatedQueueProgressTimePerJobInMs()/1000);
+
+        int estimatedElastixTaskDurationInMs = (int) ElastixJobQueueServlet.elastixJobDurationEstimator.getEstimatedDurationInMs();
+
+        long numberOfMeasuredElastixTasks = ElastixJobQueueServlet.elastixJobDurationEstimator.getNumberOfSamples();
+
+        Map<String, ServiceTimeEstimator.Estimate> estimatedElastixTaskDurationPerParameters = ElastixJobQueueServlet.elastixJobDurationEstimator.getEstimates();
+
+        long numberOfElastixResultCacheHits = ElastixServlet.resultCacheHits.get();
+
+        long numberOfElastixResultCacheMisses = ElastixServlet.resultCacheMisses.get();
+
+        int elastixExecutorQueueDepth = ElastixServlet.getExecutorQueueDepth();
+
+        int elastixExecutorActiveCount = ElastixServlet.getExecutorActiveCount();
+
+        int elastixJobsArchiveBacklog = ElastixServlet.getArchiver().getBacklog();
+
+        long numberOfArchivedElastixJobs = ElastixServlet.getArchiver().getNumberOfArchivedJobs();
+
+        long numberOfFailedElastixJobsArchives = ElastixServlet.getArchiver().getNumberOfFailedArchives();
+
+        long numberOfCoalescedElastixRequests = ElastixServlet.coalescedRequests.get();
+
+        int numberOfInFlightElastixRegistrations = ElastixServlet.getNumberOfInFlightRegistrations();
+
+        long numberOfRamWorkspaces = ElastixServlet.workspaces.getNumberOfRamWorkspaces();
+
+        long numberOfDiskWorkspaces = ElastixServlet.workspaces.getNumberOfDiskWorkspaces();
+
+        long ramWorkspaceReservedSizeInBytes = ElastixServlet.workspaces.getReservedSizeInBytes();
+
+        int jobFoldersCleanupBacklog = ElastixServlet.getCleaner().getBacklog();
+
+        long numberOfDeletedJobFolders = ElastixServlet.getCleaner().getNumberOfDeletedFolders();
+
+        long numberOfFailedJobFolderDeletions = ElastixServlet.getCleaner().getNumberOfFailedDeletions();
+
+        int numberOfElastixResultsCached = ElastixServlet.resultCache == null ? 0 : ElastixServlet.resultCache.getNumberOfFiles();
+
+        long numberOfElastixBatches = ElastixBatchServlet.numberOfBatches.get();
+
+        long numberOfSubmittedElastixJobs = ElastixJobsServlet.numberOfSubmittedJobs.get();
+
+        int numberOfKeptSubmittedElastixJobs = ElastixJobsServlet.getNumberOfJobs();
+
+        int numberOfStagedElastixJobs = ElastixStagingServlet.getNumberOfStagedJobs();
+
+        long stagedSizeInBytes = ElastixStagingServlet.getStagedSizeInBytes();
+
+        long numberOfStagedElastixJobsUsed = ElastixStagingServlet.numberOfStagedJobsUsed.get();
+
+        long numberOfRejectedStagings = ElastixStagingServlet.numberOfRejectedStagings.get();
+
+        int numberOfElastixServerJobsWaiting = ElastixJobQueueServlet.getNumberOfServerJobsWaiting();
 
         int numberOfRejectedRequestsBecauseOfFullQueue = ElastixJobQueueServlet.numberOfRejectedRequestsFullQueue.get();
 
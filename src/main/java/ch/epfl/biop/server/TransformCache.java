@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.transformix.ElastixTransform;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parsed transforms, identified by the sha256 of their parameter file content.
+ *
+ * The least recently used transforms are evicted when the total size of the parameter
+ * files exceeds the maximal size of the cache
+ */
+public class TransformCache {
+
+    final long maxSizeInBytes;
+
+    long sizeInBytes = 0;
+
+    final LinkedHashMap<String, Entry> transforms = new LinkedHashMap<>(16, 0.75f, true); // access order
+
+    final AtomicLong hits = new AtomicLong(0);
+
+    final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param maxSizeInBytes maximal cumulated size of the transform parameter files kept
+     */
+    public TransformCache(long maxSizeInBytes) {
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * @param id sha256 of the transform parameter file
+     * @return the transform, or null if it is not in the cache
+     */
+    public synchronized ElastixTransform get(String id) {
+        Entry entry = transforms.get(id);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.transform;
+    }
+
+    /**
+     * @param id sha256 of the transform parameter file
+     * @param transform parsed transform
+     * @param sizeInBytes size of the transform parameter file
+     */
+    public synchronized void put(String id, ElastixTransform transform, long sizeInBytes) {
+        if (sizeInBytes > maxSizeInBytes) {
+            return;
+        }
+        Entry previous = transforms.put(id, new Entry(transform, sizeInBytes));
+        if (previous != null) {
+            this.sizeInBytes -= previous.sizeInBytes;
+        }
+        this.sizeInBytes += sizeInBytes;
+        Iterator<Map.Entry<String, Entry>> iterator = transforms.entrySet().iterator();
+        while ((this.sizeInBytes > maxSizeInBytes) && iterator.hasNext()) {
+            this.sizeInBytes -= iterator.next().getValue().sizeInBytes;
+            iterator.remove();
+        }
+    }
+
+    public synchronized int getNumberOfTransforms() {
+        return transforms.size();
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public long getNumberOfHits() {
+        return hits.get();
+    }
+
+    public long getNumberOfMisses() {
+        return misses.get();
+    }
+
+    static class Entry {
+        final ElastixTransform transform;
+        final long sizeInBytes;
+
+        Entry(ElastixTransform transform, long sizeInBytes) {
+            this.transform = transform;
+            this.sizeInBytes = sizeInBytes;
+        }
+    }
+}
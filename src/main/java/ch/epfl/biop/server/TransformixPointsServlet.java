@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.transformix.ElastixTransform;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Servlet which transforms points with a transform already sent to the {@link TransformixTransformsServlet}:
+ *
+ * POST http://servername/transformix/points
+ *
+ * with a {@link PointsRequest} as json body. Several sets of points can be sent at once. Points are physical
+ * coordinates, flattened (x0, y0, z0, x1, y1, z1, ...), and are mapped from the fixed to the moving image
+ * space, like transformix does. The transformed points are sent back as a {@link PointsResponse}.
+ *
+ * If the transform is not (or not anymore) in the cache, a 404 error code is returned : the client
+ * should send the transform again
+ */
+public class TransformixPointsServlet extends HttpServlet {
+
+    public static Consumer<String> log = (str) -> {};//System.out.println(TransformixPointsServlet.class+":"+str);
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        PointsRequest pointsRequest;
+        try {
+            pointsRequest = new Gson().fromJson(request.getReader(), PointsRequest.class);
+        } catch (JsonParseException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if ((pointsRequest == null) || (pointsRequest.pointSets == null) || (!BlobStore.isValidHash(pointsRequest.id))) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        ElastixTransform transform = TransformixServlet.transformCache.get(pointsRequest.id);
+        if (transform == null) {
+            log.accept("Unknown transform " + pointsRequest.id);
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        for (double[] points : pointsRequest.pointSets) {
+            if ((points == null) || (points.length % transform.dimension != 0)) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+        }
+        for (double[] points : pointsRequest.pointSets) {
+            transform.transform(points);
+        }
+        TransformixServlet.numberOfTransformedPointSets.addAndGet(pointsRequest.pointSets.length);
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(new Gson().toJson(new PointsResponse(pointsRequest.pointSets)));
+    }
+
+    public static class PointsRequest {
+        /**
+         * Transform id, see {@link TransformixTransformsServlet.TransformInfo}
+         */
+        public String id;
+        public double[][] pointSets;
+
+        public PointsRequest(String id, double[][] pointSets) {
+            this.id = id;
+            this.pointSets = pointSets;
+        }
+    }
+
+    public static class PointsResponse {
+        public double[][] pointSets;
+
+        public PointsResponse(double[][] pointSets) {
+            this.pointSets = pointSets;
+        }
+    }
+}
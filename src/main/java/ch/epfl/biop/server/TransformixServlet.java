@@ -32,26 +32,39 @@
  */
 package ch.epfl.biop.server;
 
-import ch.epfl.biop.wrappers.transformix.DefaultTransformixTask;
+import ch.epfl.biop.wrappers.transformix.ElastixTransform;
+import ch.epfl.biop.wrappers.transformix.JavaTransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixProcessTask;
 import ch.epfl.biop.wrappers.transformix.TransformixTask;
 import ch.epfl.biop.wrappers.transformix.TransformixTaskSettings;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
 
 import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.zip.ZipOutputStream;
 
 import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
 
@@ -59,7 +72,11 @@ import static ch.epfl.biop.server.ServletUtils.copyFileToServer;
  * Servlet which performs Transformix task
  *
  * Works similarly as the {@link ElastixServlet}, except that there's no queueing system
- * and no data is kept on the server
+ * and no data is kept on the server. Jobs are processed by a bounded pool : requests
+ * beyond its capacity are rejected with a 503 error code
+ *
+ * A request which times out, or whose connection fails, is cancelled : its transformix process is killed,
+ * its thread of the pool and its workspace are given back right away
  *
  */
 
@@ -82,6 +99,26 @@ public class TransformixServlet extends HttpServlet {
 
     public static int timeOut = 50000;
 
+    public static File transformixExe = new File("transformix");
+
+    /**
+     * If true, points are transformed in Java when all the transforms are supported, see {@link ElastixTransform}
+     */
+    public static boolean useJavaTransformix = true;
+
+    static AtomicLong numberOfJavaTransformixTasks = new AtomicLong(0);
+
+    /**
+     * Parsed transforms, used by {@link TransformixTransformsServlet} and {@link TransformixPointsServlet}
+     */
+    public static TransformCache transformCache = new TransformCache(64 * 1024 * 1024);
+
+    static AtomicLong numberOfTransformedPointSets = new AtomicLong(0);
+
+    public static long getNumberOfJavaTransformixTasks() {
+        return numberOfJavaTransformixTasks.get();
+    }
+
     public static void setJobsDataLocation(String jobsDataLocation) throws IOException {
         if (jobsDataLocation.endsWith(File.separator)) {
             transformixJobsFolder = jobsDataLocation + "transformix" + File.separator;
@@ -100,36 +137,179 @@ public class TransformixServlet extends HttpServlet {
         return jobIndex;
     }
 
+    /**
+     * Shared pool processing the transformix jobs, see {@link TransformixServlet#setExecutor}
+     */
+    static ThreadPoolExecutor executor = newExecutor(4, 64);
+
+    /**
+     * Replaces the pool processing the transformix jobs. The jobs already submitted to the
+     * previous pool are still processed
+     * @param nThreads number of transformix jobs processed at the same time
+     * @param queueCapacity number of jobs which can wait for a thread, jobs submitted beyond are rejected with a 503 error code
+     */
+    public static void setExecutor(int nThreads, int queueCapacity) {
+        ThreadPoolExecutor previous = executor;
+        executor = newExecutor(nThreads, queueCapacity);
+        previous.shutdown();
+    }
+
+    static ThreadPoolExecutor newExecutor(int nThreads, int queueCapacity) {
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        return new ThreadPoolExecutor(nThreads, nThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "TransformixServlet-Worker-"+threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @return number of transformix jobs waiting for a thread of the pool
+     */
+    public static int getExecutorQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return number of transformix jobs being processed by the pool
+     */
+    public static int getExecutorActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Number of requests rejected because the pool and its queue were full
+     */
+    static AtomicLong numberOfRejectedRequests = new AtomicLong(0);
+
+    public static long getNumberOfRejectedRequests() {
+        return numberOfRejectedRequests.get();
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) {
 
         final long currentJobId = getJobIndex();
 
+        // Parts are read by the jetty thread and detached from the request, see ElastixServlet
+        final Collection<Part> parts;
+        try {
+            parts = request.getParts();
+            request.removeAttribute(Request.MULTIPARTS);
+        } catch (IOException | ServletException | IllegalStateException e) {
+            log.accept("Could not read transformix request : "+e.getMessage());
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
         AsyncContext async = request.startAsync();
         async.setTimeout(timeOut);
 
-        new Thread(() -> {
+        final AtomicBoolean isCompleted = new AtomicBoolean(false);
+        final Runnable completeResponse = () -> {
+            if (isCompleted.compareAndSet(false, true)) {
+                async.complete();
+            }
+        };
+
+        // Pool of this job, it may be replaced in the meantime, see setExecutor
+        final ThreadPoolExecutor pool = executor;
+
+        final AtomicReference<Future<?>> future = new AtomicReference<>();
+
+        // Set by the worker thread when it starts the job, or by the cancellation if the job never started :
+        // whoever sets it first is in charge of deleting the parts
+        final AtomicBoolean isStarted = new AtomicBoolean(false);
+
+        final AtomicBoolean isAlive = new AtomicBoolean(true);
+
+        // Transformix process of this request, killed if the job is cancelled
+        final AtomicReference<TransformixProcessTask> runningTask = new AtomicReference<>();
+
+        // Cancels the job : the worker thread gives back the workspace once the transformix process is gone
+        final Runnable cancelJob = () -> {
+            isAlive.set(false);
+            if (isStarted.compareAndSet(false, true)) {
+                // Still waiting for a thread of the pool : it will never run
+                if (future.get()!=null) {
+                    future.get().cancel(false);
+                    pool.remove((Runnable) future.get());
+                }
+                ElastixServlet.deleteParts(parts);
+                return;
+            }
+            if (runningTask.get()!=null) {
+                runningTask.get().cancel();
+            }
+            if (future.get()!=null) {
+                future.get().cancel(true);
+            }
+        };
+
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {}
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                log.accept("Job " + currentJobId + " timed out, cancelling it");
+                cancelJob.run();
+                response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
+                completeResponse.run();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                log.accept("Error during transformix job " + currentJobId + ", cancelling it");
+                cancelJob.run();
+                completeResponse.run();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
+
+        Runnable transformixJob = () -> {
+            if (!isStarted.compareAndSet(false, true)) return; // Cancelled while waiting in the pool
+            numberOfCurrentTask.getAndIncrement();
+            WorkspaceProvider.Workspace workspace = null;
             try {
                 log.accept("Job " + currentJobId + " started");
                 log.accept("----------- STARTING TRANSFORMIX JOB " + currentJobId);
-                numberOfCurrentTask.getAndIncrement();
 
                 TransformixTaskSettings settings = new TransformixTaskSettings();
 
-                if (!new File(transformixJobsFolder, "job_" + currentJobId).exists()) {
-                    Files.createDirectory(Paths.get(transformixJobsFolder, "job_" + currentJobId));
-                }
-
-                String currentTransformixJobFolder = Paths.get(transformixJobsFolder, "job_" + currentJobId).toString()+File.separator;
+                // Prepare temp folders, in RAM if possible
+                workspace = ElastixServlet.workspaces.acquire(transformixJobsFolder, "job_" + currentJobId, ServletUtils.getInputsSizeInBytes(parts, null));
+                String currentTransformixJobFolder = workspace.getPath();
 
                 String currentTransformixJobFolderOutputs = currentTransformixJobFolder+"output"+File.separator;
 
-                if (!new File(currentTransformixJobFolderOutputs).exists()) {
-                    Files.createDirectory(Paths.get(currentTransformixJobFolder,  "output"));
+                Files.createDirectories(Paths.get(currentTransformixJobFolderOutputs));
+
+                // Points can be sent in binary, see PointSetCodec
+                Part ptsPart = request.getPart(InputPtsFileTag);
+                PointSetCodec.PointSet inputPointSet = null;
+                String ptsPath;
+                if ((ptsPart != null) && (PointSetCodec.ContentType.equals(ptsPart.getContentType()))) {
+                    try (InputStream is = ptsPart.getInputStream()) {
+                        inputPointSet = PointSetCodec.read(is, (int) Math.min(Integer.MAX_VALUE - 8, ptsPart.getSize() / 8));
+                    } catch (PointSetCodec.InvalidPointSetException e) {
+                        // Client error : the workspace is closed and the response completed by the finally block
+                        log.accept("Job " + currentJobId + " : invalid binary points (" + e.getMessage() + ")");
+                        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                        return;
+                    }
+                    // Only written if the transformix executable is needed
+                    ptsPath = currentTransformixJobFolder + "pts.txt";
+                } else {
+                    ptsPath = copyFileToServer(currentTransformixJobFolder, request, InputPtsFileTag, "pts");
                 }
-
-                String ptsPath = copyFileToServer(currentTransformixJobFolder, request, InputPtsFileTag, "pts");
                 settings.pts(() -> ptsPath);
+                boolean binaryOutput = acceptsBinaryPoints(request);
 
                 String mImagePath = copyFileToServer(currentTransformixJobFolder, request, TransformFilesTag, "transforms");
                 settings.transform(() -> mImagePath);
@@ -138,59 +318,92 @@ public class TransformixServlet extends HttpServlet {
 
                 settings.outFolder(() -> outputFolder);
 
-                TransformixTask transformixTask = new DefaultTransformixTask();
+                TransformixTask transformixTask;
+                JavaTransformixTask javaTransformixTask = null;
+                if (useJavaTransformix && ElastixTransform.isSupported(new File(mImagePath))) {
+                    // No need to start transformix
+                    javaTransformixTask = new JavaTransformixTask();
+                    if (inputPointSet != null) {
+                        javaTransformixTask.setInputPoints(inputPointSet.dimension, inputPointSet.coordinates);
+                    }
+                    javaTransformixTask.setWriteOutputPointsFile(!binaryOutput);
+                    transformixTask = javaTransformixTask;
+                    numberOfJavaTransformixTasks.incrementAndGet();
+                } else {
+                    if (inputPointSet != null) {
+                        PointSetCodec.writePtsFile(inputPointSet, new File(ptsPath));
+                    }
+                    TransformixProcessTask processTask = new TransformixProcessTask(transformixExe);
+                    runningTask.set(processTask);
+                    if (!isAlive.get()) {
+                        // Cancelled before the task was known by cancelJob
+                        processTask.cancel();
+                    }
+                    transformixTask = processTask;
+                }
                 transformixTask.setSettings(settings);
 
-                try {
-                    transformixTask.run();
-                    String sourceFile = outputFolder;
-                    FileOutputStream fos = new FileOutputStream(currentTransformixJobFolder + "res.zip");
-                    ZipOutputStream zipOut = new ZipOutputStream(fos);
-                    File fileToZip = new File(sourceFile);
-
-                    ServletUtils.zipFile(fileToZip, fileToZip.getName(), zipOut);
-                    zipOut.close();
-                    fos.close();
-
-                    File fileResZip = new File (currentTransformixJobFolder + "res.zip");
-
-                    String registrationResultFileName = "transformix_result.zip";
+                transformixTask.run();
+                String sourceFile = outputFolder;
+                String registrationResultFileName = "transformix_result.zip";
 
+                if (binaryOutput) {
+                    PointSetCodec.PointSet outputPointSet = (javaTransformixTask != null) ?
+                            new PointSetCodec.PointSet(javaTransformixTask.getDimension(), javaTransformixTask.getOutputPoints()) :
+                            PointSetCodec.readOutputPointsFile(new File(outputFolder, "outputpoints.txt"));
+                    response.setStatus(Response.SC_OK);
+                    response.setContentType(PointSetCodec.ContentType);
+                    PointSetCodec.write(outputPointSet, response.getOutputStream());
+                } else if (ElastixServlet.streamResults) {
+                    // Same settings as for elastix results
+                    response.setStatus(Response.SC_OK);
                     response.setContentType("application/zip");
                     response.addHeader("Content-Disposition", "attachment; filename=" + registrationResultFileName);
-                    response.setContentLength((int) fileResZip.length());
-
-                    FileInputStream fileInputStream = new FileInputStream(fileResZip);
-                    ServletOutputStream responseOutputStream = response.getOutputStream();
-                    int bytes;
-                    while ((bytes = fileInputStream.read()) != -1) {
-                        responseOutputStream.write(bytes);
+                    ServletUtils.zipFolder(new File(sourceFile), response.getOutputStream(), ElastixServlet.resultCompressionLevel, ElastixServlet.storeResultsUncompressed);
+                } else {
+                    File fileResZip = new File (currentTransformixJobFolder + "res.zip");
+                    try (FileOutputStream fos = new FileOutputStream(fileResZip)) {
+                        ServletUtils.zipFolder(new File(sourceFile), fos, ElastixServlet.resultCompressionLevel, ElastixServlet.storeResultsUncompressed);
                     }
+                    ServletUtils.sendFile(response, fileResZip, "application/zip", registrationResultFileName);
+                }
 
-                    log.accept("----------- ENDING TRANSFORMIX JOB " + currentJobId);
-                    responseOutputStream.close();
-                    fileInputStream.close();
-                    response.setStatus(Response.SC_OK);
-                    async.complete();
-                    numberOfCurrentTask.decrementAndGet();
-                    ServletUtils.eraseFolder(currentTransformixJobFolder);
-
-                } catch (Exception e) {
+                log.accept("----------- ENDING TRANSFORMIX JOB " + currentJobId);
+            } catch (Exception e) {
+                if (isAlive.get()) {
                     e.printStackTrace();
                     response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
-                    async.complete();
-                    numberOfCurrentTask.decrementAndGet();
-                    ServletUtils.eraseFolder(currentTransformixJobFolder);
+                } else {
+                    log.accept("Job " + currentJobId + " cancelled");
                 }
-
-            } catch (IOException|ServletException e) {
-                e.printStackTrace();
-                response.setStatus(Response.SC_INTERNAL_SERVER_ERROR);
-                async.complete();
+            } finally {
+                // Whatever happened, the workspace and the slot are given back
+                completeResponse.run();
                 numberOfCurrentTask.decrementAndGet();
+                if (workspace != null) {
+                    workspace.close();
+                }
+                ElastixServlet.deleteParts(parts);
             }
-        }).start();
+        };
+
+        try {
+            future.set(pool.submit(transformixJob));
+        } catch (RejectedExecutionException e) {
+            log.accept("Transformix executor full - job " + currentJobId + " will not be processed");
+            numberOfRejectedRequests.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            ElastixServlet.deleteParts(parts);
+            completeResponse.run();
+        }
+    }
 
+    /**
+     * @return true if the client asked for transformed points in binary, see {@link PointSetCodec}
+     */
+    static boolean acceptsBinaryPoints(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return (accept != null) && (accept.contains(PointSetCodec.ContentType));
     }
 
     static AtomicInteger numberOfCurrentTask = new AtomicInteger(0);
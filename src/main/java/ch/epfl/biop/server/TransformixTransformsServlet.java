@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.transformix.ElastixTransform;
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Servlet which parses a transform parameters file and keeps it in the {@link TransformixServlet#transformCache}:
+ *
+ * POST http://servername/transformix/transforms
+ *
+ * with the content of the transform parameters file as body. The id of the transform (sha256 of the file
+ * content) is sent back, see {@link TransformInfo}. Points can then be transformed with the
+ * {@link TransformixPointsServlet} without sending the transform again.
+ *
+ * Transforms which cannot be evaluated in Java (see {@link ElastixTransform}), or which depend on an
+ * initial transform file, are rejected with a 422 error code : the {@link TransformixServlet} should be used instead
+ */
+public class TransformixTransformsServlet extends HttpServlet {
+
+    public static Consumer<String> log = (str) -> {};//System.out.println(TransformixTransformsServlet.class+":"+str);
+
+    final public static int UnsupportedTransformStatus = 422;
+
+    public static long maxTransformSizeInBytes = 1024 * 1024;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        byte[] content = IOUtils.toByteArray(new BoundedInputStream(request.getInputStream(), maxTransformSizeInBytes + 1));
+        if (content.length > maxTransformSizeInBytes) {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        String id = ServletUtils.toHex(ServletUtils.sha256().digest(content));
+        ElastixTransform transform = TransformixServlet.transformCache.get(id);
+        if (transform == null) {
+            try {
+                transform = ElastixTransform.parse(new String(content, StandardCharsets.UTF_8));
+            } catch (ElastixTransform.UnsupportedTransformException e) {
+                log.accept("Unsupported transform : " + e.getMessage());
+                response.setStatus(UnsupportedTransformStatus);
+                return;
+            }
+            TransformixServlet.transformCache.put(id, transform, content.length);
+        }
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println(new Gson().toJson(new TransformInfo(id, transform.dimension)));
+    }
+
+    public static class TransformInfo {
+        public String id;
+        public int dimension;
+
+        public TransformInfo(String id, int dimension) {
+            this.id = id;
+            this.dimension = dimension;
+        }
+    }
+}
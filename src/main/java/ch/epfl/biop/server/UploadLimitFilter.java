@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Limits the number of jetty threads reading uploads at the same time.
+ *
+ * Multipart requests are read by the jetty thread which handles them : with slow clients, the uploads
+ * could hold all the threads of the server, and the light requests (status, queue updates, results)
+ * would not be answered anymore. Only {@link UploadLimitFilter#maxNumberOfSimultaneousUploads} POST requests
+ * go through this filter at the same time, the other ones are suspended without holding a thread, and resumed
+ * when an upload is over. The remaining threads of the pool are thus kept for the light requests,
+ * see {@link RegistrationServerConfig#numberOfThreadsReservedForLightRequests}.
+ *
+ * A request which waits longer than {@link UploadLimitFilter#maxWaitingTimeInMs} is answered with a 503 error code.
+ *
+ * When an upload is over, its permit is handed over to the oldest suspended request instead of being released :
+ * a new request cannot take it in the meantime, and the suspended requests are resumed in their arrival order.
+ */
+public class UploadLimitFilter implements Filter {
+
+    public static Consumer<String> log = (str) -> System.out.println(UploadLimitFilter.class+":"+str);
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}
+     */
+    public static int maxNumberOfSimultaneousUploads = 4;
+
+    /**
+     * Can be configured in {@link RegistrationServerConfig}
+     */
+    public static long maxWaitingTimeInMs = 80000;
+
+    final static String SuspendedAttribute = UploadLimitFilter.class.getName()+".suspended";
+
+    /**
+     * Set on a suspended request which is resumed with the permit of the upload which was over
+     */
+    final static String PermitAttribute = UploadLimitFilter.class.getName()+".permit";
+
+    static Semaphore uploads = new Semaphore(maxNumberOfSimultaneousUploads, true);
+
+    final static Queue<AsyncContext> suspendedRequests = new ConcurrentLinkedQueue<>();
+
+    final static AtomicLong numberOfRejectedRequests = new AtomicLong(0);
+
+    /**
+     * Should be called before the server starts
+     * @param nUploads number of uploads read at the same time
+     */
+    public static void setMaxNumberOfSimultaneousUploads(int nUploads) {
+        maxNumberOfSimultaneousUploads = Math.max(1, nUploads);
+        uploads = new Semaphore(maxNumberOfSimultaneousUploads, true);
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) { }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!"POST".equals(((HttpServletRequest) request).getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        if ((request.getDispatcherType() == DispatcherType.ASYNC)&&(request.getAttribute(SuspendedAttribute) == null)) {
+            // Asynchronous dispatch of the servlet itself, the upload has been read already
+            chain.doFilter(request, response);
+            return;
+        }
+        request.removeAttribute(SuspendedAttribute);
+        boolean hasPermit = request.getAttribute(PermitAttribute) != null;
+        request.removeAttribute(PermitAttribute);
+        if ((!hasPermit)&&(!uploads.tryAcquire())) {
+            suspend(request, response);
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            handOverPermit();
+        }
+    }
+
+    /**
+     * The request is dispatched again by {@link UploadLimitFilter#handOverPermit()} when an upload is over
+     */
+    static void suspend(ServletRequest request, ServletResponse response) {
+        request.setAttribute(SuspendedAttribute, Boolean.TRUE);
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(maxWaitingTimeInMs);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) { }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (!suspendedRequests.remove(async)) return; // Resumed in the meantime
+                log.accept("Upload waited too long for a thread, request rejected");
+                numberOfRejectedRequests.incrementAndGet();
+                ((HttpServletResponse) async.getResponse()).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                async.complete();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                suspendedRequests.remove(async);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) { }
+        });
+        suspendedRequests.add(async);
+        // An upload may have been over in the meantime, with nobody to hand its permit over to
+        if (uploads.tryAcquire()) handOverPermit();
+    }
+
+    /**
+     * Gives the permit held by the caller to the oldest suspended request, or releases it if no request is suspended
+     */
+    static void handOverPermit() {
+        while (true) {
+            AsyncContext async = suspendedRequests.poll();
+            if (async == null) {
+                uploads.release();
+                // A request may have been suspended since the poll : it did not get the permit, which is free now
+                if (suspendedRequests.isEmpty() || !uploads.tryAcquire()) return;
+                continue;
+            }
+            try {
+                async.getRequest().setAttribute(PermitAttribute, Boolean.TRUE);
+                async.dispatch();
+                return;
+            } catch (IllegalStateException e) {
+                // Timed out or gone in the meantime : the permit goes to the next one
+                log.accept("Could not resume upload : "+e.getMessage());
+            }
+        }
+    }
+
+    public static int getNumberOfSuspendedUploads() {
+        return suspendedRequests.size();
+    }
+
+    @Override
+    public void destroy() { }
+}
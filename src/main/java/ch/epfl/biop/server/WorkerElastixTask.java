@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.elastix.ElastixProcessTask;
+import ch.epfl.biop.wrappers.elastix.RemoteElastixTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Elastix task of a coordinator (see {@link FederationServlet}) : it is run by the coordinator if it has a free slot,
+ * otherwise by a worker. If the worker cannot be reached or is overloaded, the task is sent to another worker.
+ * If neither the coordinator nor a worker has a free slot, the task waits for one.
+ *
+ * The result is written in the output folder of the task, as if elastix had been run locally.
+ */
+class WorkerElastixTask extends ElastixProcessTask {
+
+    public static Consumer<String> log = (str) -> System.out.println(WorkerElastixTask.class+":"+str);
+
+    volatile CompletableFuture<File> remoteResult;
+
+    WorkerElastixTask(File elastixExe, int nThreads) {
+        super(elastixExe, nThreads);
+    }
+
+    @Override
+    public void run() throws InterruptedException, IOException {
+        Set<String> triedWorkers = new HashSet<>();
+        while (true) {
+            FederationServlet.Worker worker = FederationServlet.acquireSlot(triedWorkers, this::isCancelled);
+            try {
+                if (worker == null) {
+                    super.run();
+                    return;
+                }
+                triedWorkers.add(worker.url);
+                if (runOnWorker(worker)) return;
+            } finally {
+                FederationServlet.releaseSlot(worker);
+            }
+        }
+    }
+
+    /**
+     * @return false if the worker could not run the task, which can be sent elsewhere
+     */
+    boolean runOnWorker(FederationServlet.Worker worker) throws InterruptedException, IOException {
+        CompletableFuture<File> result = worker.client.submitAsync(settings);
+        remoteResult = result;
+        if (isCancelled()) {
+            result.cancel(true);
+        }
+        try {
+            result.get();
+            return true;
+        } catch (CancellationException e) {
+            throw new InterruptedException("Elastix task cancelled");
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteElastixTask.ServerUnavailableException) {
+                log.accept("Worker "+worker.url+" overloaded");
+                return false;
+            }
+            if (cause instanceof IOException) {
+                FederationServlet.removeWorker(worker);
+                return false;
+            }
+            throw new IOException("Worker "+worker.url+" : "+cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        super.cancel();
+        CompletableFuture<File> result = remoteResult;
+        if (result != null) {
+            result.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Provides the folders where the jobs write their data (inputs, outputs, zipped results).
+ *
+ * If a RAM backed location is configured (a tmpfs like /dev/shm on Linux, see {@link RegistrationServerConfig#ramWorkspaceLocation}),
+ * the jobs are processed there as long as the memory budget allows it. Otherwise, or when the budget is exceeded,
+ * the job folder is created on the disk, like before.
+ *
+ * The size of a job is not known before it runs : a job reserves a multiple of the size of its inputs
+ * (inputs are copied, then outputs and zipped results are written), which is given back once its workspace is closed
+ * and really deleted by the {@link FolderCleaner}.
+ * The files referenced by their hash are counted for their real size, see {@link ServletUtils#getInputsSizeInBytes} :
+ * a job whose inputs size is not known is processed on the disk.
+ */
+public class WorkspaceProvider {
+
+    public static Consumer<String> log = (str) -> System.out.println(WorkspaceProvider.class+":"+str);
+
+    /**
+     * Estimated size of a job workspace, relative to the size of its request
+     */
+    final public static int SizeFactor = 3;
+
+    final File ramLocation;
+
+    final long maxSizeInBytes;
+
+    final AtomicLong reservedSizeInBytes = new AtomicLong(0);
+
+    final AtomicLong numberOfRamWorkspaces = new AtomicLong(0);
+
+    final AtomicLong numberOfDiskWorkspaces = new AtomicLong(0);
+
+    final FolderCleaner cleaner;
+
+    /**
+     * Workspaces are always created on the disk
+     * @param cleaner deletes the closed workspaces
+     */
+    public WorkspaceProvider(FolderCleaner cleaner) {
+        this.ramLocation = null;
+        this.maxSizeInBytes = 0;
+        this.cleaner = cleaner;
+    }
+
+    /**
+     * @param ramLocation RAM backed folder, null or empty to always create workspaces on the disk
+     * @param maxSizeInBytes memory budget of the RAM backed folder
+     * @param cleaner deletes the closed workspaces
+     * @throws IOException if the RAM backed folder cannot be created
+     */
+    public WorkspaceProvider(String ramLocation, long maxSizeInBytes, FolderCleaner cleaner) throws IOException {
+        this.cleaner = cleaner;
+        if ((ramLocation == null) || (ramLocation.trim().equals("")) || (maxSizeInBytes <= 0)) {
+            this.ramLocation = null;
+            this.maxSizeInBytes = 0;
+        } else {
+            this.ramLocation = new File(ramLocation);
+            this.maxSizeInBytes = maxSizeInBytes;
+            Files.createDirectories(this.ramLocation.toPath());
+            cleaner.addRoot(this.ramLocation);
+            // Leftovers of a previous run are not accounted for in the budget
+            File[] leftovers = this.ramLocation.listFiles(file -> !file.getName().equals(FolderCleaner.TrashFolderName));
+            if (leftovers != null) {
+                for (File leftover : leftovers) {
+                    cleaner.delete(leftover);
+                }
+            }
+        }
+    }
+
+    public boolean hasRamLocation() {
+        return ramLocation != null;
+    }
+
+    /**
+     * Creates the workspace of a job
+     * @param diskFolder folder where the job workspaces are created on the disk (elastix or transformix jobs folder)
+     * @param name name of the job folder
+     * @param requestSizeInBytes size of the job inputs, -1 if it is not known
+     * @return the workspace, in RAM if possible
+     * @throws IOException if the workspace cannot be created
+     */
+    public Workspace acquire(String diskFolder, String name, long requestSizeInBytes) throws IOException {
+        if ((ramLocation != null) && (requestSizeInBytes >= 0)) {
+            long expectedSizeInBytes = requestSizeInBytes * SizeFactor;
+            if (reserve(expectedSizeInBytes)) {
+                // Same sub folder name as on the disk, in order to separate elastix and transformix jobs
+                File folder = new File(new File(ramLocation, new File(diskFolder).getName()), name);
+                try {
+                    Files.createDirectories(folder.toPath());
+                } catch (IOException e) {
+                    reservedSizeInBytes.addAndGet(-expectedSizeInBytes);
+                    throw e;
+                }
+                numberOfRamWorkspaces.incrementAndGet();
+                return new Workspace(folder, expectedSizeInBytes);
+            }
+            log.accept("Memory budget exceeded, "+name+" is processed on the disk");
+        }
+        File folder = new File(diskFolder, name);
+        Files.createDirectories(folder.toPath());
+        numberOfDiskWorkspaces.incrementAndGet();
+        return new Workspace(folder, 0);
+    }
+
+    boolean reserve(long sizeInBytes) {
+        while (true) {
+            long current = reservedSizeInBytes.get();
+            if (current + sizeInBytes > maxSizeInBytes) {
+                return false;
+            }
+            if (reservedSizeInBytes.compareAndSet(current, current + sizeInBytes)) {
+                return true;
+            }
+        }
+    }
+
+    public long getReservedSizeInBytes() {
+        return reservedSizeInBytes.get();
+    }
+
+    public long getNumberOfRamWorkspaces() {
+        return numberOfRamWorkspaces.get();
+    }
+
+    public long getNumberOfDiskWorkspaces() {
+        return numberOfDiskWorkspaces.get();
+    }
+
+    /**
+     * Folder of a job, deleted when closed
+     */
+    public class Workspace {
+
+        final File folder;
+
+        final long reservedSizeInBytes;
+
+        final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Workspace(File folder, long reservedSizeInBytes) {
+            this.folder = folder;
+            this.reservedSizeInBytes = reservedSizeInBytes;
+        }
+
+        /**
+         * @return the path of the workspace folder, ending with a file separator
+         */
+        public String getPath() {
+            return folder.getAbsolutePath()+File.separator;
+        }
+
+        public boolean isInRam() {
+            return reservedSizeInBytes > 0;
+        }
+
+        /**
+         * Deletes the workspace folder (in the background) and gives its memory back once it is deleted :
+         * until then, its files still use the RAM. Can be called several times
+         */
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                if (reservedSizeInBytes > 0) {
+                    cleaner.delete(folder, () -> WorkspaceProvider.this.reservedSizeInBytes.addAndGet(-reservedSizeInBytes));
+                } else {
+                    cleaner.delete(folder);
+                }
+            }
+        }
+    }
+}
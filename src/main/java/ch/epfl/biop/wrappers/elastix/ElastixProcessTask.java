@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs an Elastix task as a native process which can be killed, see {@link ElastixProcessTask#cancel()}
+ *
+ * Used by the {@link ch.epfl.biop.server.ElastixServlet} : a registration nobody waits for anymore
+ * should not keep using the cores of the server
+ */
+public class ElastixProcessTask extends ElastixTask {
+
+    final File elastixExe;
+
+    final int nThreads;
+
+    Process process;
+
+    boolean cancelled = false;
+
+    /**
+     * @param elastixExe elastix executable file
+     * @param nThreads number of threads used by elastix
+     */
+    public ElastixProcessTask(File elastixExe, int nThreads) {
+        this.elastixExe = elastixExe;
+        this.nThreads = nThreads;
+    }
+
+    /**
+     * Runs elastix and waits for the end of the process
+     * @throws InterruptedException if the task has been cancelled or if the thread has been interrupted : in both
+     * cases, the process is not running anymore when the exception is thrown
+     * @throws IOException if elastix could not be started or failed
+     */
+    public void run() throws InterruptedException, IOException {
+        List<String> command = new ArrayList<>();
+        command.add(elastixExe.getAbsolutePath());
+        command.add("-f");
+        command.add(settings.fixedImagePathSupplier.get());
+        command.add("-m");
+        command.add(settings.movingImagePathSupplier.get());
+        if (settings.initialTransformFilePath!=null) {
+            command.add("-t0");
+            command.add(settings.initialTransformFilePath);
+        }
+        for (Supplier<String> transformationParameterPath : settings.transformationParameterPathSupplier) {
+            command.add("-p");
+            command.add(transformationParameterPath.get());
+        }
+        command.add("-out");
+        command.add(settings.outputFolderSupplier.get());
+        command.add("-threads");
+        command.add(Integer.toString(nThreads));
+
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(settings.outputFolderSupplier.get(), "elastix_console.log"));
+
+        Process currentProcess;
+        synchronized (this) {
+            if (cancelled) {
+                throw new InterruptedException("Elastix task cancelled");
+            }
+            process = processBuilder.start();
+            currentProcess = process;
+        }
+
+        int exitValue;
+        try {
+            exitValue = currentProcess.waitFor();
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+
+        if (isCancelled()) {
+            throw new InterruptedException("Elastix task cancelled");
+        }
+        if (exitValue!=0) {
+            throw new IOException("Elastix exited with code "+exitValue);
+        }
+    }
+
+    /**
+     * Kills the elastix process and its descendants, if any, and waits for the process to be gone.
+     * Can be called before the task is started, in which case it will not start.
+     */
+    public void cancel() {
+        Process currentProcess;
+        synchronized (this) {
+            cancelled = true;
+            currentProcess = process;
+        }
+        if (currentProcess!=null) {
+            destroyProcessTree(currentProcess);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Kills a process and its descendants, and waits for the process to be gone.
+     * Descendants can only be found with Java 9+, only the process is killed with Java 8.
+     * @param process to kill
+     */
+    public static void destroyProcessTree(Process process) {
+        // Descendants are listed first : they are not descendants anymore once their parent is dead
+        for (Object descendant : getDescendants(process)) {
+            try {
+                Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly").invoke(descendant);
+            } catch (ReflectiveOperationException e) {
+                // Cannot happen if the descendants could be listed
+            }
+        }
+        process.destroyForcibly();
+        boolean interrupted = false;
+        while (process.isAlive()) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                interrupted = true; // The process needs to be gone before returning
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param process parent process
+     * @return the ProcessHandle of all descendants of the process, empty list with Java 8
+     */
+    static List<Object> getDescendants(Process process) {
+        try {
+            Method toHandle = Process.class.getMethod("toHandle");
+            Method descendants = Class.forName("java.lang.ProcessHandle").getMethod("descendants");
+            Stream<?> stream = (Stream<?>) descendants.invoke(toHandle.invoke(process));
+            return stream.collect(Collectors.toList());
+        } catch (ReflectiveOperationException e) {
+            return new ArrayList<>(); // Java 8
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import ch.epfl.biop.server.ElastixBatchServlet;
+import ch.epfl.biop.server.ElastixServlet;
+import ch.epfl.biop.server.ServletUtils;
+import com.google.gson.Gson;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static ch.epfl.biop.server.RegistrationServer.ELASTIX_BATCH_PATH;
+import static ch.epfl.biop.server.RegistrationServer.ELASTIX_PATH;
+
+/**
+ * Sends many elastix tasks to a {@link ch.epfl.biop.server.RegistrationServer} in a single request,
+ * see {@link ElastixBatchServlet}. The files which are identical for all tasks (typically the fixed image and
+ * the parameter files) are sent only once.
+ *
+ * Results are received while the server processes the tasks : the future of each task is completed as
+ * soon as its result is written in its output folder.
+ */
+public class RemoteElastixBatch {
+
+    public static Consumer<String> log = (str) -> System.out.println(RemoteElastixBatch.class+":"+str);
+
+    /**
+     * The response is streamed while the tasks are processed : this is the maximal time without any news
+     * from the server, i.e. the time to wait for the next result
+     */
+    public static int timeOutInMs = 600000;
+
+    String serverUrlBatch;
+
+    /**
+     * Key of the hashes known by the server, shared with {@link RemoteElastixTask}
+     */
+    String serverUrlElastix;
+
+    public RemoteElastixBatch(String serverUrl) {
+        this.serverUrlBatch = serverUrl+ELASTIX_BATCH_PATH;
+        this.serverUrlElastix = serverUrl+ELASTIX_PATH;
+    }
+
+    /**
+     * Sends the tasks to the server, in the background
+     * @param tasks settings of the elastix tasks
+     * @return the future output folder of each task, in the same order as the tasks
+     */
+    public List<CompletableFuture<File>> submit(List<ElastixTaskSettings> tasks) {
+        List<CompletableFuture<File>> results = new ArrayList<>();
+        for (int i = 0; i<tasks.size(); i++) {
+            results.add(new CompletableFuture<>());
+        }
+        if (tasks.isEmpty()) return results;
+        Thread thread = new Thread(() -> {
+            try {
+                run(tasks, results);
+            } catch (Exception e) {
+                log.accept("Batch failed : "+e.getMessage());
+                for (CompletableFuture<File> result : results) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }, "RemoteElastixBatch");
+        thread.setDaemon(true);
+        thread.start();
+        return results;
+    }
+
+    void run(List<ElastixTaskSettings> tasks, List<CompletableFuture<File>> results) throws Exception {
+
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeOutInMs)
+                .setConnectionRequestTimeout(timeOutInMs)
+                .setSocketTimeout(timeOutInMs).build();
+
+        List<Map<String, File>> files = new ArrayList<>();
+        for (ElastixTaskSettings settings : tasks) {
+            files.add(getFiles(settings));
+        }
+
+        // Files already sent to this server are only referenced by their hash
+        Set<String> knownHashes = RemoteElastixTask.knownHashesPerServer.computeIfAbsent(serverUrlElastix, url -> ConcurrentHashMap.newKeySet());
+
+        try (CloseableHttpClient httpclient = RemoteHttpClients.get(serverUrlBatch, config)) {
+
+            HttpPost httppost = new HttpPost(serverUrlBatch);
+            httppost.setEntity(buildBatchEntity(tasks, files, RemoteElastixTask.useContentAddressedInputs ? knownHashes : Collections.emptySet()));
+
+            log.accept(">>> Client sending batch of "+tasks.size()+" registrations");
+
+            HttpResponse response = httpclient.execute(httppost);
+            if (response.getStatusLine().getStatusCode()==ElastixServlet.UnknownHashesStatus) {
+                // The server does not have (anymore) some files : let's send them
+                ElastixServlet.UnknownHashes unknownHashes = new Gson().fromJson(
+                        IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixServlet.UnknownHashes.class);
+                log.accept(">>> Server does not know "+unknownHashes.unknownHashes.size()+" file(s), sending them");
+                knownHashes.removeAll(unknownHashes.unknownHashes);
+                httppost.setEntity(buildBatchEntity(tasks, files, knownHashes));
+                response = httpclient.execute(httppost);
+            }
+
+            if (response.getStatusLine().getStatusCode()!=200) {
+                EntityUtils.consume(response.getEntity());
+                if (response.getStatusLine().getStatusCode()==503) {
+                    throw new RemoteElastixTask.ServerUnavailableException("Server batch registration failed with status line : "+response.getStatusLine());
+                }
+                throw new HttpException("Server batch registration failed with status line : "+response.getStatusLine());
+            }
+
+            for (Map<String, File> taskFiles : files) {
+                RemoteElastixTask.updateKnownHashes(response, taskFiles, knownHashes);
+            }
+
+            // Each entry of the response is the result of a task, received as soon as the task is done
+            try (ZipInputStream zis = new ZipInputStream(response.getEntity().getContent())) {
+                ZipEntry entry = zis.getNextEntry();
+                while (entry != null) {
+                    String name = entry.getName();
+                    int taskIndex = getTaskIndex(name, tasks.size());
+                    if (taskIndex<0) {
+                        log.accept("Unexpected entry in batch response : "+name);
+                    } else if (name.equals(ElastixBatchServlet.ResultEntryName(taskIndex))) {
+                        File outputFolder = new File(tasks.get(taskIndex).outputFolderSupplier.get());
+                        try {
+                            RemoteElastixTask.unzip(new ZipInputStream(zis), outputFolder);
+                            results.get(taskIndex).complete(outputFolder);
+                        } catch (IOException e) {
+                            results.get(taskIndex).completeExceptionally(e);
+                        }
+                    } else {
+                        String reason = IOUtils.toString(zis, StandardCharsets.UTF_8);
+                        results.get(taskIndex).completeExceptionally(new HttpException("Server registration failed : "+reason));
+                    }
+                    entry = zis.getNextEntry();
+                }
+            }
+        }
+
+        for (CompletableFuture<File> result : results) {
+            if (!result.isDone()) {
+                result.completeExceptionally(new HttpException("The registration server did not return any result for this task"));
+            }
+        }
+    }
+
+    /**
+     * @return the index of the task of an entry of the batch response, or -1
+     */
+    static int getTaskIndex(String entryName, int numberOfTasks) {
+        for (String suffix : new String[]{".zip", ".error"}) {
+            if (entryName.startsWith("job_")&&entryName.endsWith(suffix)) {
+                try {
+                    int index = Integer.parseInt(entryName.substring(4, entryName.length()-suffix.length()));
+                    return ((index>=0)&&(index<numberOfTasks)) ? index : -1;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the files of a task, by tag, like {@link RemoteElastixTask}
+     */
+    static Map<String, File> getFiles(ElastixTaskSettings settings) {
+        Map<String, File> files = new LinkedHashMap<>();
+        files.put(ElastixServlet.FixedImageTag, new File(settings.fixedImagePathSupplier.get()));
+        files.put(ElastixServlet.MovingImageTag, new File(settings.movingImagePathSupplier.get()));
+        if (settings.initialTransformFilePath!=null) {
+            files.put(ElastixServlet.InitialTransformTag, new File(settings.initialTransformFilePath));
+        }
+        int indexTransformationParameter = 0;
+        for (Supplier<String> s : settings.transformationParameterPathSupplier) {
+            files.put(ElastixServlet.TransformParameterTag(indexTransformationParameter), new File(s.get()));
+            indexTransformationParameter++;
+        }
+        return files;
+    }
+
+    /**
+     * Builds the multipart batch request : a file is sent once if all tasks use it, otherwise it is sent
+     * for each task which uses it
+     * @param tasks settings of the tasks
+     * @param files files of each task, by tag
+     * @param knownHashes hashes of the files known by the server : these files are referenced instead of being sent
+     * @return the http entity
+     */
+    static HttpEntity buildBatchEntity(List<ElastixTaskSettings> tasks, List<Map<String, File>> files, Set<String> knownHashes) throws IOException {
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+        builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
+
+        builder.addTextBody(ElastixBatchServlet.NumberOfJobsTag, Integer.toString(tasks.size()));
+
+        // Task metadata and number of transforms
+        Map<String, List<String>> texts = new LinkedHashMap<>();
+        texts.put(ElastixServlet.TaskMetadata, new ArrayList<>());
+        texts.put(ElastixServlet.NumberOfTransformsTag, new ArrayList<>());
+        for (ElastixTaskSettings settings : tasks) {
+            boolean hasInfo = (settings.taskInfo!=null)&&(!settings.taskInfo.trim().equals(""));
+            texts.get(ElastixServlet.TaskMetadata).add(hasInfo ? settings.taskInfo : null);
+            texts.get(ElastixServlet.NumberOfTransformsTag).add(Integer.toString(settings.transformationParameterPathSupplier.size()));
+        }
+        for (Map.Entry<String, List<String>> text : texts.entrySet()) {
+            String tag = text.getKey();
+            List<String> values = text.getValue();
+            if (values.stream().allMatch(value -> Objects.equals(value, values.get(0)))) {
+                if (values.get(0)!=null) {
+                    builder.addTextBody(tag, values.get(0), ContentType.DEFAULT_TEXT);
+                }
+            } else if (!tag.equals(ElastixServlet.TaskMetadata)) { // Only shared metadata is supported
+                for (int taskIndex = 0; taskIndex<values.size(); taskIndex++) {
+                    builder.addTextBody(ElastixBatchServlet.JobTag(tag, taskIndex), values.get(taskIndex), ContentType.DEFAULT_TEXT);
+                }
+            }
+        }
+
+        // Files
+        Set<String> tags = new LinkedHashSet<>();
+        for (Map<String, File> taskFiles : files) {
+            tags.addAll(taskFiles.keySet());
+        }
+        for (String tag : tags) {
+            File first = files.get(0).get(tag);
+            boolean shared = files.stream().allMatch(taskFiles -> (first!=null)&&(first.equals(taskFiles.get(tag))));
+            if (shared) {
+                addFile(builder, tag, first, knownHashes);
+            } else {
+                for (int taskIndex = 0; taskIndex<files.size(); taskIndex++) {
+                    File f = files.get(taskIndex).get(tag);
+                    if (f!=null) {
+                        addFile(builder, ElastixBatchServlet.JobTag(tag, taskIndex), f, knownHashes);
+                    }
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    static void addFile(MultipartEntityBuilder builder, String tag, File f, Set<String> knownHashes) throws IOException {
+        if ((!knownHashes.isEmpty())&&(knownHashes.contains(RemoteElastixTask.getHash(f)))) {
+            String extension = FilenameUtils.getExtension(f.getName());
+            builder.addTextBody(tag+ServletUtils.ContentHashSuffix, RemoteElastixTask.getHash(f)+(extension.equals("")?"":"."+extension));
+        } else {
+            boolean isImage = tag.startsWith(ElastixServlet.FixedImageTag)||tag.startsWith(ElastixServlet.MovingImageTag);
+            builder.addPart(tag, new FileBody(f, isImage ? ContentType.DEFAULT_BINARY : ContentType.DEFAULT_TEXT));
+        }
+    }
+}
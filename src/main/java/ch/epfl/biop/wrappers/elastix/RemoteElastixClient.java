@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import ch.epfl.biop.server.ElastixJobsServlet;
+import ch.epfl.biop.server.ElastixServlet;
+import ch.epfl.biop.wrappers.transformix.RemoteTransformixTask;
+import ch.epfl.biop.wrappers.transformix.TransformixTaskSettings;
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.ZipInputStream;
+
+import static ch.epfl.biop.server.RegistrationServer.ELASTIX_JOBS_PATH;
+import static ch.epfl.biop.server.RegistrationServer.ELASTIX_PATH;
+
+/**
+ * Sends elastix tasks to a {@link ch.epfl.biop.server.RegistrationServer} without holding a thread per task.
+ *
+ * Each task is submitted to the server as a job (see {@link ElastixJobsServlet}), then a single thread
+ * per client follows all the jobs with a status request which is kept open by the server until one of
+ * them is over. Files are sent and results are fetched by a small pool of threads shared by all clients.
+ * So hundreds of registrations can be in progress with a handful of threads and connections, and callers
+ * can chain what comes next (a transformix task for instance, see {@link RemoteElastixClient#transformAsync(TransformixTaskSettings)})
+ * on the returned futures:
+ *
+ * client.submitAsync(settings).thenCompose(folder -> client.transformAsync(transformixSettings))
+ *
+ * Dependent stages which block should be run with one of the async methods of {@link CompletableFuture},
+ * otherwise they run in the shared threads. Cancelling a future cancels the job on the server.
+ */
+public class RemoteElastixClient {
+
+    public static Consumer<String> log = (str) -> System.out.println(RemoteElastixClient.class+":"+str);
+
+    public static int timeOutInMs = 100000;
+
+    /**
+     * Maximal time during which the server keeps a status request open, it also caps it
+     */
+    public static int statusWaitInMs = 10000;
+
+    /**
+     * Number of consecutive failed status requests after which the pending jobs fail
+     */
+    public static int maxStatusErrors = 5;
+
+    /**
+     * Number of threads sending files and fetching results, used when the first client is created
+     */
+    public static int numberOfThreads = 4;
+
+    static ExecutorService executor;
+
+    final String serverUrlJobs;
+
+    /**
+     * Key of the hashes known by the server, shared with {@link RemoteElastixTask}
+     */
+    final String serverUrlElastix;
+
+    final String serverUrl;
+
+    /**
+     * Submitted jobs which are not over yet, by job id
+     */
+    final Map<Long, PendingJob> pendingJobs = new ConcurrentHashMap<>();
+
+    final AtomicBoolean polling = new AtomicBoolean(false);
+
+    public RemoteElastixClient(String serverUrl) {
+        this.serverUrl = serverUrl;
+        this.serverUrlJobs = serverUrl+ELASTIX_JOBS_PATH;
+        this.serverUrlElastix = serverUrl+ELASTIX_PATH;
+        getExecutor();
+    }
+
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(numberOfThreads, runnable -> {
+                Thread thread = new Thread(runnable, "RemoteElastixClient");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    CloseableHttpClient getHttpClient() {
+        return RemoteHttpClients.get(serverUrlJobs, RequestConfig.custom()
+                .setConnectTimeout(timeOutInMs)
+                .setConnectionRequestTimeout(timeOutInMs)
+                .setSocketTimeout(timeOutInMs).build());
+    }
+
+    /**
+     * @return the number of jobs submitted by this client which are not over yet
+     */
+    public int getNumberOfPendingJobs() {
+        return pendingJobs.size();
+    }
+
+    /**
+     * Submits an elastix task to the server
+     * @param settings settings of the task
+     * @return the future output folder of the task, where the result of the registration has been written
+     */
+    public CompletableFuture<File> submitAsync(ElastixTaskSettings settings) {
+        CompletableFuture<File> result = new CompletableFuture<>();
+        getExecutor().execute(() -> {
+            try {
+                submit(settings, result);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Runs a transformix task on the server, see {@link RemoteTransformixTask}
+     * @param settings settings of the task
+     * @return the future output folder of the task
+     */
+    public CompletableFuture<File> transformAsync(TransformixTaskSettings settings) {
+        return CompletableFuture.supplyAsync(() -> {
+            RemoteTransformixTask task = new RemoteTransformixTask(serverUrl);
+            task.setSettings(settings);
+            try {
+                task.run();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return new File(settings.outputFolderSupplier.get());
+        }, getExecutor());
+    }
+
+    void submit(ElastixTaskSettings settings, CompletableFuture<File> result) throws Exception {
+        if (result.isDone()) return; // Cancelled in the meantime
+
+        CloseableHttpClient httpclient = getHttpClient();
+        Map<String, File> files = RemoteElastixBatch.getFiles(settings);
+        RemoteElastixTask task = new RemoteElastixTask(serverUrl);
+        task.setSettings(settings);
+
+        // Files already sent to this server are only referenced by their hash
+        Set<String> knownHashes = RemoteElastixTask.knownHashesPerServer.computeIfAbsent(serverUrlElastix, url -> ConcurrentHashMap.newKeySet());
+
+        HttpPost submitRequest = new HttpPost(serverUrlJobs);
+        submitRequest.setEntity(task.buildRegistrationEntity(files, RemoteElastixTask.useContentAddressedInputs ? knownHashes : Collections.emptySet()));
+        HttpResponse response = httpclient.execute(submitRequest);
+        if (response.getStatusLine().getStatusCode()==ElastixServlet.UnknownHashesStatus) {
+            ElastixServlet.UnknownHashes unknownHashes = new Gson().fromJson(
+                    IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixServlet.UnknownHashes.class);
+            knownHashes.removeAll(unknownHashes.unknownHashes);
+            submitRequest.setEntity(task.buildRegistrationEntity(files, knownHashes));
+            response = httpclient.execute(submitRequest);
+        }
+        if (response.getStatusLine().getStatusCode()!=202) {
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode()==503) {
+                throw new RemoteElastixTask.ServerUnavailableException("Registration job submission failed with status line : "+response.getStatusLine());
+            }
+            throw new HttpException("Registration job submission failed with status line : "+response.getStatusLine());
+        }
+        RemoteElastixTask.updateKnownHashes(response, files, knownHashes);
+        ElastixJobsServlet.JobStatus status = new Gson().fromJson(
+                IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixJobsServlet.JobStatus.class);
+
+        PendingJob job = new PendingJob(status.jobId, new File(settings.outputFolderSupplier.get()), result);
+        pendingJobs.put(job.jobId, job);
+        result.whenComplete((folder, error) -> {
+            if (result.isCancelled() && (pendingJobs.remove(job.jobId) != null)) {
+                getExecutor().execute(() -> delete(job.jobId));
+            }
+        });
+        if (result.isCancelled()) return; // Cancelled during the submission : deleted above
+
+        if (polling.compareAndSet(false, true)) {
+            Thread poller = new Thread(this::poll, "RemoteElastixClient poller");
+            poller.setDaemon(true);
+            poller.start();
+        }
+    }
+
+    /**
+     * Follows the pending jobs until there is none left
+     */
+    void poll() {
+        int numberOfErrors = 0;
+        while (true) {
+            if (pendingJobs.isEmpty()) {
+                polling.set(false);
+                // A job may have been submitted in the meantime
+                if ((pendingJobs.isEmpty())||(!polling.compareAndSet(false, true))) return;
+            }
+            List<Long> jobIds = new ArrayList<>(pendingJobs.keySet());
+            try {
+                // Many jobs : the status requests are not kept open, otherwise the other requests would wait
+                int maxIds = ElastixJobsServlet.maxNumberOfJobsPerStatusRequest;
+                boolean wait = jobIds.size()<=maxIds;
+                for (int start = 0; start<jobIds.size(); start+=maxIds) {
+                    pollStatuses(jobIds.subList(start, Math.min(start+maxIds, jobIds.size())), wait ? statusWaitInMs : 0);
+                }
+                if (!wait) Thread.sleep(1000);
+                numberOfErrors = 0;
+            } catch (IOException | HttpException e) {
+                numberOfErrors++;
+                log.accept("Status request failed ("+numberOfErrors+") : "+e.getMessage());
+                if (numberOfErrors>=maxStatusErrors) {
+                    for (Long jobId : jobIds) {
+                        PendingJob job = pendingJobs.remove(jobId);
+                        if (job != null) job.result.completeExceptionally(e);
+                    }
+                    numberOfErrors = 0;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void pollStatuses(List<Long> jobIds, int waitInMs) throws IOException, HttpException {
+        StringBuilder ids = new StringBuilder();
+        for (Long jobId : jobIds) {
+            if (ids.length()>0) ids.append(",");
+            ids.append(jobId);
+        }
+        HttpGet statusRequest = new HttpGet(serverUrlJobs+"?"+ElastixJobsServlet.IdsTag+"="+ids+"&"+ElastixJobsServlet.WaitTag+"="+waitInMs);
+        HttpResponse response = getHttpClient().execute(statusRequest);
+        if (response.getStatusLine().getStatusCode()!=200) {
+            EntityUtils.consume(response.getEntity());
+            throw new HttpException("Job status request failed with status line : "+response.getStatusLine());
+        }
+        ElastixJobsServlet.JobStatus[] statuses = new Gson().fromJson(
+                IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixJobsServlet.JobStatus[].class);
+        Set<Long> forgottenJobs = new HashSet<>(jobIds);
+        for (ElastixJobsServlet.JobStatus status : statuses) {
+            forgottenJobs.remove(status.jobId);
+            if ((status.state == ElastixJobsServlet.State.QUEUED)||(status.state == ElastixJobsServlet.State.RUNNING)) continue;
+            PendingJob job = pendingJobs.remove(status.jobId);
+            if (job != null) {
+                getExecutor().execute(() -> fetch(job, status));
+            }
+        }
+        for (Long jobId : forgottenJobs) {
+            PendingJob job = pendingJobs.remove(jobId);
+            if (job != null) {
+                job.result.completeExceptionally(new HttpException("Registration job "+jobId+" has been forgotten by the server"));
+            }
+        }
+    }
+
+    /**
+     * Gets the result of a job which is over, then deletes the job on the server
+     */
+    void fetch(PendingJob job, ElastixJobsServlet.JobStatus status) {
+        try {
+            if (status.state != ElastixJobsServlet.State.DONE) {
+                throw new HttpException("Registration job "+job.jobId+" "+status.state+" : "+status.message);
+            }
+            HttpResponse response = getHttpClient().execute(new HttpGet(serverUrlJobs+"/"+job.jobId+"/"+ElastixJobsServlet.ResultPath));
+            if (response.getStatusLine().getStatusCode()!=200) {
+                EntityUtils.consume(response.getEntity());
+                throw new HttpException("Registration job "+job.jobId+" result request failed with status line : "+response.getStatusLine());
+            }
+            try (ZipInputStream zis = new ZipInputStream(response.getEntity().getContent())) {
+                RemoteElastixTask.unzip(zis, job.outputFolder);
+            }
+            job.result.complete(job.outputFolder);
+        } catch (Exception e) {
+            job.result.completeExceptionally(e);
+        } finally {
+            delete(job.jobId);
+        }
+    }
+
+    /**
+     * The server does not need to keep the job anymore
+     */
+    void delete(long jobId) {
+        try {
+            EntityUtils.consume(getHttpClient().execute(new HttpDelete(serverUrlJobs+"/"+jobId)).getEntity());
+        } catch (IOException e) {
+            log.accept("Could not delete job "+jobId+" : "+e.getMessage());
+        }
+    }
+
+    static class PendingJob {
+
+        final long jobId;
+
+        final File outputFolder;
+
+        final CompletableFuture<File> result;
+
+        PendingJob(long jobId, File outputFolder, CompletableFuture<File> result) {
+            this.jobId = jobId;
+            this.outputFolder = outputFolder;
+            this.result = result;
+        }
+    }
+}
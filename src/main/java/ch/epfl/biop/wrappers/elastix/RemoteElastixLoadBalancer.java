@@ -0,0 +1,299 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import ch.epfl.biop.server.RegistrationServerConfig;
+import com.google.gson.Gson;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static ch.epfl.biop.server.RegistrationServer.STATUS_PATH;
+
+/**
+ * Spreads elastix tasks over several registration servers.
+ *
+ * The status of each server (see {@link ch.epfl.biop.server.StatusServlet}) is polled regularly, and each task
+ * is sent to the server where it should be over first, according to the number of tasks running and queued
+ * on the server, its number of simultaneous tasks and its measured task duration. Tasks sent since the last
+ * status update are taken into account, so that a burst of tasks does not go to a single server.
+ *
+ * If a server is overloaded (503) or cannot be reached, the task is sent to the next best server. A server
+ * which cannot be reached is not used anymore until it answers a status request again.
+ *
+ * Usage, in place of a {@link RemoteElastixTask}:
+ *
+ * ElastixTask task = loadBalancer.newTask();
+ * task.setSettings(settings);
+ * task.run();
+ */
+public class RemoteElastixLoadBalancer {
+
+    public static Consumer<String> log = (str) -> System.out.println(RemoteElastixLoadBalancer.class+":"+str);
+
+    public static int statusUpdatePeriodInMs = 1000;
+
+    public static int statusTimeOutInMs = 2000;
+
+    final List<Server> servers = new ArrayList<>();
+
+    final ScheduledExecutorService statusPoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RemoteElastixLoadBalancer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param serverUrls urls of the registration servers
+     */
+    public RemoteElastixLoadBalancer(List<String> serverUrls) {
+        for (String serverUrl : serverUrls) {
+            servers.add(new Server(serverUrl));
+        }
+        updateStatuses();
+        statusPoller.scheduleWithFixedDelay(this::updateStatuses, statusUpdatePeriodInMs, statusUpdatePeriodInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a task which runs on the servers of this load balancer
+     */
+    public ElastixTask newTask() {
+        return new ElastixTask() {
+            @Override
+            public void run() throws Exception {
+                RemoteElastixLoadBalancer.this.run(settings);
+            }
+        };
+    }
+
+    /**
+     * Runs a task on the best server, or on the next ones if it is not available
+     * @param settings settings of the task
+     * @throws Exception if the task failed, or if no server could run it
+     */
+    public void run(ElastixTaskSettings settings) throws Exception {
+        Set<Server> triedServers = new HashSet<>();
+        Exception lastError = null;
+        while (true) {
+            Server server = chooseServer(triedServers);
+            if (server == null) {
+                if (lastError != null) throw lastError;
+                throw new RemoteElastixTask.ServerUnavailableException("No registration server available");
+            }
+            triedServers.add(server);
+            RemoteElastixTask task = new RemoteElastixTask(server.url);
+            task.setSettings(settings);
+            server.numberOfRunningTasks.incrementAndGet();
+            try {
+                task.run();
+                server.numberOfTasks.incrementAndGet();
+                return;
+            } catch (RemoteElastixTask.ServerUnavailableException e) {
+                log.accept("Server "+server.url+" overloaded, trying another one");
+                server.numberOfFailovers.incrementAndGet();
+                lastError = e;
+            } catch (ConnectTimeoutException | NoHttpResponseException | SocketException e) { // Including HttpHostConnectException
+                log.accept("Server "+server.url+" cannot be reached ("+e.getMessage()+"), trying another one");
+                server.available = false;
+                server.numberOfFailovers.incrementAndGet();
+                lastError = e;
+            } finally {
+                server.numberOfRunningTasks.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param excludedServers servers which should not be chosen
+     * @return the available server where a new task should be over first, or null if there is none
+     */
+    synchronized Server chooseServer(Set<Server> excludedServers) {
+        Server bestServer = null;
+        double bestCompletionTimeInMs = Double.MAX_VALUE;
+        for (Server server : servers) {
+            if ((!server.available)||(excludedServers.contains(server))) continue;
+            double completionTimeInMs = server.getExpectedCompletionTimeInMs();
+            if (completionTimeInMs < bestCompletionTimeInMs) {
+                bestCompletionTimeInMs = completionTimeInMs;
+                bestServer = server;
+            }
+        }
+        if (bestServer != null) {
+            bestServer.numberOfTasksSentSinceStatus.incrementAndGet();
+        }
+        return bestServer;
+    }
+
+    void updateStatuses() {
+        for (Server server : servers) {
+            server.updateStatus();
+        }
+    }
+
+    /**
+     * @return the state of each server
+     */
+    public List<ServerState> getServers() {
+        List<ServerState> states = new ArrayList<>();
+        for (Server server : servers) {
+            ServerState state = new ServerState();
+            state.url = server.url;
+            state.available = server.available;
+            state.expectedCompletionTimeInMs = server.available ? server.getExpectedCompletionTimeInMs() : -1;
+            state.numberOfRunningTasks = server.numberOfRunningTasks.get();
+            state.numberOfTasks = server.numberOfTasks.get();
+            state.numberOfFailovers = server.numberOfFailovers.get();
+            states.add(state);
+        }
+        return states;
+    }
+
+    /**
+     * Stops polling the servers
+     */
+    public void close() {
+        statusPoller.shutdownNow();
+    }
+
+    /**
+     * State of a server, as seen by this load balancer
+     */
+    public static class ServerState {
+        public String url;
+        public boolean available;
+        /**
+         * Expected time before a new task sent to this server is over, -1 if the server is not available
+         */
+        public double expectedCompletionTimeInMs;
+        /**
+         * Tasks of this load balancer running on the server
+         */
+        public int numberOfRunningTasks;
+        /**
+         * Tasks of this load balancer done by the server
+         */
+        public long numberOfTasks;
+        /**
+         * Tasks sent to another server because this one was overloaded or could not be reached
+         */
+        public long numberOfFailovers;
+    }
+
+    /**
+     * Part of the status sent by the server (see {@link ch.epfl.biop.server.StatusServlet.ServerStatus})
+     */
+    static class ServerLoad {
+        int numberOfCurrentElastixTasks;
+        int numberOfElastixTasksEnqueued;
+        int estimatedElastixTaskDurationInMs;
+        int numberOfElastixSlots; // Includes the slots of the workers of a coordinator, 0 for older servers
+        RegistrationServerConfig config;
+    }
+
+    static class Server {
+
+        final String url;
+
+        volatile boolean available = false;
+
+        volatile ServerLoad load;
+
+        final AtomicInteger numberOfTasksSentSinceStatus = new AtomicInteger(0);
+
+        final AtomicInteger numberOfRunningTasks = new AtomicInteger(0);
+
+        final AtomicLong numberOfTasks = new AtomicLong(0);
+
+        final AtomicLong numberOfFailovers = new AtomicLong(0);
+
+        Server(String url) {
+            this.url = url;
+        }
+
+        void updateStatus() {
+            // Tasks sent from now on may not be counted by the server in its answer
+            int numberOfTasksSent = numberOfTasksSentSinceStatus.get();
+            RequestConfig config = RequestConfig.custom()
+                    .setConnectTimeout(statusTimeOutInMs)
+                    .setConnectionRequestTimeout(statusTimeOutInMs)
+                    .setSocketTimeout(statusTimeOutInMs).build();
+            try {
+                HttpResponse response = RemoteHttpClients.get(url, config).execute(new HttpGet(url+STATUS_PATH));
+                String status = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                if (response.getStatusLine().getStatusCode()!=200) {
+                    throw new IOException("status line "+response.getStatusLine());
+                }
+                ServerLoad newLoad = new Gson().fromJson(status, ServerLoad.class);
+                if ((newLoad == null)||(newLoad.config == null)) {
+                    throw new IOException("invalid status");
+                }
+                load = newLoad;
+                numberOfTasksSentSinceStatus.addAndGet(-numberOfTasksSent);
+                if (!available) log.accept("Server "+url+" available");
+                available = true;
+            } catch (Exception e) {
+                if (available) log.accept("Server "+url+" not available : "+e.getMessage());
+                available = false;
+            }
+        }
+
+        /**
+         * @return expected time before a new task sent to this server is over
+         */
+        double getExpectedCompletionTimeInMs() {
+            ServerLoad load = this.load;
+            int numberOfSlots = Math.max(1, load.numberOfElastixSlots > 0 ? load.numberOfElastixSlots : load.config.maxNumberOfSimultaneousRequests);
+            double taskDurationInMs = Math.max(1, load.estimatedElastixTaskDurationInMs);
+            int numberOfTasksAhead = load.numberOfCurrentElastixTasks + load.numberOfElastixTasksEnqueued + numberOfTasksSentSinceStatus.get();
+            double waitingTimeInMs = (numberOfTasksAhead < numberOfSlots) ? 0 : (numberOfTasksAhead - numberOfSlots + 1) * taskDurationInMs / numberOfSlots;
+            return waitingTimeInMs + taskDurationInMs;
+        }
+    }
+}
@@ -33,31 +33,48 @@
 package ch.epfl.biop.wrappers.elastix;
 
 import ch.epfl.biop.server.ElastixJobQueueServlet;
+import ch.epfl.biop.server.ElastixJobsServlet;
+import ch.epfl.biop.server.ElastixResultServlet;
 import ch.epfl.biop.server.ElastixServlet;
+import ch.epfl.biop.server.ElastixStagingServlet;
+import ch.epfl.biop.server.ServletUtils;
 import com.google.gson.Gson;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import static ch.epfl.biop.server.RegistrationServer.ELASTIX_JOBS_PATH;
 import static ch.epfl.biop.server.RegistrationServer.ELASTIX_PATH;
 import static ch.epfl.biop.server.RegistrationServer.ELASTIX_QUEUE_PATH;
+import static ch.epfl.biop.server.RegistrationServer.ELASTIX_RESULT_PATH;
+import static ch.epfl.biop.server.RegistrationServer.ELASTIX_STAGE_PATH;
 
 /**
  * Can process an Elastix task by sending it to a {@link ch.epfl.biop.server.RegistrationServer}
@@ -68,12 +85,91 @@ public class RemoteElastixTask extends ElastixTask {
 
     String serverUrl;
     String serverUrlQueue;
+    String serverUrlResult;
+    String serverUrlJobs;
+    String serverUrlStage;
 
     public static int timeOutInMs = 100000;
 
+    /**
+     * If true, the server is asked to keep queue update requests open until the job
+     * can be started (see {@link ElastixJobQueueServlet}) instead of sleeping on the client side
+     */
+    public static boolean useLongPoll = true;
+
+    /**
+     * If true, the files already sent to a server are not sent again : only their hash is sent,
+     * provided that the server supports it (see {@link ElastixServlet#ContentAddressedInputsHeader})
+     */
+    public static boolean useContentAddressedInputs = true;
+
+    /**
+     * If true, the server is first asked whether it already has the result of the same registration
+     * (see {@link ElastixResultServlet}), in which case the job is not enqueued
+     */
+    public static boolean useResultCache = true;
+
+    /**
+     * If true, the task is submitted to the server (see {@link ElastixJobsServlet}) and its result is fetched
+     * once it is done : the duration of the registration is then not limited by {@link RemoteElastixTask#timeOutInMs}
+     * and no connection is held during the registration. Requires a server which supports it.
+     */
+    public static boolean useSubmittedJobs = false;
+
+    /**
+     * If true, the files are sent while the job waits in the queue (see {@link ElastixStagingServlet}),
+     * so that the registration starts as soon as the job can be processed
+     */
+    public static boolean useStaging = true;
+
+    boolean inMemoryResult = false;
+
+    Map<String, byte[]> resultFiles = null;
+
+    /**
+     * Hashes of the files that each server already has, by server url
+     */
+    final static Map<String, Set<String>> knownHashesPerServer = new ConcurrentHashMap<>();
+
+    /**
+     * Hashes of the files sent, by file path
+     */
+    final static Map<String, FileHash> fileHashes = new ConcurrentHashMap<>();
+
     public RemoteElastixTask(String serverUrl) {
         this.serverUrl = serverUrl+ELASTIX_PATH;
         this.serverUrlQueue = serverUrl+ELASTIX_QUEUE_PATH;
+        this.serverUrlResult = serverUrl+ELASTIX_RESULT_PATH;
+        this.serverUrlJobs = serverUrl+ELASTIX_JOBS_PATH;
+        this.serverUrlStage = serverUrl+ELASTIX_STAGE_PATH;
+    }
+
+    /**
+     * @param inMemoryResult true to keep the result files in memory (see {@link RemoteElastixTask#getResultFiles()})
+     *                       instead of writing them in the output folder, which is then not needed
+     */
+    public void setInMemoryResult(boolean inMemoryResult) {
+        this.inMemoryResult = inMemoryResult;
+    }
+
+    /**
+     * @return the result files by name, when the result is kept in memory and once the task has run
+     */
+    public Map<String, byte[]> getResultFiles() {
+        return resultFiles;
+    }
+
+    /**
+     * @return the content of the TransformParameters.i.txt files, in order, when the result is kept in memory
+     * and once the task has run
+     */
+    public List<String> getTransformParameters() {
+        List<String> transformParameters = new ArrayList<>();
+        if (resultFiles == null) return transformParameters;
+        for (int i = 0; resultFiles.containsKey("TransformParameters."+i+".txt"); i++) {
+            transformParameters.add(new String(resultFiles.get("TransformParameters."+i+".txt"), StandardCharsets.UTF_8));
+        }
+        return transformParameters;
     }
 
     public void run() throws Exception {
@@ -84,30 +180,54 @@ public class RemoteElastixTask extends ElastixTask {
                 .setConnectionRequestTimeout(timeOutInMs)
                 .setSocketTimeout(timeOutInMs).build();
 
-        CloseableHttpClient httpclient =
-                HttpClientBuilder
-                        .create()
-                        .setDefaultRequestConfig(config)
-                        .setRetryHandler((exception, executionCount, context) -> {
-                            if (executionCount > 3) {
-                                log.accept("Maximum tries reached for client http pool ");
-                                return false;
-                            }
-                            if (exception instanceof org.apache.http.NoHttpResponseException) {
-                                log.accept("No response from server on " + executionCount + " call");
-                                return true;
-                            }
-                            return false;
-                        })
-                        .build();
+        // Connections are shared with the other tasks sending requests to the same server
+        CloseableHttpClient httpclient = RemoteHttpClients.get(serverUrl, config);
+
+        HttpResponse response;
+
+        // Files to send, by tag
+        Map<String, File> files = new LinkedHashMap<>();
+        files.put(ElastixServlet.FixedImageTag, new File(settings.fixedImagePathSupplier.get()));
+        files.put(ElastixServlet.MovingImageTag, new File(settings.movingImagePathSupplier.get()));
+
+        // Send initial transformation file, if any
+        if (settings.initialTransformFilePath!=null) {
+            files.put(ElastixServlet.InitialTransformTag, new File(settings.initialTransformFilePath));
+        }
+
+        int indexTransformationParameter = 0;
+
+        // Sends all transformation files
+        for (Supplier<String> s : settings.transformationParameterPathSupplier) {
+            files.put(ElastixServlet.TransformParameterTag(indexTransformationParameter), new File(s.get()));
+            indexTransformationParameter++;
+        }
+
+        if (useResultCache) {
+            // Maybe this registration has already been performed by the server
+            HttpGet resultRequest = new HttpGet(serverUrlResult+"?"+ElastixResultServlet.ResultKeyTag+"="+getResultKey(files));
+            response = httpclient.execute(resultRequest);
+            if ((response.getStatusLine().getStatusCode()==200)
+                    &&(response.getEntity().getContentType()!=null)
+                    &&(response.getEntity().getContentType().getValue().startsWith("application/zip"))) {
+                log.accept(">>> Client received cached result of registration request");
+                saveResult(response.getEntity().getContent());
+                return;
+            }
+            EntityUtils.consume(response.getEntity());
+        }
+
+        if (useSubmittedJobs) {
+            runAsSubmittedJob(httpclient, files);
+            return;
+        }
 
         // Queuing job
         long jobId;
 
         // id = -1 means that the client wants to enter the queue
-        HttpPost enqueueJobRequest = new HttpPost(serverUrlQueue +"?id=-1");
-
-        HttpResponse response;
+        // When staging, the first request is answered right away in order to get the job id
+        HttpPost enqueueJobRequest = new HttpPost(serverUrlQueue +"?id=-1"+((useLongPoll)&&(!useStaging)?"&"+ElastixJobQueueServlet.LongPollTag+"=true":""));
         try {
             response = httpclient.execute(enqueueJobRequest);
         } catch (ClientProtocolException e) {
@@ -117,7 +237,8 @@ public class RemoteElastixTask extends ElastixTask {
 
         if (response.getStatusLine().toString().equals("HTTP/1.1 503 Service Unavailable")) {
             // Queue too big client rejected directly
-            throw new HttpException("Registration server overload.");
+            EntityUtils.consume(response.getEntity());
+            throw new ServerUnavailableException("Registration server overload.");
         }
 
         String enqueueResponse = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
@@ -129,13 +250,29 @@ public class RemoteElastixTask extends ElastixTask {
 
         jobId = job.jobId;
 
-        enqueueJobRequest = new HttpPost(serverUrlQueue+"?id="+job.jobId); // We know the id the server will thus recognize the task
+        // Files already sent to this server are only referenced by their hash
+        Set<String> knownHashes = knownHashesPerServer.computeIfAbsent(serverUrl, url -> ConcurrentHashMap.newKeySet());
+
+        // The files are sent while waiting, if the server accepts them
+        boolean staged = false;
+        if ((useStaging)&&(job.waitingTimeInMs!=0)) {
+            staged = stageInputs(httpclient, files, jobId, knownHashes);
+            // The waiting time is outdated once the files are sent : the server is asked right away
+            job.longPoll = useLongPoll;
+        }
+
+        enqueueJobRequest = new HttpPost(serverUrlQueue+"?id="+job.jobId+(useLongPoll?"&"+ElastixJobQueueServlet.LongPollTag+"=true":"")); // We know the id the server will thus recognize the task
 
         // Sends as many queue update requests as necessary in order to be allowed to process the request
         while (job.waitingTimeInMs!=0) {
-            try {
-                Thread.sleep(job.waitingTimeInMs);
-            } catch (InterruptedException e) {
+            if (!job.longPoll) { // Server side waiting when long polling, no need to sleep
+                try {
+                    Thread.sleep(job.waitingTimeInMs);
+                } catch (InterruptedException e) {
+                    log.accept("RemoteElastixTask interrupted");
+                    throw new InterruptedException("Remote Elastik Task interrupted");
+                }
+            } else if (Thread.currentThread().isInterrupted()) {
                 log.accept("RemoteElastixTask interrupted");
                 throw new InterruptedException("Remote Elastik Task interrupted");
             }
@@ -146,6 +283,12 @@ public class RemoteElastixTask extends ElastixTask {
                 throw new HttpException(" Server queueing registration failed with error message : "+e.getMessage());
             }
 
+            if (response.getStatusLine().getStatusCode()==503) {
+                // Rejected because the queue became too long
+                EntityUtils.consume(response.getEntity());
+                throw new ServerUnavailableException("Registration server overload.");
+            }
+
             enqueueResponse = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
             response.getEntity().getContent().close(); // necessary ?
 
@@ -159,114 +302,326 @@ public class RemoteElastixTask extends ElastixTask {
         // Waiting time = 0 meaning we can start the really elastix registration
         HttpPost httppost = new HttpPost(serverUrl+"?id="+jobId);
 
-        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
-        builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
-
-        if ((settings.taskInfo!=null)&&(!settings.taskInfo.trim().equals(""))) {
-            // There is some data the job will potentially be saved on the server side
-            builder.addTextBody(ElastixServlet.TaskMetadata, settings.taskInfo, ContentType.DEFAULT_TEXT);
+        // No content if the files have been staged
+        if (!staged) {
+            httppost.setEntity(buildRegistrationEntity(files, useContentAddressedInputs ? knownHashes : Collections.emptySet()));
         }
 
-        // Send fixed image
-        File fixedImageFile = new File(settings.fixedImagePathSupplier.get());
-        FileBody fixedImageBody = new FileBody(fixedImageFile, ContentType.DEFAULT_BINARY);
-        builder.addPart(ElastixServlet.FixedImageTag, fixedImageBody);
-
-        // Send moving image
-        File movingImageFile = new File(settings.movingImagePathSupplier.get());
-        FileBody movingImageBody = new FileBody(movingImageFile, ContentType.DEFAULT_BINARY);
-        builder.addPart(ElastixServlet.MovingImageTag, movingImageBody);
-
-        // Send initial transformation file, if any
-        if (settings.initialTransformFilePath!=null) {
-            File initialTransformFile = new File(settings.initialTransformFilePath);
-            FileBody initialTransformationBody = new FileBody(initialTransformFile, ContentType.DEFAULT_TEXT);
-            builder.addPart(ElastixServlet.InitialTransformTag, initialTransformationBody);
-        }
-
-        // Send number of transformations
-        builder.addTextBody(ElastixServlet.NumberOfTransformsTag, new Integer(settings.transformationParameterPathSupplier.size()).toString());
-
-        int indexTransformationParameter = 0;
-
-        // Sends all transformation files
-        for (Supplier<String> s : settings.transformationParameterPathSupplier) {
-            File transformationParameterFile = new File(s.get());
-            FileBody transformationParameterBody = new FileBody(transformationParameterFile, ContentType.DEFAULT_TEXT);
-            builder.addPart(ElastixServlet.TransformParameterTag(indexTransformationParameter), transformationParameterBody);
-            indexTransformationParameter++;
-        }
-
-        HttpEntity entity = builder.build();
-        httppost.setEntity(entity);
-
         log.accept(">>> Client sending Registration Request");
 
         try {
             response = httpclient.execute(httppost);
+            if ((staged)&&(response.getStatusLine().getStatusCode()==ElastixStagingServlet.NoStagedInputsStatus)) {
+                // The staged files are gone : let's send them
+                EntityUtils.consume(response.getEntity());
+                log.accept(">>> Server lost the staged files, sending them");
+                httppost.setEntity(buildRegistrationEntity(files, useContentAddressedInputs ? knownHashes : Collections.emptySet()));
+                response = httpclient.execute(httppost);
+            }
+            if (response.getStatusLine().getStatusCode()==ElastixServlet.UnknownHashesStatus) {
+                // The server does not have (anymore) some files : let's send them
+                ElastixServlet.UnknownHashes unknownHashes = new Gson().fromJson(
+                        IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixServlet.UnknownHashes.class);
+                log.accept(">>> Server does not know "+unknownHashes.unknownHashes.size()+" file(s), sending them");
+                knownHashes.removeAll(unknownHashes.unknownHashes);
+                httppost.setEntity(buildRegistrationEntity(files, knownHashes));
+                response = httpclient.execute(httppost);
+            }
         } catch (ClientProtocolException e) {
             e.printStackTrace();
             throw new HttpException("Server registration failed with error message : "+e.getMessage());
         }
 
+        if (response.getStatusLine().getStatusCode()==200) {
+            updateKnownHashes(response, files, knownHashes);
+        }
+
         log.accept(">>> Client received response status "+response.getStatusLine());
 
         if (response.getStatusLine().toString().equals("HTTP/1.1 200 OK")) {
 
             log.accept(">>> Client received result of registration request");
 
-            InputStream is = response.getEntity().getContent();
+            saveResult(response.getEntity().getContent());
+        } else {
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode()==503) {
+                throw new ServerUnavailableException("Server registration failed with status line : "+response.getStatusLine());
+            }
+            throw new HttpException("Server registration failed with status line : "+response.getStatusLine());
+        }
 
-            File zipAns = new File(settings.outputFolderSupplier.get(), "registration_result.zip");
-            FileOutputStream fos = new FileOutputStream(zipAns);
+    }
 
-            int read = 0;
-            byte[] buffer = new byte[32768];
-            while ((read = is.read(buffer)) > 0) {
-                fos.write(buffer, 0, read);
+    /**
+     * Sends the files of a job which waits in the queue (see {@link ElastixStagingServlet})
+     * @param httpclient http client
+     * @param files registration inputs, by tag
+     * @param jobId id of the job in the queue
+     * @param knownHashes hashes of the files known by the server
+     * @return true if the server staged the files, false if they need to be sent with the registration request
+     */
+    boolean stageInputs(CloseableHttpClient httpclient, Map<String, File> files, long jobId, Set<String> knownHashes) {
+        try {
+            HttpPost stageRequest = new HttpPost(serverUrlStage+"?id="+jobId);
+            stageRequest.setEntity(buildRegistrationEntity(files, useContentAddressedInputs ? knownHashes : Collections.emptySet()));
+            HttpResponse response = httpclient.execute(stageRequest);
+            if (response.getStatusLine().getStatusCode()==ElastixServlet.UnknownHashesStatus) {
+                ElastixServlet.UnknownHashes unknownHashes = new Gson().fromJson(
+                        IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixServlet.UnknownHashes.class);
+                knownHashes.removeAll(unknownHashes.unknownHashes);
+                stageRequest.setEntity(buildRegistrationEntity(files, knownHashes));
+                response = httpclient.execute(stageRequest);
+            }
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode()==200) {
+                updateKnownHashes(response, files, knownHashes);
+                log.accept(">>> Files staged while waiting in the queue");
+                return true;
             }
+            log.accept(">>> Files not staged : "+response.getStatusLine());
+        } catch (IOException e) {
+            log.accept(">>> Files not staged : "+e.getMessage());
+        }
+        return false;
+    }
 
-            fos.close();
-            is.close();
-
-            log.accept(">>> Client received all of registration request");
-            log.accept(settings.outputFolderSupplier.get());
-
-            // Unzips response
-            File destDir = new File(settings.outputFolderSupplier.get());
-            ZipInputStream zis = new ZipInputStream(new FileInputStream(zipAns));
-            ZipEntry zipEntry = zis.getNextEntry();
-            while (zipEntry != null) {
-                File newFile = newFile(destDir, zipEntry);
-                if (zipEntry.isDirectory()) {
-                    if (!newFile.isDirectory() && !newFile.mkdirs()) {
-                        throw new IOException("Failed to create directory " + newFile);
-                    }
-                } else {
-                    // fix for Windows-created archives
-                    File parent = newFile.getParentFile();
-                    if (!parent.isDirectory() && !parent.mkdirs()) {
-                        throw new IOException("Failed to create directory " + parent);
-                    }
+    /**
+     * Submits the task to the server, waits until it is done, and fetches its result.
+     * The job is deleted from the server at the end
+     * @param httpclient http client
+     * @param files registration inputs, by tag
+     * @throws Exception if the registration failed or if the thread is interrupted
+     */
+    void runAsSubmittedJob(CloseableHttpClient httpclient, Map<String, File> files) throws Exception {
+        Set<String> knownHashes = knownHashesPerServer.computeIfAbsent(serverUrl, url -> ConcurrentHashMap.newKeySet());
+
+        HttpPost submitRequest = new HttpPost(serverUrlJobs);
+        submitRequest.setEntity(buildRegistrationEntity(files, useContentAddressedInputs ? knownHashes : Collections.emptySet()));
+
+        log.accept(">>> Client submitting Registration Job");
+
+        HttpResponse response = httpclient.execute(submitRequest);
+        if (response.getStatusLine().getStatusCode()==ElastixServlet.UnknownHashesStatus) {
+            ElastixServlet.UnknownHashes unknownHashes = new Gson().fromJson(
+                    IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixServlet.UnknownHashes.class);
+            log.accept(">>> Server does not know "+unknownHashes.unknownHashes.size()+" file(s), sending them");
+            knownHashes.removeAll(unknownHashes.unknownHashes);
+            submitRequest.setEntity(buildRegistrationEntity(files, knownHashes));
+            response = httpclient.execute(submitRequest);
+        }
+
+        if (response.getStatusLine().getStatusCode()!=202) {
+            EntityUtils.consume(response.getEntity());
+            if (response.getStatusLine().getStatusCode()==503) {
+                throw new ServerUnavailableException("Registration job submission failed with status line : "+response.getStatusLine());
+            }
+            throw new HttpException("Registration job submission failed with status line : "+response.getStatusLine());
+        }
+        updateKnownHashes(response, files, knownHashes);
+
+        ElastixJobsServlet.JobStatus status = new Gson().fromJson(
+                IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixJobsServlet.JobStatus.class);
+        String jobUrl = serverUrlJobs+"/"+status.jobId;
+
+        try {
+            // Short requests only : the client asks again when the server tells it to
+            while ((status.state == ElastixJobsServlet.State.QUEUED)||(status.state == ElastixJobsServlet.State.RUNNING)) {
+                try {
+                    Thread.sleep(status.nextUpdateInMs);
+                } catch (InterruptedException e) {
+                    log.accept("RemoteElastixTask interrupted");
+                    throw new InterruptedException("Remote Elastik Task interrupted");
+                }
+                response = httpclient.execute(new HttpGet(jobUrl));
+                if (response.getStatusLine().getStatusCode()!=200) {
+                    EntityUtils.consume(response.getEntity());
+                    throw new HttpException("Registration job "+status.jobId+" status request failed with status line : "+response.getStatusLine());
+                }
+                status = new Gson().fromJson(
+                        IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8), ElastixJobsServlet.JobStatus.class);
+                log.accept("Job "+status.jobId+" "+status.state+" (progress "+(int) (status.progress*100)+" %)");
+            }
+
+            if (status.state != ElastixJobsServlet.State.DONE) {
+                throw new HttpException("Registration job "+status.jobId+" "+status.state+" : "+status.message);
+            }
+
+            response = httpclient.execute(new HttpGet(jobUrl+"/"+ElastixJobsServlet.ResultPath));
+            if (response.getStatusLine().getStatusCode()!=200) {
+                EntityUtils.consume(response.getEntity());
+                throw new HttpException("Registration job "+status.jobId+" result request failed with status line : "+response.getStatusLine());
+            }
+            log.accept(">>> Client received result of registration job");
+            saveResult(response.getEntity().getContent());
+        } finally {
+            // The server does not need to keep the job anymore
+            try {
+                EntityUtils.consume(httpclient.execute(new HttpDelete(jobUrl)).getEntity());
+            } catch (IOException e) {
+                log.accept("Could not delete job "+status.jobId+" : "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * If the server keeps the files sent, the client does not need to send them next time
+     * (see {@link ElastixServlet#ContentAddressedInputsHeader})
+     */
+    static void updateKnownHashes(HttpResponse response, Map<String, File> files, Set<String> knownHashes) throws IOException {
+        if ((useContentAddressedInputs)
+                &&(response.getFirstHeader(ElastixServlet.ContentAddressedInputsHeader)!=null)
+                &&(Boolean.parseBoolean(response.getFirstHeader(ElastixServlet.ContentAddressedInputsHeader).getValue()))) {
+            for (File f : files.values()) {
+                knownHashes.add(getHash(f));
+            }
+        }
+    }
+
+    /**
+     * Unzips the registration result sent by the server in the output folder, or in memory, while it is received
+     * @param is stream of the zip file sent by the server, closed at the end
+     * @throws IOException if the result cannot be written
+     */
+    void saveResult(InputStream is) throws IOException {
+        try (ZipInputStream zis = new ZipInputStream(is)) {
+            if (inMemoryResult) {
+                resultFiles = unzip(zis);
+            } else {
+                unzip(zis, new File(settings.outputFolderSupplier.get()));
+            }
+        }
+        log.accept(">>> Client received all of registration request");
+    }
 
-                    // write file content
-                    fos = new FileOutputStream(newFile);
+    /**
+     * Reads all the entries of a zip stream, which is not closed
+     * @param zis zip stream
+     * @return the content of the files, by name
+     * @throws IOException if the stream cannot be read
+     */
+    public static Map<String, byte[]> unzip(ZipInputStream zis) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        ZipEntry zipEntry = zis.getNextEntry();
+        while (zipEntry != null) {
+            if (!zipEntry.isDirectory()) {
+                files.put(zipEntry.getName(), IOUtils.toByteArray(zis));
+            }
+            zipEntry = zis.getNextEntry();
+        }
+        return files;
+    }
+
+    /**
+     * Extracts all the entries of a zip stream, which is not closed
+     * @param zis zip stream
+     * @param destDir folder where the entries are written
+     * @throws IOException if an entry cannot be written, or is outside of the folder
+     */
+    public static void unzip(ZipInputStream zis, File destDir) throws IOException {
+        byte[] buffer = new byte[32768];
+        ZipEntry zipEntry = zis.getNextEntry();
+        while (zipEntry != null) {
+            File newFile = newFile(destDir, zipEntry);
+            if (zipEntry.isDirectory()) {
+                if (!newFile.isDirectory() && !newFile.mkdirs()) {
+                    throw new IOException("Failed to create directory " + newFile);
+                }
+            } else {
+                // fix for Windows-created archives
+                File parent = newFile.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Failed to create directory " + parent);
+                }
+
+                // write file content
+                try (FileOutputStream fos = new FileOutputStream(newFile)) {
                     int len;
                     while ((len = zis.read(buffer)) > 0) {
                         fos.write(buffer, 0, len);
                     }
-                    fos.close();
                 }
-                zipEntry = zis.getNextEntry();
             }
-            zis.closeEntry();
-            zis.close();
+            zipEntry = zis.getNextEntry();
+        }
+    }
 
-            zipAns.delete();
-        } else {
-            throw new HttpException("Server registration failed with status line : "+response.getStatusLine());
+    /**
+     * @param files registration inputs, by tag
+     * @return the key of the registration result, see {@link ElastixServlet#getResultKey}
+     * @throws IOException if a file cannot be read
+     */
+    static String getResultKey(Map<String, File> files) throws IOException {
+        List<String> transformHashes = new ArrayList<>();
+        int idxTransform = 0;
+        while (files.containsKey(ElastixServlet.TransformParameterTag(idxTransform))) {
+            transformHashes.add(getHash(files.get(ElastixServlet.TransformParameterTag(idxTransform))));
+            idxTransform++;
         }
+        File initialTransform = files.get(ElastixServlet.InitialTransformTag);
+        return ElastixServlet.getResultKey(
+                getHash(files.get(ElastixServlet.FixedImageTag)),
+                getHash(files.get(ElastixServlet.MovingImageTag)),
+                initialTransform == null ? null : getHash(initialTransform),
+                transformHashes);
+    }
+
+    /**
+     * Builds the multipart registration request
+     * @param files to send, by tag
+     * @param knownHashes hashes of the files known by the server : these files are referenced instead of being sent
+     * @return the http entity
+     */
+    HttpEntity buildRegistrationEntity(Map<String, File> files, Set<String> knownHashes) throws IOException {
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+        builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
 
+        if ((settings.taskInfo!=null)&&(!settings.taskInfo.trim().equals(""))) {
+            // There is some data the job will potentially be saved on the server side
+            builder.addTextBody(ElastixServlet.TaskMetadata, settings.taskInfo, ContentType.DEFAULT_TEXT);
+        }
+
+        // Send number of transformations
+        builder.addTextBody(ElastixServlet.NumberOfTransformsTag, new Integer(settings.transformationParameterPathSupplier.size()).toString());
+
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            String tag = file.getKey();
+            File f = file.getValue();
+            if ((!knownHashes.isEmpty())&&(knownHashes.contains(getHash(f)))) {
+                String extension = FilenameUtils.getExtension(f.getName());
+                builder.addTextBody(tag+ServletUtils.ContentHashSuffix, getHash(f)+(extension.equals("")?"":"."+extension));
+            } else {
+                boolean isImage = tag.equals(ElastixServlet.FixedImageTag)||tag.equals(ElastixServlet.MovingImageTag);
+                builder.addPart(tag, new FileBody(f, isImage ? ContentType.DEFAULT_BINARY : ContentType.DEFAULT_TEXT));
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @param f file
+     * @return SHA-256 hex string of the file content - cached as long as the file is not modified
+     * @throws IOException if the file cannot be read
+     */
+    static String getHash(File f) throws IOException {
+        String key = f.getAbsolutePath();
+        FileHash fileHash = fileHashes.get(key);
+        if ((fileHash!=null)&&(fileHash.length==f.length())&&(fileHash.lastModified==f.lastModified())) {
+            return fileHash.hash;
+        }
+        fileHash = new FileHash();
+        fileHash.length = f.length();
+        fileHash.lastModified = f.lastModified();
+        fileHash.hash = ServletUtils.fingerprint(Collections.singletonList(key));
+        fileHashes.put(key, fileHash);
+        return fileHash.hash;
+    }
+
+    static class FileHash {
+        long length;
+        long lastModified;
+        String hash;
     }
 
     public static File newFile(File destinationDir, ZipEntry zipEntry) throws IOException {
@@ -282,4 +637,13 @@ public class RemoteElastixTask extends ElastixTask {
         return destFile;
     }
 
+    /**
+     * Thrown when the server refuses a task because it is overloaded (503) : the task can be sent again
+     * later or to another server, see {@link RemoteElastixLoadBalancer}
+     */
+    public static class ServerUnavailableException extends HttpException {
+        public ServerUnavailableException(String message) {
+            super(message);
+        }
+    }
 }
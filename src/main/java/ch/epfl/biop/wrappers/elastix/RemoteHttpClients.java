@@ -0,0 +1,339 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Http clients shared by all the remote tasks of the process : one connection pool per server.
+ *
+ * Building a client for each task means a new connection (and TLS handshake) for each request, and
+ * a connection pool which is never released. Here connections are kept alive and reused by all the
+ * tasks sending requests to the same server, idle connections are evicted before the server closes
+ * them (jetty closes them after 30 s), and the number of connections per server is bounded.
+ *
+ * The clients returned by {@link RemoteHttpClients#get(String, RequestConfig)} are lightweight views
+ * of the shared pool, with the timeouts of the caller : closing them does nothing. The pools are released
+ * with {@link RemoteHttpClients#close(String)} or {@link RemoteHttpClients#closeAll()}.
+ *
+ * Beware : a connection goes back to the pool only once the response content has been fully read or closed.
+ * Also, a task which long polls the queue holds a connection while it waits, so the maximal number of
+ * connections per server bounds the number of tasks which can wait in the queue of a server simultaneously.
+ */
+public class RemoteHttpClients {
+
+    public static Consumer<String> log = (str) -> System.out.println(RemoteHttpClients.class+":"+str);
+
+    /**
+     * Maximal number of connections to a single server, used when a pool is created
+     */
+    public static int maxConnectionsPerServer = 256;
+
+    /**
+     * Connections idle for longer are closed, used when a pool is created. Should be smaller than
+     * the idle timeout of the server
+     */
+    public static int idleConnectionTimeOutInS = 10;
+
+    /**
+     * Connections unused for longer are checked before being reused, used when a pool is created
+     */
+    public static int validateAfterInactivityInMs = 2000;
+
+    /**
+     * Maximal number of tries of a request when the server drops the connection without answering
+     * (which can happen with a connection kept alive closed by the server in between)
+     */
+    public static int maxTries = 3;
+
+    final static Map<String, ServerPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * @param url url of the server, or of any of its servlets
+     * @param config timeouts of the requests sent with the returned client (unless a request has its own)
+     * @return a client which sends its requests through the connection pool of the server
+     */
+    public static CloseableHttpClient get(String url, RequestConfig config) {
+        return new PooledClient(pools.computeIfAbsent(getServerKey(url), ServerPool::new), config);
+    }
+
+    /**
+     * @param url url of the server, or of any of its servlets
+     * @return scheme, host and port of the server
+     */
+    static String getServerKey(String url) {
+        URI uri = URI.create(url);
+        return uri.getScheme()+"://"+uri.getAuthority();
+    }
+
+    /**
+     * Closes the connections to a server. Its requests still in progress fail, and
+     * a new pool is created for the next requests to this server
+     * @param url url of the server
+     */
+    public static void close(String url) {
+        ServerPool pool = pools.remove(getServerKey(url));
+        if (pool!=null) pool.close();
+    }
+
+    /**
+     * Closes the connections to all servers
+     */
+    public static void closeAll() {
+        for (String server : new ArrayList<>(pools.keySet())) {
+            close(server);
+        }
+    }
+
+    /**
+     * @param url url of the server
+     * @return statistics of the connections to the server, or null if no request has been sent to it
+     */
+    public static Stats getStats(String url) {
+        ServerPool pool = pools.get(getServerKey(url));
+        return pool==null ? null : pool.getStats();
+    }
+
+    /**
+     * @return statistics of the connections to all servers
+     */
+    public static List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        for (ServerPool pool : pools.values()) {
+            stats.add(pool.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Statistics of the connections to a server
+     */
+    public static class Stats {
+        public String server;
+        public long numberOfRequests;
+        public long numberOfFailedRequests;
+        /**
+         * Number of connections opened : compared to the number of requests, it shows how much connections are reused
+         */
+        public long numberOfConnectionsOpened;
+        /**
+         * Mean time between sending a request and receiving the response headers
+         */
+        public double meanResponseTimeInMs;
+        /**
+         * Mean number of requests per second since the first request
+         */
+        public double requestsPerSecond;
+        public int leasedConnections;
+        public int availableConnections;
+        public int pendingConnectionRequests;
+        public int maxConnections;
+    }
+
+    /**
+     * Connection pool of a server
+     */
+    static class ServerPool {
+
+        final String server;
+
+        final PoolingHttpClientConnectionManager connectionManager;
+
+        final CloseableHttpClient client;
+
+        final long creationTimeInMs = System.currentTimeMillis();
+
+        final AtomicLong numberOfRequests = new AtomicLong(0);
+
+        final AtomicLong numberOfFailedRequests = new AtomicLong(0);
+
+        final AtomicLong numberOfConnectionsOpened = new AtomicLong(0);
+
+        final AtomicLong cumulatedResponseTimeInMs = new AtomicLong(0);
+
+        ServerPool(String server) {
+            this.server = server;
+            // Counts the connections opened
+            HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory =
+                    (route, config) -> {
+                        numberOfConnectionsOpened.incrementAndGet();
+                        return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config==null ? ConnectionConfig.DEFAULT : config);
+                    };
+            connectionManager = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create()
+                            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                            .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                            .build(),
+                    connectionFactory);
+            connectionManager.setMaxTotal(maxConnectionsPerServer);
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerServer);
+            connectionManager.setValidateAfterInactivity(validateAfterInactivityInMs);
+
+            client = HttpClientBuilder
+                    .create()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy((response, context) -> {
+                        // Keeps the connection as long as the server allows it, but not longer than the idle timeout
+                        long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        long maxKeepAlive = idleConnectionTimeOutInS*1000L;
+                        return ((keepAlive<=0)||(keepAlive>maxKeepAlive)) ? maxKeepAlive : keepAlive;
+                    })
+                    .evictIdleConnections(idleConnectionTimeOutInS, TimeUnit.SECONDS)
+                    .evictExpiredConnections()
+                    .setRetryHandler((exception, executionCount, context) -> {
+                        if (executionCount > maxTries) {
+                            log.accept("Maximum tries reached for client http pool of "+server);
+                            return false;
+                        }
+                        if (exception instanceof NoHttpResponseException) {
+                            log.accept("No response from server "+server+" on " + executionCount + " call");
+                            return true;
+                        }
+                        return false;
+                    })
+                    .build();
+        }
+
+        CloseableHttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+            long startTime = System.currentTimeMillis();
+            numberOfRequests.incrementAndGet();
+            try {
+                return client.execute(target, request, context);
+            } catch (IOException e) {
+                numberOfFailedRequests.incrementAndGet();
+                throw e;
+            } finally {
+                cumulatedResponseTimeInMs.addAndGet(System.currentTimeMillis()-startTime);
+            }
+        }
+
+        Stats getStats() {
+            Stats stats = new Stats();
+            stats.server = server;
+            stats.numberOfRequests = numberOfRequests.get();
+            stats.numberOfFailedRequests = numberOfFailedRequests.get();
+            stats.numberOfConnectionsOpened = numberOfConnectionsOpened.get();
+            stats.meanResponseTimeInMs = stats.numberOfRequests==0 ? 0 : cumulatedResponseTimeInMs.get()/(double) stats.numberOfRequests;
+            stats.requestsPerSecond = stats.numberOfRequests/Math.max(0.001, (System.currentTimeMillis()-creationTimeInMs)/1000.0);
+            PoolStats poolStats = connectionManager.getTotalStats();
+            stats.leasedConnections = poolStats.getLeased();
+            stats.availableConnections = poolStats.getAvailable();
+            stats.pendingConnectionRequests = poolStats.getPending();
+            stats.maxConnections = poolStats.getMax();
+            return stats;
+        }
+
+        void close() {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.accept("Could not close the connections to "+server+" : "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Client of a server pool with its own timeouts. Closing it does not close the pool
+     */
+    static class PooledClient extends CloseableHttpClient {
+
+        final ServerPool pool;
+
+        final RequestConfig config;
+
+        PooledClient(ServerPool pool, RequestConfig config) {
+            this.pool = pool;
+            this.config = config;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
+            if ((config!=null)&&(request instanceof HttpRequestBase)&&(((HttpRequestBase) request).getConfig()==null)) {
+                ((HttpRequestBase) request).setConfig(config);
+            }
+            return pool.execute(target, request, context);
+        }
+
+        @Override
+        public void close() {
+            // The pool is shared
+        }
+
+        // Abstract in the base class, but deprecated : only delegated, never used here
+
+        @Override
+        @Deprecated
+        @SuppressWarnings("deprecation")
+        public org.apache.http.params.HttpParams getParams() {
+            return pool.client.getParams();
+        }
+
+        @Override
+        @Deprecated
+        @SuppressWarnings("deprecation")
+        public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+            return pool.client.getConnectionManager();
+        }
+    }
+}
@@ -0,0 +1,617 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.transformix;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates an elastix transform (a TransformParameters.*.txt file) in Java, without calling transformix.
+ *
+ * Supported transforms : TranslationTransform, EulerTransform, SimilarityTransform, AffineTransform
+ * and BSplineTransform (or RecursiveBSplineTransform, same maths), in 2D and 3D. Initial transforms
+ * (InitialTransformParametersFileName) are chained, composed or added according to HowToCombineTransforms.
+ *
+ * Like transformix, points are mapped from the fixed image space to the moving image space.
+ * Points are given as a flat array of coordinates : x0, y0, (z0), x1, y1, (z1), ...
+ *
+ * Use {@link ElastixTransform#isSupported(File)} to know whether transformix is really needed.
+ */
+abstract public class ElastixTransform {
+
+    final public int dimension;
+
+    ElastixTransform(int dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * Transforms points in place
+     * @param points flat array of coordinates, its length is a multiple of {@link ElastixTransform#dimension}
+     */
+    abstract public void transform(double[] points);
+
+    /**
+     * Maximal number of chained transforms, protects against cyclic InitialTransformParametersFileName
+     */
+    final public static int MaxChainLength = 64;
+
+    /**
+     * Reads a transform parameters file, and its initial transforms
+     * @param file transform parameters file
+     * @return the transform
+     * @throws IOException if a file cannot be read
+     * @throws UnsupportedTransformException if a transform of the chain cannot be evaluated in Java
+     */
+    public static ElastixTransform load(File file) throws IOException, UnsupportedTransformException {
+        return load(file, 0);
+    }
+
+    /**
+     * @param file transform parameters file
+     * @return true if all the transforms of the chain can be evaluated in Java
+     */
+    public static boolean isSupported(File file) {
+        try {
+            load(file);
+            return true;
+        } catch (IOException | UnsupportedTransformException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses the content of a transform parameters file. Since there's no file to resolve
+     * initial transforms from, only transforms without initial transform are supported
+     * @param content content of the transform parameters file
+     * @return the transform
+     * @throws UnsupportedTransformException if the transform cannot be evaluated in Java, or has an initial transform
+     */
+    public static ElastixTransform parse(String content) throws UnsupportedTransformException {
+        Parameters parameters = Parameters.parse(Arrays.asList(content.split("\\r?\\n")));
+        if (!parameters.getString("InitialTransformParametersFileName", "NoInitialTransform").equals("NoInitialTransform")) {
+            throw new UnsupportedTransformException("Initial transforms cannot be resolved");
+        }
+        return create(parameters);
+    }
+
+    private static ElastixTransform load(File file, int depth) throws IOException, UnsupportedTransformException {
+        if (depth >= MaxChainLength) {
+            throw new UnsupportedTransformException("Too many chained transforms");
+        }
+        Parameters parameters = Parameters.read(file);
+        ElastixTransform transform = create(parameters);
+
+        String initialTransformFileName = parameters.getString("InitialTransformParametersFileName", "NoInitialTransform");
+        if (initialTransformFileName.equals("NoInitialTransform")) {
+            return transform;
+        }
+        ElastixTransform initialTransform = load(resolve(file, initialTransformFileName), depth + 1);
+        if (initialTransform.dimension != transform.dimension) {
+            throw new UnsupportedTransformException("Chained transforms of different dimensions");
+        }
+        String combination = parameters.getString("HowToCombineTransforms", "Compose");
+        switch (combination) {
+            case "Compose": return new ComposedTransform(initialTransform, transform);
+            case "Add": return new AddedTransform(initialTransform, transform);
+            default: throw new UnsupportedTransformException("Unknown way of combining transforms : " + combination);
+        }
+    }
+
+    /**
+     * The initial transform path is written by elastix on the machine where it ran : if it
+     * does not exist, the file is looked for next to the transform which references it
+     */
+    static File resolve(File file, String initialTransformFileName) throws IOException {
+        File initialTransformFile = new File(initialTransformFileName);
+        if (initialTransformFile.isFile()) {
+            return initialTransformFile;
+        }
+        File sibling = new File(file.getAbsoluteFile().getParentFile(), new File(initialTransformFileName.replace('\\', '/')).getName());
+        if (sibling.isFile()) {
+            return sibling;
+        }
+        throw new IOException("Initial transform file " + initialTransformFileName + " not found");
+    }
+
+    static ElastixTransform create(Parameters parameters) throws UnsupportedTransformException {
+        String type = parameters.getString("Transform", "");
+        int dimension = parameters.getInt("FixedImageDimension", 0);
+        if ((dimension != 2) && (dimension != 3)) {
+            throw new UnsupportedTransformException("Unsupported dimension : " + dimension);
+        }
+        if (parameters.getInt("MovingImageDimension", dimension) != dimension) {
+            throw new UnsupportedTransformException("Fixed and moving image dimensions differ");
+        }
+        double[] p = parameters.getDoubles("TransformParameters");
+        if (p.length != parameters.getInt("NumberOfParameters", p.length)) {
+            throw new UnsupportedTransformException("Wrong number of transform parameters");
+        }
+        double[] center = parameters.has("CenterOfRotationPoint") ? parameters.getDoubles("CenterOfRotationPoint") : new double[dimension];
+        checkLength(center, dimension);
+        switch (type) {
+            case "TranslationTransform":
+                checkLength(p, dimension);
+                return new MatrixTransform(identity(dimension), new double[dimension], p.clone());
+            case "EulerTransform":
+                if (dimension == 2) {
+                    checkLength(p, 3);
+                    return new MatrixTransform(rotation2D(p[0], 1), center, new double[]{p[1], p[2]});
+                } else {
+                    checkLength(p, 6);
+                    boolean computeZYX = parameters.getString("ComputeZYX", "false").equals("true");
+                    return new MatrixTransform(euler3D(p[0], p[1], p[2], computeZYX), center, new double[]{p[3], p[4], p[5]});
+                }
+            case "SimilarityTransform":
+                if (dimension == 2) {
+                    checkLength(p, 4);
+                    return new MatrixTransform(rotation2D(p[1], p[0]), center, new double[]{p[2], p[3]});
+                } else {
+                    checkLength(p, 7);
+                    return new MatrixTransform(versor(p[0], p[1], p[2], p[6]), center, new double[]{p[3], p[4], p[5]});
+                }
+            case "AffineTransform":
+                checkLength(p, dimension * dimension + dimension);
+                double[] matrix = new double[dimension * dimension];
+                double[] translation = new double[dimension];
+                System.arraycopy(p, 0, matrix, 0, matrix.length);
+                System.arraycopy(p, matrix.length, translation, 0, dimension);
+                return new MatrixTransform(matrix, center, translation);
+            case "BSplineTransform":
+            case "RecursiveBSplineTransform":
+                return new BSplineTransform(dimension, parameters, p);
+            default:
+                throw new UnsupportedTransformException("Unsupported transform : " + type);
+        }
+    }
+
+    static void checkLength(double[] values, int length) throws UnsupportedTransformException {
+        if (values.length != length) {
+            throw new UnsupportedTransformException("Expected " + length + " values, found " + values.length);
+        }
+    }
+
+    static double[] identity(int dimension) {
+        double[] matrix = new double[dimension * dimension];
+        for (int i = 0; i < dimension; i++) {
+            matrix[i * dimension + i] = 1;
+        }
+        return matrix;
+    }
+
+    static double[] rotation2D(double angle, double scale) {
+        double c = scale * Math.cos(angle);
+        double s = scale * Math.sin(angle);
+        return new double[]{c, -s, s, c};
+    }
+
+    /**
+     * Same convention as itk::Euler3DTransform : Z.X.Y rotations, or Z.Y.X if computeZYX is true
+     */
+    static double[] euler3D(double angleX, double angleY, double angleZ, boolean computeZYX) {
+        double cx = Math.cos(angleX), sx = Math.sin(angleX);
+        double cy = Math.cos(angleY), sy = Math.sin(angleY);
+        double cz = Math.cos(angleZ), sz = Math.sin(angleZ);
+        double[] rx = {1, 0, 0, 0, cx, -sx, 0, sx, cx};
+        double[] ry = {cy, 0, sy, 0, 1, 0, -sy, 0, cy};
+        double[] rz = {cz, -sz, 0, sz, cz, 0, 0, 0, 1};
+        return computeZYX ? multiply3D(rz, multiply3D(ry, rx)) : multiply3D(rz, multiply3D(rx, ry));
+    }
+
+    /**
+     * Same convention as itk::Similarity3DTransform : versor (vector part) and scale
+     */
+    static double[] versor(double x, double y, double z, double scale) {
+        double norm = x * x + y * y + z * z;
+        double w;
+        if (norm > 1) {
+            norm = Math.sqrt(norm);
+            x /= norm; y /= norm; z /= norm;
+            w = 0;
+        } else {
+            w = Math.sqrt(1 - norm);
+        }
+        return new double[]{
+                scale * (1 - 2 * (y * y + z * z)), scale * 2 * (x * y - z * w), scale * 2 * (x * z + y * w),
+                scale * 2 * (x * y + z * w), scale * (1 - 2 * (x * x + z * z)), scale * 2 * (y * z - x * w),
+                scale * 2 * (x * z - y * w), scale * 2 * (y * z + x * w), scale * (1 - 2 * (x * x + y * y))};
+    }
+
+    static double[] multiply3D(double[] a, double[] b) {
+        double[] result = new double[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                result[i * 3 + j] = a[i * 3] * b[j] + a[i * 3 + 1] * b[3 + j] + a[i * 3 + 2] * b[6 + j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Inverts a row-major 2x2 or 3x3 matrix
+     */
+    static double[] invert(double[] m, int dimension) throws UnsupportedTransformException {
+        if (dimension == 2) {
+            double det = m[0] * m[3] - m[1] * m[2];
+            if (det == 0) throw new UnsupportedTransformException("Singular matrix");
+            return new double[]{m[3] / det, -m[1] / det, -m[2] / det, m[0] / det};
+        }
+        double det = m[0] * (m[4] * m[8] - m[5] * m[7])
+                - m[1] * (m[3] * m[8] - m[5] * m[6])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+        if (det == 0) throw new UnsupportedTransformException("Singular matrix");
+        return new double[]{
+                (m[4] * m[8] - m[5] * m[7]) / det, (m[2] * m[7] - m[1] * m[8]) / det, (m[1] * m[5] - m[2] * m[4]) / det,
+                (m[5] * m[6] - m[3] * m[8]) / det, (m[0] * m[8] - m[2] * m[6]) / det, (m[2] * m[3] - m[0] * m[5]) / det,
+                (m[3] * m[7] - m[4] * m[6]) / det, (m[1] * m[6] - m[0] * m[7]) / det, (m[0] * m[4] - m[1] * m[3]) / det};
+    }
+
+    /**
+     * Elastix writes direction cosines column by column
+     * @return the row-major direction matrix, identity if the key is missing
+     */
+    static double[] getDirection(Parameters parameters, String key, int dimension) throws UnsupportedTransformException {
+        if (!parameters.has(key)) {
+            return identity(dimension);
+        }
+        double[] values = parameters.getDoubles(key);
+        checkLength(values, dimension * dimension);
+        double[] direction = new double[dimension * dimension];
+        for (int i = 0; i < dimension; i++) {
+            for (int j = 0; j < dimension; j++) {
+                direction[i * dimension + j] = values[j * dimension + i];
+            }
+        }
+        return direction;
+    }
+
+    /**
+     * y = M.(x - c) + c + t, covers translation, euler, similarity and affine transforms
+     */
+    static class MatrixTransform extends ElastixTransform {
+
+        final double[] matrix;
+
+        final double[] offset;
+
+        MatrixTransform(double[] matrix, double[] center, double[] translation) {
+            super(translation.length);
+            this.matrix = matrix;
+            this.offset = new double[dimension];
+            for (int i = 0; i < dimension; i++) {
+                double rotatedCenter = 0;
+                for (int j = 0; j < dimension; j++) {
+                    rotatedCenter += matrix[i * dimension + j] * center[j];
+                }
+                offset[i] = center[i] + translation[i] - rotatedCenter;
+            }
+        }
+
+        @Override
+        public void transform(double[] points) {
+            if (dimension == 2) {
+                final double m00 = matrix[0], m01 = matrix[1], m10 = matrix[2], m11 = matrix[3];
+                final double o0 = offset[0], o1 = offset[1];
+                for (int i = 0; i < points.length; i += 2) {
+                    double x = points[i], y = points[i + 1];
+                    points[i] = m00 * x + m01 * y + o0;
+                    points[i + 1] = m10 * x + m11 * y + o1;
+                }
+            } else {
+                final double m00 = matrix[0], m01 = matrix[1], m02 = matrix[2];
+                final double m10 = matrix[3], m11 = matrix[4], m12 = matrix[5];
+                final double m20 = matrix[6], m21 = matrix[7], m22 = matrix[8];
+                final double o0 = offset[0], o1 = offset[1], o2 = offset[2];
+                for (int i = 0; i < points.length; i += 3) {
+                    double x = points[i], y = points[i + 1], z = points[i + 2];
+                    points[i] = m00 * x + m01 * y + m02 * z + o0;
+                    points[i + 1] = m10 * x + m11 * y + m12 * z + o1;
+                    points[i + 2] = m20 * x + m21 * y + m22 * z + o2;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same maths as itk::BSplineTransform : y = x + sum of the weighted control point coefficients.
+     * Points outside of the valid region of the grid are not displaced.
+     */
+    static class BSplineTransform extends ElastixTransform {
+
+        final int order;
+
+        final int[] gridSize;
+
+        final double[] gridIndex;
+
+        final double[] gridOrigin;
+
+        // Physical point to continuous grid index : (direction.spacing)^-1
+        final double[] toIndex;
+
+        // Coefficients, one array per dimension, x index varying the fastest
+        final double[][] coefficients;
+
+        final int[] strides;
+
+        BSplineTransform(int dimension, Parameters parameters, double[] p) throws UnsupportedTransformException {
+            super(dimension);
+            order = parameters.getInt("BSplineTransformSplineOrder", 3);
+            if ((order < 1) || (order > 3)) {
+                throw new UnsupportedTransformException("Unsupported spline order : " + order);
+            }
+            if (parameters.getString("UseCyclicTransform", "false").equals("true")) {
+                throw new UnsupportedTransformException("Cyclic B-Spline transforms are not supported");
+            }
+            double[] size = parameters.getDoubles("GridSize");
+            checkLength(size, dimension);
+            gridIndex = parameters.has("GridIndex") ? parameters.getDoubles("GridIndex") : new double[dimension];
+            checkLength(gridIndex, dimension);
+            double[] spacing = parameters.getDoubles("GridSpacing");
+            checkLength(spacing, dimension);
+            gridOrigin = parameters.getDoubles("GridOrigin");
+            checkLength(gridOrigin, dimension);
+            double[] direction = getDirection(parameters, "GridDirection", dimension);
+
+            gridSize = new int[dimension];
+            strides = new int[dimension];
+            int numberOfControlPoints = 1;
+            for (int d = 0; d < dimension; d++) {
+                gridSize[d] = (int) size[d];
+                strides[d] = numberOfControlPoints;
+                numberOfControlPoints *= gridSize[d];
+            }
+            checkLength(p, numberOfControlPoints * dimension);
+            coefficients = new double[dimension][numberOfControlPoints];
+            for (int d = 0; d < dimension; d++) {
+                System.arraycopy(p, d * numberOfControlPoints, coefficients[d], 0, numberOfControlPoints);
+            }
+
+            double[] scaledDirection = new double[dimension * dimension];
+            for (int i = 0; i < dimension; i++) {
+                for (int j = 0; j < dimension; j++) {
+                    scaledDirection[i * dimension + j] = direction[i * dimension + j] * spacing[j];
+                }
+            }
+            toIndex = invert(scaledDirection, dimension);
+        }
+
+        @Override
+        public void transform(double[] points) {
+            final int support = order + 1;
+            final double halfOrder = (order - 1) / 2.0;
+            final double[] continuousIndex = new double[dimension];
+            final int[] start = new int[dimension];
+            final double[][] weights = new double[dimension][support];
+            final int[] offsets = new int[dimension];
+
+            for (int i = 0; i < points.length; i += dimension) {
+                boolean inside = true;
+                for (int d = 0; d < dimension; d++) {
+                    double index = -gridIndex[d];
+                    for (int k = 0; k < dimension; k++) {
+                        index += toIndex[d * dimension + k] * (points[i + k] - gridOrigin[k]);
+                    }
+                    if ((index < halfOrder) || (index >= gridSize[d] - halfOrder - 1)) {
+                        inside = false;
+                        break;
+                    }
+                    continuousIndex[d] = index;
+                    start[d] = (int) Math.floor(index - halfOrder);
+                    for (int k = 0; k < support; k++) {
+                        weights[d][k] = kernel(index - start[d] - k);
+                    }
+                }
+                if (!inside) {
+                    continue;
+                }
+
+                // Sums over the support of the point, (order+1)^dimension control points
+                Arrays.fill(offsets, 0);
+                double[] displacement = new double[dimension];
+                while (true) {
+                    double weight = 1;
+                    int controlPoint = 0;
+                    for (int d = 0; d < dimension; d++) {
+                        weight *= weights[d][offsets[d]];
+                        controlPoint += (start[d] + offsets[d]) * strides[d];
+                    }
+                    for (int d = 0; d < dimension; d++) {
+                        displacement[d] += weight * coefficients[d][controlPoint];
+                    }
+                    int d = 0;
+                    while ((d < dimension) && (++offsets[d] == support)) {
+                        offsets[d] = 0;
+                        d++;
+                    }
+                    if (d == dimension) {
+                        break;
+                    }
+                }
+                for (int d = 0; d < dimension; d++) {
+                    points[i + d] += displacement[d];
+                }
+            }
+        }
+
+        double kernel(double x) {
+            x = Math.abs(x);
+            switch (order) {
+                case 1:
+                    return x < 1 ? 1 - x : 0;
+                case 2:
+                    if (x < 0.5) return 0.75 - x * x;
+                    if (x < 1.5) return 0.5 * (1.5 - x) * (1.5 - x);
+                    return 0;
+                default:
+                    if (x < 1) return (4 - 6 * x * x + 3 * x * x * x) / 6;
+                    if (x < 2) return (2 - x) * (2 - x) * (2 - x) / 6;
+                    return 0;
+            }
+        }
+    }
+
+    /**
+     * Initial transform, then current transform
+     */
+    static class ComposedTransform extends ElastixTransform {
+
+        final ElastixTransform initial, current;
+
+        ComposedTransform(ElastixTransform initial, ElastixTransform current) {
+            super(current.dimension);
+            this.initial = initial;
+            this.current = current;
+        }
+
+        @Override
+        public void transform(double[] points) {
+            initial.transform(points);
+            current.transform(points);
+        }
+    }
+
+    /**
+     * Sum of the displacements of the initial and current transforms
+     */
+    static class AddedTransform extends ElastixTransform {
+
+        final ElastixTransform initial, current;
+
+        AddedTransform(ElastixTransform initial, ElastixTransform current) {
+            super(current.dimension);
+            this.initial = initial;
+            this.current = current;
+        }
+
+        @Override
+        public void transform(double[] points) {
+            double[] initialPoints = points.clone();
+            initial.transform(initialPoints);
+            double[] original = points.clone();
+            current.transform(points);
+            for (int i = 0; i < points.length; i++) {
+                points[i] += initialPoints[i] - original[i];
+            }
+        }
+    }
+
+    /**
+     * Key values of an elastix parameter file : (Key value1 value2 ...)
+     */
+    public static class Parameters {
+
+        final static Pattern LinePattern = Pattern.compile("^\\s*\\(\\s*(\\w+)\\s*(.*?)\\s*\\)\\s*$");
+
+        final static Pattern ValuePattern = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+        final Map<String, String[]> values = new HashMap<>();
+
+        public static Parameters read(File file) throws IOException {
+            return parse(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        }
+
+        public static Parameters parse(List<String> lines) {
+            Parameters parameters = new Parameters();
+            for (String line : lines) {
+                int comment = line.indexOf("//");
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                Matcher matcher = LinePattern.matcher(line);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                List<String> tokens = new ArrayList<>();
+                Matcher value = ValuePattern.matcher(matcher.group(2));
+                while (value.find()) {
+                    tokens.add(value.group(1) != null ? value.group(1) : value.group(2));
+                }
+                parameters.values.put(matcher.group(1), tokens.toArray(new String[0]));
+            }
+            return parameters;
+        }
+
+        public boolean has(String key) {
+            return values.containsKey(key);
+        }
+
+        public String getString(String key, String defaultValue) {
+            String[] v = values.get(key);
+            return ((v == null) || (v.length == 0)) ? defaultValue : v[0];
+        }
+
+        public int getInt(String key, int defaultValue) throws UnsupportedTransformException {
+            String[] v = values.get(key);
+            if ((v == null) || (v.length == 0)) {
+                return defaultValue;
+            }
+            try {
+                return (int) Double.parseDouble(v[0]);
+            } catch (NumberFormatException e) {
+                throw new UnsupportedTransformException("Invalid value for " + key + " : " + v[0]);
+            }
+        }
+
+        public double[] getDoubles(String key) throws UnsupportedTransformException {
+            String[] v = values.get(key);
+            if (v == null) {
+                throw new UnsupportedTransformException("Missing parameter " + key);
+            }
+            double[] result = new double[v.length];
+            try {
+                for (int i = 0; i < v.length; i++) {
+                    result[i] = Double.parseDouble(v[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new UnsupportedTransformException("Invalid value for " + key + " : " + String.join(" ", v));
+            }
+            return result;
+        }
+    }
+
+    public static class UnsupportedTransformException extends Exception {
+        public UnsupportedTransformException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.transformix;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Transforms points like transformix does ('-def' input points file, 'outputpoints.txt' written
+ * in the output folder), but in Java, see {@link ElastixTransform}. Much faster than
+ * transformix for a few thousand points since no process is started.
+ *
+ * Only works when {@link ElastixTransform#isSupported(File)} returns true for the transform file,
+ * otherwise {@link TransformixProcessTask} should be used.
+ */
+public class JavaTransformixTask extends TransformixTask {
+
+    double[] inputPoints = null;
+
+    int inputPointsDimension = 0;
+
+    int dimension = 0;
+
+    double[] outputPoints = null;
+
+    boolean writeOutputPointsFile = true;
+
+    /**
+     * Points to transform, used instead of the input points file of the settings
+     * @param dimension dimension of the points, should match the one of the transform
+     * @param points flat array of physical coordinates x0, y0, (z0), x1, ...
+     */
+    public void setInputPoints(int dimension, double[] points) {
+        this.inputPointsDimension = dimension;
+        this.inputPoints = points;
+    }
+
+    /**
+     * @return dimension of the transform, available once the task has run
+     */
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * @return the transformed points, flat array of physical coordinates, available once the task has run
+     */
+    public double[] getOutputPoints() {
+        return outputPoints;
+    }
+
+    /**
+     * @param write false to skip writing outputpoints.txt, when only {@link JavaTransformixTask#getOutputPoints()} is needed
+     */
+    public void setWriteOutputPointsFile(boolean write) {
+        this.writeOutputPointsFile = write;
+    }
+
+    @Override
+    public void run() throws Exception {
+        File transformFile = new File(settings.transformFileSupplier.get());
+        ElastixTransform transform = ElastixTransform.load(transformFile);
+        dimension = transform.dimension;
+
+        // Fixed image geometry, used to convert between indices and physical points
+        ElastixTransform.Parameters parameters = ElastixTransform.Parameters.read(transformFile);
+        double[] origin = parameters.has("Origin") ? parameters.getDoubles("Origin") : new double[dimension];
+        double[] spacing = parameters.has("Spacing") ? parameters.getDoubles("Spacing") : ones(dimension);
+        ElastixTransform.checkLength(origin, dimension);
+        ElastixTransform.checkLength(spacing, dimension);
+        double[] indexToPoint = ElastixTransform.getDirection(parameters, "Direction", dimension);
+        for (int i = 0; i < dimension; i++) {
+            for (int j = 0; j < dimension; j++) {
+                indexToPoint[i * dimension + j] *= spacing[j];
+            }
+        }
+        double[] pointToIndex = ElastixTransform.invert(indexToPoint, dimension);
+
+        double[] points;
+        if (inputPoints != null) {
+            if ((inputPointsDimension != dimension) || (inputPoints.length % dimension != 0)) {
+                throw new IOException("Points of dimension " + inputPointsDimension + " cannot be transformed by a transform of dimension " + dimension);
+            }
+            points = inputPoints;
+        } else {
+            points = readInputPointsFile(dimension, indexToPoint, origin);
+        }
+
+        outputPoints = points.clone();
+        transform.transform(outputPoints);
+        if (writeOutputPointsFile) {
+            writeOutputPoints(points, outputPoints, pointToIndex, origin, dimension);
+        }
+    }
+
+    /**
+     * Reads the input points file : 'index' or 'point', number of points, then coordinates
+     * @return physical coordinates of the points
+     */
+    double[] readInputPointsFile(int dimension, double[] indexToPoint, double[] origin) throws IOException {
+        String[] tokens = new String(Files.readAllBytes(Paths.get(settings.inputPtsFileSupplier.get())), StandardCharsets.UTF_8).trim().split("\\s+");
+        int position = 0;
+        boolean inputAreIndices = true;
+        if (tokens[0].equalsIgnoreCase("point")) {
+            inputAreIndices = false;
+            position++;
+        } else if (tokens[0].equalsIgnoreCase("index")) {
+            position++;
+        }
+        int numberOfPoints = Integer.parseInt(tokens[position++]);
+        if (tokens.length < position + numberOfPoints * dimension) {
+            throw new IOException("Expected " + numberOfPoints + " points of dimension " + dimension + " in the input points file");
+        }
+        double[] points = new double[numberOfPoints * dimension];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = Double.parseDouble(tokens[position + i]);
+        }
+        if (inputAreIndices) {
+            points = map(points, indexToPoint, origin, dimension, false);
+        }
+        return points;
+    }
+
+    void writeOutputPoints(double[] inputPoints, double[] outputPoints, double[] pointToIndex, double[] origin, int dimension) throws IOException {
+        int numberOfPoints = inputPoints.length / dimension;
+        double[] inputIndices = map(inputPoints, pointToIndex, origin, dimension, true);
+        double[] outputIndices = map(outputPoints, pointToIndex, origin, dimension, true);
+
+        File outputFile = new File(settings.outputFolderSupplier.get(), "outputpoints.txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(outputFile.toPath(), StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int p = 0; p < numberOfPoints; p++) {
+                line.setLength(0);
+                int offset = p * dimension;
+                line.append("Point\t").append(p);
+                line.append("\t; InputIndex = [ ");
+                appendIndices(line, inputIndices, offset, dimension);
+                line.append("]\t; InputPoint = [ ");
+                appendValues(line, inputPoints, offset, dimension, 0, null);
+                line.append("]\t; OutputIndexFixed = [ ");
+                appendIndices(line, outputIndices, offset, dimension);
+                line.append("]\t; OutputPoint = [ ");
+                appendValues(line, outputPoints, offset, dimension, 0, null);
+                line.append("]\t; Deformation = [ ");
+                appendValues(line, outputPoints, offset, dimension, offset, inputPoints);
+                line.append("]\n");
+                writer.write(line.toString());
+            }
+        }
+    }
+
+    static double[] ones(int dimension) {
+        double[] values = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            values[i] = 1;
+        }
+        return values;
+    }
+
+    /**
+     * Index to point : origin + M.index, point to index : M.(point - origin) with M the inverse matrix
+     */
+    static double[] map(double[] coordinates, double[] matrix, double[] origin, int dimension, boolean toIndex) {
+        double[] result = new double[coordinates.length];
+        for (int i = 0; i < coordinates.length; i += dimension) {
+            for (int r = 0; r < dimension; r++) {
+                double value = toIndex ? 0 : origin[r];
+                for (int c = 0; c < dimension; c++) {
+                    value += matrix[r * dimension + c] * (toIndex ? coordinates[i + c] - origin[c] : coordinates[i + c]);
+                }
+                result[i + r] = value;
+            }
+        }
+        return result;
+    }
+
+    static void appendIndices(StringBuilder line, double[] indices, int offset, int dimension) {
+        for (int d = 0; d < dimension; d++) {
+            line.append((long) Math.floor(indices[offset + d] + 0.5)).append(' ');
+        }
+    }
+
+    static void appendValues(StringBuilder line, double[] values, int offset, int dimension, int offsetSubtracted, double[] subtracted) {
+        for (int d = 0; d < dimension; d++) {
+            double value = values[offset + d] - (subtracted == null ? 0 : subtracted[offsetSubtracted + d]);
+            appendFixed(line, value);
+            line.append(' ');
+        }
+    }
+
+    /**
+     * Same output as String.format("%f", value), the format of transformix, up to the rounding of the
+     * last digit : a format string is not parsed for each coordinate of each point
+     */
+    static void appendFixed(StringBuilder line, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || (Math.abs(value) >= 1e12)) {
+            line.append(String.format(Locale.ROOT, "%f", value));
+            return;
+        }
+        if (Double.doubleToRawLongBits(value) < 0) {
+            line.append('-'); // Also for -0.0, like %f
+        }
+        long scaled = Math.round(Math.abs(value) * 1e6);
+        long fraction = scaled % 1000000;
+        line.append(scaled / 1000000).append('.');
+        for (long digit = 100000; (digit > fraction) && (digit > 1); digit /= 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+    }
+}
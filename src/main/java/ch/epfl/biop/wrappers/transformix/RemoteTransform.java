@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.transformix;
+
+import ch.epfl.biop.server.ServletUtils;
+import ch.epfl.biop.server.TransformixPointsServlet;
+import ch.epfl.biop.server.TransformixTransformsServlet;
+import ch.epfl.biop.wrappers.elastix.RemoteHttpClients;
+import com.google.gson.Gson;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static ch.epfl.biop.server.RegistrationServer.TRANSFORMIX_POINTS_PATH;
+import static ch.epfl.biop.server.RegistrationServer.TRANSFORMIX_TRANSFORMS_PATH;
+
+/**
+ * Transforms points on a server, without re-sending the transform each time : the transform
+ * is sent once to the server, which keeps it parsed, then only points are sent.
+ *
+ * Only works for transforms which can be evaluated in Java by the server, see {@link ElastixTransform}.
+ * An IOException is thrown otherwise, and {@link RemoteTransformixTask} should be used instead.
+ */
+public class RemoteTransform {
+
+    public static int timeOutInMs = 50000;
+
+    final String serverUrl;
+
+    final byte[] transform;
+
+    final String id;
+
+    public RemoteTransform(String serverUrl, File transformFile) throws IOException {
+        this.serverUrl = serverUrl;
+        this.transform = Files.readAllBytes(transformFile.toPath());
+        this.id = ServletUtils.toHex(ServletUtils.sha256().digest(transform));
+    }
+
+    /**
+     * @param points flat array of physical coordinates x0, y0, (z0), x1, ...
+     * @return the transformed points
+     * @throws IOException if the server cannot transform the points
+     */
+    public double[] transform(double[] points) throws IOException {
+        return transform(new double[][]{points})[0];
+    }
+
+    /**
+     * @param pointSets sets of points, transformed in a single request
+     * @return the transformed sets of points
+     * @throws IOException if the server cannot transform the points
+     */
+    public double[][] transform(double[]... pointSets) throws IOException {
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeOutInMs)
+                .setConnectionRequestTimeout(timeOutInMs)
+                .setSocketTimeout(timeOutInMs).build();
+        try (CloseableHttpClient httpclient = RemoteHttpClients.get(serverUrl, config)) {
+            String body = new Gson().toJson(new TransformixPointsServlet.PointsRequest(id, pointSets));
+            HttpPost pointsPost = new HttpPost(serverUrl + TRANSFORMIX_POINTS_PATH);
+            pointsPost.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+            HttpResponse response = httpclient.execute(pointsPost);
+            if (response.getStatusLine().getStatusCode() == 404) {
+                // The server does not know (anymore) the transform : sends it, then retries
+                EntityUtils.consume(response.getEntity());
+                HttpPost transformPost = new HttpPost(serverUrl + TRANSFORMIX_TRANSFORMS_PATH);
+                transformPost.setEntity(new ByteArrayEntity(transform, ContentType.TEXT_PLAIN));
+                HttpResponse transformResponse = httpclient.execute(transformPost);
+                int status = transformResponse.getStatusLine().getStatusCode();
+                EntityUtils.consume(transformResponse.getEntity());
+                if (status == TransformixTransformsServlet.UnsupportedTransformStatus) {
+                    throw new IOException("Transform not supported by the server, transformix should be used");
+                } else if (status != 200) {
+                    throw new IOException("Could not send the transform, error code " + status);
+                }
+                response = httpclient.execute(pointsPost);
+            }
+            int status = response.getStatusLine().getStatusCode();
+            String answer = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            if (status != 200) {
+                throw new IOException("Could not transform points, error code " + status);
+            }
+            return new Gson().fromJson(answer, TransformixPointsServlet.PointsResponse.class).pointSets;
+        }
+    }
+}
@@ -32,7 +32,11 @@
  */
 package ch.epfl.biop.wrappers.transformix;
 
+import ch.epfl.biop.server.PointSetCodec;
 import ch.epfl.biop.server.TransformixServlet;
+import ch.epfl.biop.wrappers.elastix.RemoteElastixTask;
+import ch.epfl.biop.wrappers.elastix.RemoteHttpClients;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
@@ -42,23 +46,72 @@ import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 
 import java.io.*;
-import java.util.zip.ZipEntry;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
 import java.util.zip.ZipInputStream;
 
 import static ch.epfl.biop.server.RegistrationServer.TRANSFORMIX_PATH;
-import static ch.epfl.biop.wrappers.elastix.RemoteElastixTask.newFile;
 
 public class RemoteTransformixTask extends TransformixTask {
 
     String serverUrl;
 
+    PointSetCodec.PointSet inputPoints = null;
+
+    boolean binaryOutput = false;
+
+    PointSetCodec.PointSet outputPoints = null;
+
+    boolean inMemoryResult = false;
+
+    Map<String, byte[]> resultFiles = null;
+
     public RemoteTransformixTask(String serverUrl) {
         this.serverUrl = serverUrl + TRANSFORMIX_PATH;
     }
 
+    /**
+     * Points sent in binary (see {@link PointSetCodec}) instead of the input points file of the settings
+     * @param dimension dimension of the points
+     * @param coordinates flat array of physical coordinates x0, y0, (z0), x1, ...
+     */
+    public void setInputPoints(int dimension, double[] coordinates) {
+        this.inputPoints = new PointSetCodec.PointSet(dimension, coordinates);
+    }
+
+    /**
+     * @param binaryOutput true to get the transformed points with {@link RemoteTransformixTask#getOutputPoints()}
+     *                     instead of an outputpoints.txt file written in the output folder
+     */
+    public void setBinaryOutput(boolean binaryOutput) {
+        this.binaryOutput = binaryOutput;
+    }
+
+    /**
+     * @return the transformed points, when binary output is set and once the task has run
+     */
+    public PointSetCodec.PointSet getOutputPoints() {
+        return outputPoints;
+    }
+
+    /**
+     * @param inMemoryResult true to keep the result files in memory (see {@link RemoteTransformixTask#getResultFiles()})
+     *                       instead of writing them in the output folder, which is then not needed
+     */
+    public void setInMemoryResult(boolean inMemoryResult) {
+        this.inMemoryResult = inMemoryResult;
+    }
+
+    /**
+     * @return the result files by name (outputpoints.txt, ...), when the result is kept in memory and once
+     * the task has run
+     */
+    public Map<String, byte[]> getResultFiles() {
+        return resultFiles;
+    }
+
     @Override
     public void run() throws Exception {
 
@@ -67,17 +120,22 @@ public class RemoteTransformixTask extends TransformixTask {
                 .setConnectTimeout(timeout * 1000)
                 .setConnectionRequestTimeout(timeout * 1000)
                 .setSocketTimeout(timeout * 1000).build();
-        CloseableHttpClient httpclient =
-                HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+        CloseableHttpClient httpclient = RemoteHttpClients.get(serverUrl, config);
 
         HttpPost httppost = new HttpPost(serverUrl);
 
         MultipartEntityBuilder builder = MultipartEntityBuilder.create();
         builder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
 
-        File inputPtsFile = new File(settings.inputPtsFileSupplier.get());
-        FileBody inputPtsBody = new FileBody(inputPtsFile, ContentType.DEFAULT_BINARY);
-        builder.addPart(TransformixServlet.InputPtsFileTag, inputPtsBody);
+        if (inputPoints != null) {
+            ByteArrayOutputStream pointsBytes = new ByteArrayOutputStream();
+            PointSetCodec.write(inputPoints, pointsBytes);
+            builder.addBinaryBody(TransformixServlet.InputPtsFileTag, pointsBytes.toByteArray(), ContentType.create(PointSetCodec.ContentType), "pts.bin");
+        } else {
+            File inputPtsFile = new File(settings.inputPtsFileSupplier.get());
+            FileBody inputPtsBody = new FileBody(inputPtsFile, ContentType.DEFAULT_BINARY);
+            builder.addPart(TransformixServlet.InputPtsFileTag, inputPtsBody);
+        }
 
         File transformFile = new File(settings.transformFileSupplier.get());
         FileBody transformBody = new FileBody(transformFile, ContentType.DEFAULT_BINARY);
@@ -85,52 +143,38 @@ public class RemoteTransformixTask extends TransformixTask {
 
         HttpEntity entity = builder.build();
         httppost.setEntity(entity);
+        if (binaryOutput) {
+            // Servers which do not support binary points send back the zip file
+            httppost.addHeader("Accept", PointSetCodec.ContentType + ", application/zip");
+        }
         HttpResponse response = httpclient.execute(httppost);
-        InputStream is = response.getEntity().getContent();
-        File zipAns = new File(settings.outputFolderSupplier.get(), "registration_result.zip");
-        FileOutputStream fos = new FileOutputStream(zipAns);
-
-        int read;
-        byte[] buffer = new byte[32768];
-        while( (read = is.read(buffer)) > 0) {
-            fos.write(buffer, 0, read);
+        Header responseType = response.getEntity().getContentType();
+        if ((responseType != null) && (responseType.getValue().startsWith(PointSetCodec.ContentType))) {
+            try (InputStream pointsStream = response.getEntity().getContent()) {
+                outputPoints = PointSetCodec.read(pointsStream, Integer.MAX_VALUE - 8);
+            }
+            return;
         }
-
-        fos.close();
-        is.close();
-
-        //System.out.println(settings.outputFolderSupplier.get());
-
-        File destDir = new File(settings.outputFolderSupplier.get());
-        ZipInputStream zis = new ZipInputStream(new FileInputStream(zipAns));
-        ZipEntry zipEntry = zis.getNextEntry();
-        while (zipEntry != null) {
-            File newFile = newFile(destDir, zipEntry);
-            if (zipEntry.isDirectory()) {
-                if (!newFile.isDirectory() && !newFile.mkdirs()) {
-                    throw new IOException("Failed to create directory " + newFile);
-                }
+        // Unzips the response while it is received
+        try (ZipInputStream zis = new ZipInputStream(response.getEntity().getContent())) {
+            if (inMemoryResult) {
+                resultFiles = RemoteElastixTask.unzip(zis);
             } else {
-                // fix for Windows-created archives
-                File parent = newFile.getParentFile();
-                if (!parent.isDirectory() && !parent.mkdirs()) {
-                    throw new IOException("Failed to create directory " + parent);
-                }
+                RemoteElastixTask.unzip(zis, new File(settings.outputFolderSupplier.get()));
+            }
+        }
 
-                // write file content
-                fos = new FileOutputStream(newFile);
-                int len;
-                while ((len = zis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, len);
+        if (binaryOutput) {
+            if (inMemoryResult) {
+                byte[] points = resultFiles.get("outputpoints.txt");
+                if (points == null) {
+                    throw new IOException("No output points in the result");
                 }
-                fos.close();
+                outputPoints = PointSetCodec.readOutputPoints(new String(points, StandardCharsets.UTF_8));
+            } else {
+                outputPoints = PointSetCodec.readOutputPointsFile(new File(settings.outputFolderSupplier.get(), "outputpoints.txt"));
             }
-            zipEntry = zis.getNextEntry();
         }
-        zis.closeEntry();
-        zis.close();
-
-        zipAns.delete();
 
     }
 
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.transformix;
+
+import ch.epfl.biop.wrappers.elastix.ElastixProcessTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a transformix task as a native process which can be killed, see {@link TransformixProcessTask#cancel()}
+ *
+ * Used by the {@link ch.epfl.biop.server.TransformixServlet} : a request which timed out or whose client is gone
+ * should not keep a thread of the pool, nor its workspace
+ */
+public class TransformixProcessTask extends TransformixTask {
+
+    final File transformixExe;
+
+    Process process;
+
+    boolean cancelled = false;
+
+    /**
+     * @param transformixExe transformix executable file
+     */
+    public TransformixProcessTask(File transformixExe) {
+        this.transformixExe = transformixExe;
+    }
+
+    /**
+     * Runs transformix and waits for the end of the process
+     * @throws InterruptedException if the task has been cancelled or if the thread has been interrupted : in both
+     * cases, the process is not running anymore when the exception is thrown
+     * @throws IOException if transformix could not be started or failed
+     */
+    public void run() throws InterruptedException, IOException {
+        List<String> command = new ArrayList<>();
+        command.add(transformixExe.getAbsolutePath());
+        command.add("-def");
+        command.add(settings.inputPtsFileSupplier.get());
+        command.add("-out");
+        command.add(settings.outputFolderSupplier.get());
+        command.add("-tp");
+        command.add(settings.transformFileSupplier.get());
+
+        // Same content as transformix.log, which is written in the output folder as well : kept only if transformix fails
+        File consoleLog = new File(settings.outputFolderSupplier.get(), "transformix_console.log");
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(consoleLog);
+
+        Process currentProcess;
+        synchronized (this) {
+            if (cancelled) {
+                throw new InterruptedException("Transformix task cancelled");
+            }
+            process = processBuilder.start();
+            currentProcess = process;
+        }
+
+        int exitValue;
+        try {
+            exitValue = currentProcess.waitFor();
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+
+        if (isCancelled()) {
+            throw new InterruptedException("Transformix task cancelled");
+        }
+        if (exitValue!=0) {
+            throw new IOException("Transformix exited with code "+exitValue);
+        }
+        consoleLog.delete();
+    }
+
+    /**
+     * Kills the transformix process, if any, and waits for the process to be gone.
+     * Can be called before the task is started, in which case it will not start.
+     */
+    public void cancel() {
+        Process currentProcess;
+        synchronized (this) {
+            cancelled = true;
+            currentProcess = process;
+        }
+        if (currentProcess!=null) {
+            ElastixProcessTask.destroyProcessTree(currentProcess);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import ch.epfl.biop.wrappers.elastix.ElastixTaskSettings;
+import ch.epfl.biop.wrappers.elastix.RemoteElastixTask;
+import ch.epfl.biop.wrappers.elastix.RemoteHttpClients;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class FederationTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LocalServer coordinator, worker;
+
+    @Before
+    public void setup() throws Exception {
+        Assume.assumeTrue(LocalServer.canRun());
+        File elastix = LocalServer.createFakeElastix(folder.getRoot(), 0.5);
+
+        // No slot on the coordinator : its jobs can only run on the worker
+        RegistrationServerConfig coordinatorConfig = LocalServer.getConfig(folder.newFolder("coordinator"), elastix);
+        coordinatorConfig.maxNumberOfSimultaneousRequests = 0;
+        coordinatorConfig.acceptWorkers = true;
+        coordinator = LocalServer.start(coordinatorConfig, folder.getRoot());
+
+        RegistrationServerConfig workerConfig = LocalServer.getConfig(folder.newFolder("worker"), elastix);
+        workerConfig.maxNumberOfSimultaneousRequests = 2;
+        workerConfig.coordinatorUrl = coordinator.url;
+        workerConfig.workerHeartbeatPeriodInMs = 500;
+        worker = LocalServer.start(workerConfig, folder.getRoot());
+
+        long deadline = System.currentTimeMillis() + LocalServer.startTimeOutInMs;
+        while (coordinator.getStatus().numberOfWorkers == 0) {
+            assertThat(System.currentTimeMillis()).as("worker registered").isLessThan(deadline);
+            Thread.sleep(200);
+        }
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        if (worker != null) worker.stop();
+        if (coordinator != null) coordinator.stop();
+        RemoteHttpClients.closeAll();
+    }
+
+    @Test
+    public void givenCoordinatorWithWorker_whenJobSent_thenRunByWorker() throws Exception {
+        File transform = folder.newFile("transform.txt");
+        Files.write(transform.toPath(), "(Transform \"AffineTransform\")".getBytes(StandardCharsets.UTF_8));
+        File outFolder = folder.newFolder("result");
+        long workerJobIndex = worker.getStatus().currentElastixJobIndex;
+
+        RemoteElastixTask task = new RemoteElastixTask(coordinator.url);
+        task.setSettings(new ElastixTaskSettings()
+                .fixedImage(() -> "src/test/resources/atlas.tif")
+                .movingImage(() -> "src/test/resources/unregistered.tif")
+                .addTransform(() -> transform.getAbsolutePath())
+                .outFolder(() -> outFolder.getAbsolutePath()));
+        task.run();
+
+        File result = new File(outFolder, "TransformParameters.0.txt");
+        assertThat(result.exists()).isTrue();
+        assertThat(new String(Files.readAllBytes(result.toPath()), StandardCharsets.UTF_8)).contains("AffineTransform");
+        assertThat(coordinator.getStatus().numberOfElastixTasksDispatchedToWorkers).isEqualTo(1);
+        assertThat(worker.getStatus().currentElastixJobIndex).isGreaterThan(workerJobIndex);
+    }
+}
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registration server started in its own process, for the tests which need several servers : the servlets
+ * keep their state in static fields, so two servers can't run in the same JVM.
+ *
+ * Elastix is replaced by a shell script (see {@link LocalServer#createFakeElastix(File, double)}), so these
+ * servers can only run where there is a shell : check {@link LocalServer#canRun()} first.
+ */
+public class LocalServer {
+
+    public static int startTimeOutInMs = 60000;
+
+    final public String url;
+
+    final Process process;
+
+    final File logFile;
+
+    LocalServer(String url, Process process, File logFile) {
+        this.url = url;
+        this.process = process;
+        this.logFile = logFile;
+    }
+
+    /**
+     * @return true if the fake elastix can run on this machine
+     */
+    public static boolean canRun() {
+        return !System.getProperty("os.name").toLowerCase().startsWith("windows");
+    }
+
+    /**
+     * Writes a script which behaves like elastix for the server : it waits, then writes a transform
+     * in the output folder
+     * @param folder where the script is written
+     * @param durationInS how long a registration lasts
+     * @return the script
+     * @throws IOException if the script can't be written
+     */
+    public static File createFakeElastix(File folder, double durationInS) throws IOException {
+        File script = new File(folder, "fake_elastix.sh");
+        String content = "#!/bin/sh\n" +
+                "OUT=\"\"\n" +
+                "while [ $# -gt 0 ]; do case \"$1\" in -out) OUT=\"$2\"; shift;; esac; shift; done\n" +
+                "sleep " + durationInS + "\n" +
+                "echo '(Transform \"AffineTransform\")' > \"$OUT/TransformParameters.0.txt\"\n" +
+                "echo log > \"$OUT/elastix.log\"\n";
+        Files.write(script.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        if (!script.setExecutable(true)) throw new IOException("Could not make "+script+" executable");
+        return script;
+    }
+
+    /**
+     * @param folder folder of the server, for its jobs
+     * @param elastix elastix executable
+     * @return a configuration for a test server on a free port, without result cache
+     * @throws IOException if no port is free
+     */
+    public static RegistrationServerConfig getConfig(File folder, File elastix) throws IOException {
+        RegistrationServerConfig config = new RegistrationServerConfig();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            config.localPort = socket.getLocalPort();
+        }
+        config.elaxtixLocation = elastix.getAbsolutePath();
+        config.jobsDataLocation = folder.getAbsolutePath()+File.separator;
+        config.storeJobsData = false;
+        config.resultCacheMaxSizeInBytes = 0;
+        config.elastixTaskEstimatedDurationInMs = 1000;
+        return config;
+    }
+
+    /**
+     * Starts a server and waits until it answers
+     * @param config configuration of the server
+     * @param folder where the configuration and the log of the server are written
+     * @return the started server
+     * @throws Exception if the server did not start
+     */
+    public static LocalServer start(RegistrationServerConfig config, File folder) throws Exception {
+        File configFile = new File(folder, "config_"+config.localPort+".json");
+        Files.write(configFile.toPath(), new Gson().toJson(config).getBytes(StandardCharsets.UTF_8));
+        File logFile = new File(folder, "server_"+config.localPort+".log");
+        Process process = new ProcessBuilder(
+                System.getProperty("java.home")+File.separator+"bin"+File.separator+"java",
+                "-cp", System.getProperty("java.class.path"),
+                RegistrationServerStarter.class.getName(), configFile.getAbsolutePath())
+                .redirectErrorStream(true)
+                .redirectOutput(logFile)
+                .start();
+        LocalServer server = new LocalServer("http://localhost:"+config.localPort, process, logFile);
+
+        long deadline = System.currentTimeMillis() + startTimeOutInMs;
+        while (!server.answers()) {
+            if ((!process.isAlive())||(System.currentTimeMillis() > deadline)) {
+                server.stop();
+                throw new IllegalStateException("Server "+server.url+" did not start :\n"+server.getLog());
+            }
+            Thread.sleep(200);
+        }
+        return server;
+    }
+
+    boolean answers() {
+        try {
+            getStatus();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the status of the server
+     * @throws IOException if the server did not answer
+     */
+    public StatusServlet.ServerStatus getStatus() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url+RegistrationServer.STATUS_PATH).openConnection();
+        connection.setConnectTimeout(1000);
+        connection.setReadTimeout(1000);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("status line "+connection.getResponseCode());
+            }
+            return new Gson().fromJson(IOUtils.toString(connection.getInputStream(), StandardCharsets.UTF_8), StatusServlet.ServerStatus.class);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return what the server printed so far
+     */
+    public String getLog() {
+        try {
+            return new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "(no log : "+e.getMessage()+")";
+        }
+    }
+
+    /**
+     * Kills the server and waits until it is gone
+     */
+    public void stop() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+}
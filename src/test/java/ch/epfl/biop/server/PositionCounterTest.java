@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class PositionCounterTest {
+
+    @Test
+    public void givenTickets_whenRemoved_thenPositionsFollow() {
+        ElastixJobQueue.PositionCounter counter = new ElastixJobQueue.PositionCounter();
+        for (int i = 0; i < 10; i++) {
+            assertThat(counter.next()).isEqualTo(i);
+        }
+        assertThat(counter.countBefore(5)).isEqualTo(5);
+        counter.remove(2);
+        assertThat(counter.countBefore(5)).isEqualTo(4);
+        assertThat(counter.countBefore(0)).isEqualTo(0);
+        assertThat(counter.countBefore(10)).isEqualTo(9);
+    }
+
+    @Test
+    public void givenQueueMovingForward_whenRebuilt_thenPositionsKept() {
+        // The queue stays short but the tickets go far beyond the initial size of the tree
+        ElastixJobQueue.PositionCounter counter = new ElastixJobQueue.PositionCounter();
+        TreeSet<Long> live = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            live.add(counter.next());
+            if (live.size() > 50) counter.remove(live.pollFirst());
+        }
+        checkPositions(counter, live);
+    }
+
+    @Test
+    public void givenLongQueue_whenGrown_thenPositionsKept() {
+        ElastixJobQueue.PositionCounter counter = new ElastixJobQueue.PositionCounter();
+        TreeSet<Long> live = new TreeSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            live.add(counter.next());
+            // Removes from anywhere, less often than it adds : the queue grows
+            if (random.nextInt(3) == 0) {
+                Long ticket = live.ceiling((long) random.nextInt(i+1));
+                if (ticket != null) {
+                    live.remove(ticket);
+                    counter.remove(ticket);
+                }
+            }
+        }
+        assertThat(live.size()).isGreaterThan(1024);
+        checkPositions(counter, live);
+    }
+
+    @Test
+    public void givenRanges_whenAdded_thenConsecutiveAndCounted() {
+        ElastixJobQueue.PositionCounter counter = new ElastixJobQueue.PositionCounter();
+        TreeSet<Long> live = new TreeSet<>();
+        long first = counter.nextRange(10);
+        assertThat(first).isEqualTo(0);
+        for (long t = first; t < first+10; t++) live.add(t);
+        assertThat(counter.next()).isEqualTo(10);
+        live.add(10L);
+
+        // Empty queue, then a range bigger than the tree : the base can't go past the first ticket of the range
+        for (long ticket : live) counter.remove(ticket);
+        live.clear();
+        first = counter.nextRange(3000);
+        assertThat(first).isEqualTo(11);
+        for (long t = first; t < first+3000; t++) live.add(t);
+        checkPositions(counter, live);
+
+        assertThat(counter.nextRange(0)).isEqualTo(3011);
+        assertThat(counter.next()).isEqualTo(3011);
+    }
+
+    @Test(timeout = 60000)
+    public void givenConcurrentAdds_whenCounted_thenNoTicketLost() throws Exception {
+        ElastixJobQueue.PositionCounter counter = new ElastixJobQueue.PositionCounter();
+        Set<Long> live = ConcurrentHashMap.newKeySet();
+        int numberOfThreads = 8, numberOfTickets = 5000;
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < numberOfThreads; t++) {
+                final int threadIndex = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < numberOfTickets; i++) {
+                        // Single tickets and ranges, and one ticket out of two removed right away : many rebuilds
+                        long first = (i % 10 == 0) ? counter.nextRange(3) : counter.next();
+                        int n = (i % 10 == 0) ? 3 : 1;
+                        for (long ticket = first; ticket < first+n; ticket++) {
+                            if ((ticket+threadIndex) % 2 == 0) {
+                                counter.remove(ticket);
+                            } else {
+                                assertThat(live.add(ticket)).isTrue();
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        checkPositions(counter, new TreeSet<>(live));
+    }
+
+    static void checkPositions(ElastixJobQueue.PositionCounter counter, TreeSet<Long> live) {
+        int position = 0;
+        for (long ticket : live) {
+            assertThat(counter.countBefore(ticket)).as("position of ticket "+ticket).isEqualTo(position);
+            position++;
+        }
+        assertThat(counter.countBefore(live.last()+1)).isEqualTo(live.size());
+    }
+}
@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.elastix;
+
+import ch.epfl.biop.server.LocalServer;
+import ch.epfl.biop.server.RegistrationServerConfig;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+
+public class RemoteElastixLoadBalancerTest {
+
+    /**
+     * Duration of the fake elastix : long enough for the elastix time to dominate the upload and queue overhead
+     */
+    final static int TaskDurationInS = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LocalServer server1, server2;
+
+    RemoteElastixLoadBalancer loadBalancer;
+
+    int statusUpdatePeriodInMs;
+
+    @Before
+    public void setup() throws Exception {
+        Assume.assumeTrue(LocalServer.canRun());
+        File elastix = LocalServer.createFakeElastix(folder.getRoot(), TaskDurationInS);
+
+        RegistrationServerConfig config1 = LocalServer.getConfig(folder.newFolder("server1"), elastix);
+        config1.maxNumberOfSimultaneousRequests = 2;
+        server1 = LocalServer.start(config1, folder.getRoot());
+        RegistrationServerConfig config2 = LocalServer.getConfig(folder.newFolder("server2"), elastix);
+        config2.maxNumberOfSimultaneousRequests = 2;
+        server2 = LocalServer.start(config2, folder.getRoot());
+
+        // No status update during the test : a stopped server is only noticed when a task is sent to it
+        statusUpdatePeriodInMs = RemoteElastixLoadBalancer.statusUpdatePeriodInMs;
+        RemoteElastixLoadBalancer.statusUpdatePeriodInMs = 600000;
+        loadBalancer = new RemoteElastixLoadBalancer(Arrays.asList(server1.url, server2.url));
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        if (loadBalancer != null) loadBalancer.close();
+        RemoteElastixLoadBalancer.statusUpdatePeriodInMs = statusUpdatePeriodInMs;
+        if (server1 != null) server1.stop();
+        if (server2 != null) server2.stop();
+        RemoteHttpClients.closeAll();
+    }
+
+    @Test
+    public void givenTwoServers_whenBurstOfTasks_thenSpreadAndFailover() throws Exception {
+        assertThat(runBurst(loadBalancer, 8)).isEqualTo(8);
+
+        List<RemoteElastixLoadBalancer.ServerState> states = loadBalancer.getServers();
+        assertThat(states.get(0).numberOfTasks).isEqualTo(4);
+        assertThat(states.get(1).numberOfTasks).isEqualTo(4);
+
+        server1.stop();
+
+        assertThat(runBurst(loadBalancer, 4)).isEqualTo(4);
+
+        states = loadBalancer.getServers();
+        assertThat(states.get(0).available).isFalse();
+        assertThat(states.get(0).numberOfFailovers).isGreaterThan(0);
+        assertThat(states.get(0).numberOfTasks).isEqualTo(4);
+        assertThat(states.get(1).numberOfTasks).isEqualTo(8);
+    }
+
+    @Test
+    public void givenTwoServers_whenBurstOfTasks_thenFasterThanOneServer() throws Exception {
+        // Warms up the servers : their first requests are slower
+        assertThat(runBurst(loadBalancer, 4)).isEqualTo(4);
+        // The tasks sent are only forgotten when the statuses are updated, which is disabled in this test
+        loadBalancer.updateStatuses();
+
+        // 8 tasks on 2 slots : 4 rounds of tasks on one server, 2 rounds on two servers
+        RemoteElastixLoadBalancer oneServer = new RemoteElastixLoadBalancer(Arrays.asList(server1.url));
+        try {
+            long start = System.currentTimeMillis();
+            assertThat(runBurst(oneServer, 8)).isEqualTo(8);
+            long oneServerDurationInMs = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            assertThat(runBurst(loadBalancer, 8)).isEqualTo(8);
+            long twoServersDurationInMs = System.currentTimeMillis() - start;
+
+            assertThat(oneServerDurationInMs).isGreaterThanOrEqualTo(4 * TaskDurationInS * 1000L);
+            assertThat((double) oneServerDurationInMs / twoServersDurationInMs)
+                    .as("speedup, one server : " + oneServerDurationInMs + " ms, two servers : " + twoServersDurationInMs + " ms")
+                    .isGreaterThan(1.6);
+        } finally {
+            oneServer.close();
+        }
+    }
+
+    /**
+     * Runs tasks at the same time through a load balancer
+     * @param loadBalancer load balancer creating the tasks
+     * @param numberOfTasks number of tasks
+     * @return number of tasks which returned a result
+     */
+    int runBurst(RemoteElastixLoadBalancer loadBalancer, int numberOfTasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfTasks);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < numberOfTasks; i++) {
+                // Distinct transforms : identical registrations would be coalesced by the server
+                File transform = folder.newFile();
+                Files.write(transform.toPath(), ("(Transform \"AffineTransform\")\n// "+transform.getName()).getBytes(StandardCharsets.UTF_8));
+                File outFolder = folder.newFolder();
+                results.add(executor.submit(() -> {
+                    ElastixTask task = loadBalancer.newTask();
+                    task.setSettings(new ElastixTaskSettings()
+                            .fixedImage(() -> "src/test/resources/atlas.tif")
+                            .movingImage(() -> "src/test/resources/unregistered.tif")
+                            .addTransform(() -> transform.getAbsolutePath())
+                            .outFolder(() -> outFolder.getAbsolutePath()));
+                    task.run();
+                    return new File(outFolder, "TransformParameters.0.txt").exists();
+                }));
+            }
+            int numberOfResults = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) numberOfResults++;
+            }
+            return numberOfResults;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
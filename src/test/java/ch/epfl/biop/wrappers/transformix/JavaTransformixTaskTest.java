@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * BIOP Elastix Registration Server
+ * %%
+ * Copyright (C) 2021 Nicolas Chiaruttini, EPFL
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the EPFL, ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP), 2021 nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package ch.epfl.biop.wrappers.transformix;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Compares the points transformed in Java with outputpoints.txt files in the transformix format.
+ *
+ * Each case of src/test/resources/transformix has a transform parameters file (name.txt), its input
+ * points (name_pts.txt) and the expected output (name_outputpoints.txt)
+ */
+public class JavaTransformixTaskTest {
+
+    final static File Resources = new File("src/test/resources/transformix");
+
+    final static Pattern FieldPattern = Pattern.compile("(\\w+) = \\[ ([^\\]]*) \\]");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void givenTranslation_whenTransformed_thenSameAsTransformix() throws Exception {
+        checkCase("translation_2d");
+    }
+
+    @Test
+    public void givenEuler_whenTransformed_thenSameAsTransformix() throws Exception {
+        checkCase("euler_2d");
+        checkCase("euler_3d");
+        checkCase("euler_3d_zyx");
+    }
+
+    @Test
+    public void givenSimilarity_whenTransformed_thenSameAsTransformix() throws Exception {
+        checkCase("similarity_2d");
+        checkCase("similarity_3d");
+    }
+
+    @Test
+    public void givenAffine_whenTransformed_thenSameAsTransformix() throws Exception {
+        // The 2D case has a fixed image geometry (origin, spacing, direction) and input points given as indices
+        checkCase("affine_2d");
+        checkCase("affine_3d");
+    }
+
+    @Test
+    public void givenBSpline_whenTransformed_thenSameAsTransformix() throws Exception {
+        // The last point is outside of the valid region of the grid
+        checkCase("bspline_2d");
+    }
+
+    @Test
+    public void givenInitialTransform_whenComposed_thenSameAsTransformix() throws Exception {
+        checkCase("bspline_composed_2d");
+    }
+
+    @Test
+    public void givenInitialTransform_whenAdded_thenSameAsTransformix() throws Exception {
+        checkCase("bspline_added_2d");
+    }
+
+    @Test
+    public void givenInputPoints_whenTransformed_thenSameAsFile() throws Exception {
+        // Points sent in binary are transformed without writing outputpoints.txt
+        List<Map<String, String>> expected = readOutputPoints(new File(Resources, "bspline_composed_2d_outputpoints.txt"));
+        double[] points = new double[expected.size() * 2];
+        for (int i = 0; i < expected.size(); i++) {
+            System.arraycopy(values(expected.get(i).get("InputPoint")), 0, points, i * 2, 2);
+        }
+        File output = folder.newFolder();
+        JavaTransformixTask task = newTask("bspline_composed_2d", output);
+        task.setInputPoints(2, points);
+        task.setWriteOutputPointsFile(false);
+        task.run();
+
+        assertThat(new File(output, "outputpoints.txt")).doesNotExist();
+        assertThat(task.getDimension()).isEqualTo(2);
+        for (int i = 0; i < expected.size(); i++) {
+            double[] expectedPoint = values(expected.get(i).get("OutputPoint"));
+            assertThat(task.getOutputPoints()[i * 2]).isCloseTo(expectedPoint[0], within(1e-5));
+            assertThat(task.getOutputPoints()[i * 2 + 1]).isCloseTo(expectedPoint[1], within(1e-5));
+        }
+    }
+
+    @Test
+    public void givenValues_whenAppended_thenSameAsFormat() {
+        Random random = new Random(15);
+        List<Double> values = new ArrayList<>();
+        values.add(0.0);
+        values.add(-0.0);
+        values.add(1.0);
+        values.add(-2.5);
+        values.add(0.0000004);
+        values.add(-0.0000004);
+        values.add(999999.9999996);
+        values.add(1e13);
+        values.add(Double.NaN);
+        for (int i = 0; i < 10000; i++) {
+            values.add((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(10) - 3));
+        }
+        StringBuilder line = new StringBuilder();
+        for (double value : values) {
+            line.setLength(0);
+            JavaTransformixTask.appendFixed(line, value);
+            assertThat(line.toString()).as("value " + value).isEqualTo(String.format(Locale.ROOT, "%f", value));
+        }
+    }
+
+    static JavaTransformixTask newTask(String name, File output) {
+        JavaTransformixTask task = new JavaTransformixTask();
+        task.setSettings(new TransformixTaskSettings()
+                .pts(() -> new File(Resources, name + "_pts.txt").getAbsolutePath())
+                .transform(() -> new File(Resources, name + ".txt").getAbsolutePath())
+                .outFolder(output::getAbsolutePath));
+        return task;
+    }
+
+    void checkCase(String name) throws Exception {
+        File output = folder.newFolder(name);
+        newTask(name, output).run();
+
+        List<Map<String, String>> expected = readOutputPoints(new File(Resources, name + "_outputpoints.txt"));
+        List<Map<String, String>> actual = readOutputPoints(new File(output, "outputpoints.txt"));
+        assertThat(actual).as(name).hasSameSizeAs(expected);
+        for (int i = 0; i < expected.size(); i++) {
+            String point = name + " point " + i;
+            assertThat(actual.get(i).get("InputIndex")).as(point).isEqualTo(expected.get(i).get("InputIndex"));
+            assertThat(actual.get(i).get("OutputIndexFixed")).as(point).isEqualTo(expected.get(i).get("OutputIndexFixed"));
+            for (String field : new String[]{"InputPoint", "OutputPoint", "Deformation"}) {
+                double[] expectedValues = values(expected.get(i).get(field));
+                double[] actualValues = values(actual.get(i).get(field));
+                assertThat(actualValues.length).as(point + " " + field).isEqualTo(expectedValues.length);
+                for (int d = 0; d < expectedValues.length; d++) {
+                    // Both files are written with 6 decimals
+                    assertThat(actualValues[d]).as(point + " " + field).isCloseTo(expectedValues[d], within(2e-6));
+                }
+            }
+        }
+    }
+
+    static List<Map<String, String>> readOutputPoints(File file) throws Exception {
+        List<Map<String, String>> points = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) continue;
+            Map<String, String> fields = new LinkedHashMap<>();
+            Matcher matcher = FieldPattern.matcher(line);
+            while (matcher.find()) {
+                fields.put(matcher.group(1), matcher.group(2).trim());
+            }
+            points.add(fields);
+        }
+        return points;
+    }
+
+    static double[] values(String field) {
+        String[] tokens = field.trim().split("\\s+");
+        double[] values = new double[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            values[i] = Double.parseDouble(tokens[i]);
+        }
+        return values;
+    }
+}